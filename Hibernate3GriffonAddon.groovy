@@ -21,6 +21,7 @@ import griffon.plugins.hibernate3.Hibernate3Enhancer
 import griffon.plugins.hibernate3.Hibernate3ContributionHandler
 
 import static griffon.util.ConfigUtils.getConfigValueAsBoolean
+import static griffon.util.ConfigUtils.getConfigValueAsString
 
 
 /**
@@ -29,6 +30,8 @@ import static griffon.util.ConfigUtils.getConfigValueAsBoolean
 class Hibernate3GriffonAddon {
     void addonPostInit(GriffonApplication app) {
         Hibernate3Connector.instance.createConfig(app)
+        // 'none' leaves the methods to Hibernate3Category or @Hibernate3Aware
+        if (getConfigValueAsString(app.config, 'griffon.hibernate3.injection', 'metaclass') == 'none') return
         def types = app.config.griffon?.hibernate3?.injectInto ?: ['controller']
         for(String type : types) {
             for(GriffonClass gc : app.artifactManager.getClassesOfType(type)) {
@@ -46,7 +49,7 @@ class Hibernate3GriffonAddon {
             }
         },
         ShutdownStart: { app ->
-            Hibernate3Connector.instance.disconnect(app)
+            Hibernate3Connector.instance.disconnectAll(app)
         }
     ]
 }
@@ -87,6 +87,25 @@ The following list enumerates all the variants of the injected method
  * `<R> R withHibernate3(CallableWithArgs<R> stmts)`
  * `<R> R withHibernate3(String databaseName, Closure<R> stmts)`
  * `<R> R withHibernate3(String databaseName, CallableWithArgs<R> stmts)`
+ * `<R> R withHibernate3(SessionCallback<R> stmts)`
+ * `<R> R withHibernate3(String databaseName, SessionCallback<R> stmts)`
+ * `<R> R withHibernate3(String databaseName, Hibernate3Options options, Closure<R> stmts)`
+ * `<R> R withHibernate3(String databaseName, Hibernate3Options options, CallableWithArgs<R> stmts)`
+ * `<R> R withHibernate3(String databaseName, Hibernate3Options options, SessionCallback<R> stmts)`
+
+along with `spillHibernate3(String databaseName, String hql)` and
+`spillHibernate3(String databaseName, String hql, Map params)`, see Spilling Large
+Results to Disk.
+
+`SessionCallback` receives the database name and the session as plain arguments,
+without packing them into an array or going through Groovy's dynamic dispatch,
+which makes it the cheapest variant to call from Java or `@CompileStatic` code
+
+    withHibernate3('internal', new SessionCallback<Long>() {
+        public Long doInSession(String databaseName, Session session) {
+            return (Long) session.createQuery("select count(*) from Person").uniqueResult();
+        }
+    });
 
 These methods are also accessible to any component through the singleton
 `griffon.plugins.hibernate3.Hibernate3Enhancer`. You can inject these methods to
@@ -95,6 +114,184 @@ call `Hibernate3Enhancer.enhance(metaClassInstance)`.
 
 This plugin relies on the facilities exposed by the [datasource][2] plugin.
 
+### Timeouts and Cancellation
+
+Blocks started on behalf of the user can be given a deadline and cancelled, so
+runaway queries don't hold connections and locks after the user has moved on
+
+    Hibernate3Options options = new Hibernate3Options().timeout(10, TimeUnit.SECONDS)
+    cancelAction.closure = { options.cancellation.cancel() }
+    withHibernate3('default', options) { sessionFactoryName, session ->
+        session.createQuery('from Order o where o.total > :total')
+               .setParameter('total', total)
+               .list()
+    }
+
+The time left until the deadline is applied as the query timeout of every
+statement in the block. `cancel()` may be called from any thread and cancels the
+running statement through JDBC. A block that is cancelled or runs past its
+deadline has its transaction rolled back instead of committed, and fails with a
+`CancelledException` if it didn't fail on its own. Blocks running many
+statements may call `options.cancellation.checkCancelled()` between them to stop
+early. Use a new `Hibernate3Options` for every block.
+
+### Fetch Profiles
+
+The same entities often need their associations fetched differently on a list
+screen than on a detail screen. Fetch profiles are declared per session factory,
+each listing the associations it fetches with a join
+
+    sessionFactory {
+        fetchProfiles {
+            personDetail = ['com.acme.Person.addresses', 'com.acme.Person.orders']
+            orderDetail  = [[entity: com.acme.Order, association: 'lines', style: 'join']]
+        }
+    }
+
+and enabled for the session of a single block
+
+    withHibernate3('default', new Hibernate3Options().fetchProfiles('personDetail')) { sessionFactoryName, session ->
+        session.get(Person, id)
+    }
+
+A profile applies to loading entities by id, through `get()`, `load()` and
+association traversal, not to HQL queries. Hibernate 3.6 only supports the
+`join` style, and fails building the SessionFactory if a profile names an
+unknown entity or association.
+
+### Batch Fetch Tuning
+
+Lazy associations without a `batch-size` load one row per query, which quickly
+turns a list screen into hundreds of selects. The plugin can count, for each
+entity and collection role, how many of these lazy loads every `withHibernate3`
+block triggers, and recommend batch sizes from what it saw
+
+    sessionFactory {
+        batchTuning {
+            apply        = false // set recommended sizes when the factory is next built
+            maxBatchSize = 50
+            minSessions  = 10    // blocks that must have loaded an entity or role
+            samples      = 256   // per block counts kept per entity or role
+        }
+    }
+
+A recommended size covers 90% of the recorded blocks. Each recommendation comes
+with the queries those blocks ran and an estimate of what they would have run
+with the new size
+
+    BatchFetchTuner tuner = BatchFetchTuner.forSessionFactory('default')
+    tuner.recommendations.each { println "${it.name}: ${it.currentBatchSize} -> ${it.batchSize}, ${it.queriesBefore} -> ${it.queriesAfter} queries" }
+    tuner.dump(new PrintWriter(System.out))
+
+With `apply = true` the recommendations are set on the mappings the next time
+the factory is built, typically through `Hibernate3Connector.reload()`, as counts
+survive the reload, but not a disconnect. A reload that fails to build keeps
+the counts. Sizes are only raised. `dump()` then also lists the applied
+sizes next to the queries measured since. Counting adds a persistence context
+lookup per proxy initialization, so leave it off once the sizes have settled.
+
+### Paged Queries
+
+Large result sets can be browsed without loading them all at once.
+`griffon.plugins.hibernate3.PagedQueryList` is a read-only `java.util.List` backed
+by a `PagedQuery` (HQL or Criteria). A count query supplies its size. Pages are
+fetched on demand by a background thread, each one in its own read-only session,
+and only the most recently used pages are kept in memory. Pages following the
+last requested one are prefetched.
+
+    def rows = new PagedQueryList(DefaultHibernate3Provider.instance, 'default',
+        PagedQuery.hql('from Person p where p.active = :active order by p.name', [active: true]),
+        200,  // page size
+        10,   // pages kept in memory
+        1)    // pages prefetched
+    table.model = new PagedQueryTableModel(rows, 'name', 'lastname', 'email')
+
+`PagedQueryTableModel` never blocks the UI thread. Rows whose page has not arrived
+yet are rendered empty and repainted once the page is loaded. Call `dispose()` on
+the list when it is no longer needed.
+
+### Spilling Large Results to Disk
+
+Screens that need random access over very large result sets may copy the rows of
+a query to a local memory-mapped file instead of keeping them on the heap
+
+    SpilledResult result = spillHibernate3('default',
+        'select o.id as id, o.customer.name as customer, o.total as total from Order o')
+    int[] byTotal = result.sort(result.getColumnIndex('total'), false)
+    int[] big = result.filter(byTotal, { r, row -> r.getDouble(row, 2) > 1000d } as SpilledResult.RowPredicate)
+    println result.getString(big[0], 1)
+    result.close()
+
+The query is read once with a forward-only cursor and stored column by column.
+Sorting and filtering work on row indices and read values straight from the
+mapped file, so the database is not queried again. `SpilledResult.spill(session, query, columnNames, directory)`
+does the same from inside a `withHibernate3` block. Call `close()` to delete the
+file once the result is no longer needed. The variant taking column names and
+a spill directory is available on the provider,
+`hibernate3Provider.spillHibernate3(name, hql, params, columnNames, directory)`.
+
+### Columnar Projections
+
+Analytical queries that aggregate many numeric rows can skip entity hydration
+and boxing with `griffon.plugins.hibernate3.ColumnarProjection`. Columns are
+copied from the JDBC `ResultSet` into `long[]`, `double[]` or dictionary encoded
+string columns, declared in select clause order
+
+    withHibernate3 { sessionFactoryName, session ->
+        ColumnarResult result = ColumnarProjection.hql(session, 'select o.region, o.total from Order o where o.year = ?')
+            .stringColumn('region')
+            .doubleColumn('total')
+            .parameters(2013)
+            .list()
+        double[] totals = result.getDoubles(1)
+        for (int i = 0; i < result.rowCount; i++) { ... }
+    }
+
+HQL is translated to SQL once through the query plan cache. Native SQL is
+supported with `ColumnarProjection.sql()`. Arrays grow in chunks of `chunkSize(n)`
+rows. `stream(handler)` hands each chunk to a `ColumnarProjection.ChunkHandler`
+instead of accumulating them.
+### Bulk Export and Import
+
+`griffon.plugins.hibernate3.EntityTransfer` moves whole tables to and from CSV or
+a compact binary format without loading them into a session
+
+    long written = EntityTransfer.exportEntity('default', 'Person', new File('people.csv'), EntityTransfer.Format.CSV)
+    EntityTransfer.exportQuery('default', 'select p.id as id, p.name as name from Person p where p.active = :active',
+        [active: true], new File('active.bin'), EntityTransfer.Format.BINARY)
+    long read = EntityTransfer.importEntity('archive', 'Person', new File('people.csv'), EntityTransfer.Format.CSV, 1000, 20000)
+
+Exports scroll through a `StatelessSession` with a forward-only cursor and write
+through a buffered NIO `FileChannel`. Entity exports contain the identifier and
+every property that is neither a collection nor a component; many-to-one
+associations are written as the associated identifier. Imports parse the file
+from a `FileChannel` and insert rows with batched JDBC statements (500 rows per
+batch by default), committing every 10000 rows. Columns are matched by name, so
+query exports can be imported when their aliases match property names. Importing
+is supported for entities mapped to a single table with a simple identifier.
+
+### Benchmark
+
+The plugin comes with a workload benchmark that exercises it end to end against an
+embedded H2 database. The harness and the H2 driver are build-time only, neither
+ends up in the plugin jar nor in applications using it
+
+    griffon hibernate3-benchmark --rows=50000 --concurrency=1,4,16 --report=target/bench.json
+
+It generates a schema of `entities` dynamic-map entities, each with `properties`
+columns, and connects a `benchmark` session factory through `Hibernate3Connector`.
+It then measures:
+
+ * startup time
+ * bulk insert throughput (`rows`, `batchSize`)
+ * point lookup and range query latency (`operations` per thread, `rangeSize`) at each concurrency level
+ * heap retained by empty sessions and by sessions holding `sessionEntities` entities
+
+Results are written as JSON, including the Java and Griffon versions, so runs can
+be compared across plugin versions. `BootstrapHibernate3` is not run against
+the benchmark database, which is dropped and shut down once the run completes.
+
+
 Configuration
 -------------
 ### Mapping Files
@@ -105,6 +302,24 @@ must have a companion mapping file `sample/Person.hbm.xml`. These mapping files
 must be placed under `griffon-app/resources` in order to be picked up
 automatically by the plugin.
 
+### Bytecode Instrumentation
+
+Mapped entity classes may be instrumented for Hibernate field interception at
+build time. This enables lazy loading of individual properties (LOBs, large text)
+declared with `lazy="true"` in their mapping. Unmodified instrumented entities
+can also skip the full snapshot comparison at flush time. Enable it in
+`griffon-app/conf/BuildConfig.groovy`
+
+    griffon.hibernate3.instrument.enabled = true
+    // classes or packages ('sample.docs.*'), defaults to every mapped class
+    griffon.hibernate3.instrument.includes = ['sample.Document', 'sample.archive.*']
+    griffon.hibernate3.instrument.excludes = []
+    // also intercept direct field access from non-entity classes
+    griffon.hibernate3.instrument.extended = false
+
+Mapped classes are discovered from the `*.hbm.xml` files found under
+`griffon-app/resources`. They are instrumented with javassist right after compilation.
+
 ### Hibernate3Aware AST Transformation
 
 The preferred way to mark a class for method injection is by annotating it with
@@ -112,6 +327,41 @@ The preferred way to mark a class for method injection is by annotating it with
 `griffon.plugins.hibernate3.Hibernate3ContributionHandler` interface and default
 behavior that fulfills the contract.
 
+### Hibernate3Repository AST Transformation
+
+Services that build HQL strings inside `withHibernate3` closures pay for string
+building, dynamic dispatch and query plan lookups on every call. Declaring the
+queries instead lets the compiler implement them. Annotate an abstract class with
+`@griffon.plugins.hibernate3.Hibernate3Repository` and every abstract method gets
+an implementation
+
+    @Hibernate3Repository(Person)
+    abstract class PersonRepository {
+        abstract Person findByUsername(String username)
+        abstract List<Person> findAllByLastnameAndActive(String lastname, boolean active)
+        abstract long countByActive(boolean active)
+
+        @Hibernate3Query('from Person p where p.age > ? order by p.age')
+        abstract List<Person> olderThan(int age)
+
+        @Hibernate3Query('update Person p set p.active = false where p.lastLogin < ?')
+        abstract int deactivateBefore(Date date)
+    }
+
+Methods named `findBy`, `findAllBy` or `countBy` followed by property names joined
+with `And` are turned into HQL, other methods take it from `@Hibernate3Query`.
+Arguments are bound to the `?` placeholders in order. `findBy` returns a single
+result unless the method returns a `List`, `Collection` or `Iterable`. Queries
+starting with `update`, `delete` or `insert` run as bulk updates. Use `entityName`
+instead of the class for entities not mapped to a class, and `sessionFactory` to
+query another session factory than `default`.
+
+The class also gets the methods of `@Hibernate3Aware` and is no longer abstract.
+Its queries are translated when the session factory starts, or as soon as the
+class is loaded if it starts later, so they always hit the query plan cache. Add
+`@CompileStatic` to the class to have the generated methods statically compiled.
+Java classes get the same treatment through the Lombok handlers.
+
 ### Dynamic Method Injection
 
 Dynamic methods will be added to controllers by default. You can
@@ -122,6 +372,23 @@ change this setting by adding a configuration flag in `griffon-app/conf/Config.g
 Dynamic method injection will be skipped for classes implementing
 `griffon.plugins.hibernate3.Hibernate3ContributionHandler`.
 
+Injected methods are shared by all enhanced classes and call the provider
+directly. To avoid touching metaclasses at all, set
+
+    griffon.hibernate3.injection = 'none'
+
+and make the methods available through `griffon.plugins.hibernate3.Hibernate3Category`
+instead, either in a `use(Hibernate3Category) { ... }` block or application wide
+by registering it as a Groovy extension module in
+`META-INF/services/org.codehaus.groovy.runtime.ExtensionModule`
+
+    moduleName = hibernate3-extension
+    moduleVersion = 1.0
+    extensionClasses = griffon.plugins.hibernate3.Hibernate3Category
+
+Statically compiled code calls extension methods directly. The category uses
+the default provider, `Hibernate3Enhancer.useProvider()` replaces it in tests.
+
 ### Events
 
 The following events will be triggered by this addon
@@ -130,6 +397,10 @@ The following events will be triggered by this addon
  * Hibernate3ConfigurationAvailable[configuration, dataSourceName, dataSourceConfig, hibernateConfig] - triggered before opening the SessionFactory
  * Hibernate3SessionFactoryCreated[config, dataSourceName, sesstionFactory] - triggered after the SessionFactory was created
  * Hibernate3ConnectEnd[dataSourceName, sessionFactory] - triggered after connecting to the database
+ * Hibernate3EntitiesChanged[sessionFactoryName, changes] - triggered after changes were committed, when change events are enabled
+ * Hibernate3ReloadStart[config, dataSourceName, sessionFactory] - triggered before a SessionFactory is rebuilt by `reload()`
+ * Hibernate3ReloadEnd[dataSourceName, sessionFactory] - triggered after the rebuilt SessionFactory replaced the previous one
+ * Hibernate3SlowStatement[sessionFactoryName, record] - triggered asynchronously when a profiled statement exceeds `profileSql.slowThreshold`
  * Hibernate3DisconnectStart[config, dataSourceName, sessionFactory] - triggered before disconnecting from the database
  * Hibernate3DisconnectEnd[config, dataSourceName] - triggered after disconnecting from the database
 
@@ -149,6 +420,270 @@ The name of the seesion factory must match the name of a configured dataSource i
 `DataSource.groovy`. This block can be used inside the `environments()` block in
 the same way as the default sessionFactory block is used.
 
+### Evicting Idle Session Factories
+
+Applications that connect to many databases on demand, one per tenant for
+example, may bound the number of session factories kept in memory
+
+    sessionFactoryEviction {
+        maxActive           = 20  // connected factories before the least recently used idle one is evicted
+        idleTimeout         = 900 // seconds without use before a factory is evicted, 0 disables it
+        maxConcurrentBuilds = 2   // factories built at the same time
+        exclude             = ['default']
+    }
+
+This block sits next to the `sessionFactory` and `sessionFactories` blocks. Evicted
+factories are disconnected through `Hibernate3Connector.disconnect()`, which closes
+the SessionFactory and disconnects its dataSource. They are rebuilt the next time
+`withHibernate3` asks for them. Factories in use by a `withHibernate3` block are
+never evicted, and neither are factories whose `dbCreate` is `create-drop`.
+
+### Reloading a Session Factory
+
+Settings such as cache or batch sizes can be changed without restarting the
+application. Edit `Hibernate3Config` and call
+
+    Hibernate3Connector.instance.reloadAsync(app, 'default')
+
+A new SessionFactory is built in the background from a freshly loaded
+`Hibernate3Config`, while `withHibernate3` keeps using the current one. Once the
+build succeeds, the new factory replaces the old one atomically. Blocks that
+were already running finish on the previous factory. It is closed as soon as
+they are done, or after `reload.drainTimeout` seconds (60 by default). If the
+build fails, the current factory stays in place and the exception is reported
+through the returned `Future`. `reload(app, name)` does the same on the calling thread.
+Listeners added to the `EntityChangePublisher` or `SqlProfiler` of the factory
+are moved to those of the new one. The `WriteBehindQueue` is kept, so references
+to it stay valid, and its new settings are applied to it.
+
+The schema is not touched when reloading, and the existing dataSource is reused.
+Changes made to `DataSource.groovy` still require a disconnect and connect.
+Factories whose `dbCreate` is `create-drop` cannot be reloaded, because closing
+the previous factory would drop the schema.
+
+### Shutting Down
+
+When the application shuts down every connected session factory is disconnected
+through `Hibernate3Connector.disconnectAll()`, all of them at the same time.
+Each factory first flushes its write-behind queue, then stops accepting new
+`withHibernate3` blocks and waits for the running ones to finish, for at most
+`shutdown.drainTimeout` seconds
+
+    sessionFactory {
+        shutdown {
+            drainTimeout = 30 // seconds, the default
+        }
+    }
+
+Blocks started while a factory drains fail with an `IllegalStateException`.
+Blocks still running once the timeout expires are logged, and the factory is
+closed regardless. Drained factories are closed one at a time, running
+`BootstrapHibernate3.destroy` and disconnecting their dataSource.
+`Hibernate3Connector.disconnect(app, name)` drains the same way.
+
+### Warming Up
+
+The first requests after launch pay for opening pool connections, for
+Hibernate's lazy initialization and for the database's cold plan cache. A warm-up
+phase can pay those costs at connect time instead
+
+    sessionFactory {
+        warmup {
+            connections     = 5            // pool connections opened in parallel
+            validationQuery = 'select 1'   // Connection.isValid() when omitted
+            queries         = ['from Person p where p.id = -1']
+            namedQueries    = ['Person.byLastname': [lastname: 'Smith']]
+            background      = true         // don't delay Hibernate3ConnectEnd
+            timeout         = 30           // seconds to wait for connections
+        }
+    }
+
+All connections are opened and validated before any of them is returned to the
+pool. Each query then runs in a read-only session with a single-row limit, and its
+transaction is rolled back. `queries` and `namedQueries` take a list, or a map of
+queries to the values of their named parameters. A query with parameters left
+unbound is only translated to SQL, filling Hibernate's plan cache without running. The warm-up runs after `BootstrapHibernate3.init()`. It
+finishes before `Hibernate3ConnectEnd` unless `background` is set. Failures are
+logged and never prevent the session factory from being used.
+
+### Query Plan Precompilation
+
+Hibernate translates HQL to SQL the first time a query runs. Queries listed in
+a `queryPlans` block are translated when the session factory starts instead. This
+fills the query plan cache and reports bad HQL at startup
+
+    sessionFactory {
+        queryPlans {
+            queries       = ['from Person p where p.lastname = :lastname']
+            namedQueries  = true   // every named HQL query found in the mappings, or a list of names
+            background    = true   // translate on a daemon thread
+            failOnError   = true   // make connect() fail on bad queries, ignored in background
+            cacheSize     = 512    // plans held by strong references (hibernate.query.plan_cache_max_strong_references)
+            softCacheSize = 4096   // plans held by soft references (hibernate.query.plan_cache_max_soft_references)
+        }
+    }
+
+Translation errors are listed together in a single message. Hibernate's own
+startup check of named queries is turned off when `background` is set, so it does
+not run twice or delay startup.
+
+### SQL Profiling
+
+`logSql` prints statements without timings. For measurements, enable the SQL
+profiler per session factory
+
+    sessionFactory {
+        profileSql {
+            bufferSize    = 4096 // statements kept, the oldest ones are overwritten
+            slowThreshold = 250  // milliseconds, 0 disables Hibernate3SlowStatement events
+        }
+    }
+
+`profileSql = true` enables it with the defaults. Connections handed to Hibernate
+are wrapped, and each statement is recorded with:
+
+ * its SQL and the number of bind parameters
+ * execute time, fetch time and rows read or affected
+ * the session factory and the code that called the enclosing `withHibernate3` block
+
+Records are kept in a fixed-size ring buffer
+
+    SqlProfiler profiler = SqlProfiler.forSessionFactory('default')
+    profiler.dump(new PrintWriter(System.out))  // summary by SQL shape, then every statement
+    profiler.summarize().each { println "${it.count} x ${it.totalNanos / 1e6}ms ${it.shape}" }
+    profiler.clear()
+
+Statements slower than `slowThreshold` trigger a `Hibernate3SlowStatement` event.
+Finding the caller walks the stack once per `withHibernate3` block, so keep the
+profiler off in production unless it is needed.
+
+### Monitoring
+
+Timings of a session factory can be fed to your own metrics or event recording
+by implementing `griffon.plugins.hibernate3.Hibernate3Monitor`, or by extending
+`Hibernate3MonitorAdapter` to override only some of its callbacks. Monitors are
+listed per session factory, as classes or class names with a no-args constructor
+
+    sessionFactory {
+        monitors = [com.acme.MetricsHibernate3Monitor]
+    }
+
+Monitors are told about
+
+ * the phases of `connect()`: configuration, dialect detection, and building the
+   factory, which includes schema export
+ * sessions opened and closed by `withHibernate3` blocks, with their duration
+ * transactions begun and completed, committed or not, with their duration
+ * flushes, with their duration and the number of entities in the session
+
+Callbacks run on the thread doing the work, so keep them short. A monitor that
+throws is logged and ignored. Nothing is recorded when no monitors are configured.
+
+### Bulkhead
+
+A session factory can limit how many `withHibernate3` blocks run on it at once,
+so that a burst of work queues up in the application instead of exhausting the
+connection pool
+
+    sessionFactory {
+        bulkhead {
+            maxConcurrent      = 10   // blocks running at once
+            maxQueue           = 50   // blocks waiting, 0 refuses right away
+            timeout            = 2000 // milliseconds a block may wait
+            interactiveReserve = 2    // slots background blocks can't take
+        }
+    }
+
+A block that finds the queue full, or that waits longer than `timeout` (or past
+its own deadline, see Timeouts and Cancellation), fails right away with a
+`BulkheadFullException` before any session is opened.
+Blocks nested in a running block on the same factory and thread reuse its slot.
+
+Blocks are interactive unless told otherwise. Background blocks, such as those of
+the write-behind queue and warm-up, only run when no interactive block is waiting,
+and never take the slots kept by `interactiveReserve`
+
+    withHibernate3('default', new Hibernate3Options().priority(Hibernate3Options.Priority.BACKGROUND)) { sessionFactoryName, session -> ... }
+
+Queue depth and counters are available from `Bulkhead.forSessionFactory('default').metrics`:
+`active`, `activeBackground`, `queued`, `queuedInteractive`, `queuedBackground`,
+`maxQueueDepth`, `admitted`, `rejected`, `timedOut` and `waitMillis`.
+
+### Block Identifier Generator
+
+Inserting many rows through the session pays a sequence or table round-trip
+per row with the standard generators. `griffon.plugins.hibernate3.id.BlockSequenceGenerator`
+reserves a block of ids in one round-trip instead, and hands them out from
+several blocks at once, picked by thread, without locking
+
+    <id name="id">
+        <generator class="griffon.plugins.hibernate3.id.BlockSequenceGenerator">
+            <param name="sequence_name">person_seq</param>
+            <param name="block_size">1000</param>
+        </generator>
+    </id>
+
+It accepts the parameters of `org.hibernate.id.enhanced.SequenceStyleGenerator`,
+and falls back to a table on databases without sequences. Sizes can also be set
+per session factory, and mappings using other strategies can be switched over
+to it without editing them
+
+    sessionFactory {
+        idGenerator {
+            blockSize  = 1000            // ids reserved per round-trip
+            stripes    = 8               // blocks in use at once, the number of processors by default
+            blockSizes = ['com.acme.OrderLine': 10000]
+            replace    = ['native', 'sequence']
+        }
+    }
+
+Parameters in the mappings take precedence. The sequence must be incremented by
+the block size and be used by this generator only, so entities with different
+block sizes need their own sequence. Schema export creates sequences that way,
+but existing sequences, such as those of mappings switched over with `replace`
+while `dbCreate` is `update` or `validate`, usually step by 1. The generator
+checks the step when it first reserves a block, and fails with an
+`IdentifierGenerationException` instead of handing out overlapping ids.
+Ids are unique but not in insertion order across threads. Unused ids of a block
+are skipped once the SessionFactory closes.
+
+### Compact Column Types
+
+Values that would otherwise be stored as delimited strings or child tables can
+be kept in a single compact column. These types are registered on every session
+factory under short names, set `userTypes = false` to leave them out
+
+ * `long-array`, `double-array`, `float-array` - primitive arrays as variable
+   length binary of little-endian values, read and written without boxing
+ * `uuid-bytes` - a `java.util.UUID` as 16 bytes
+ * `compressed-text` - a `String`, such as a large text or a JSON document, as
+   variable length binary of deflated UTF-8
+
+Columns are exported with the dialect's `LONGVARBINARY` type, such as `bytea` on
+PostgreSQL or `longblob` on MySQL. Binary columns are 255 bytes long by default,
+so map UUIDs with a length of 16
+
+    @Type(type = 'uuid-bytes')
+    @Column(length = 16)
+    UUID reference
+
+Reference them by name in the mappings
+
+    @Type(type = 'double-array')
+    double[] samples
+
+    <property name="payload" type="compressed-text"/>
+
+`griffon.plugins.hibernate3.types.EnumSetType` stores an `EnumSet` as a BIGINT
+bitmask. It needs the enum class as a parameter, so it is referenced by class name
+
+    @Type(type = 'griffon.plugins.hibernate3.types.EnumSetType',
+          parameters = @Parameter(name = 'enumClass', value = 'com.acme.Permission'))
+    EnumSet<Permission> permissions
+
+The bitmask is built from the enum constants' ordinals, so don't reorder the
+constants once rows are stored.
+
 ### Configuration Storage
 
 The plugin will load and store the contents of `Hibernate3Config.groovy` inside the
@@ -165,6 +700,94 @@ behavior is not desired then specify the following configuration flag in
 
     griffon.hibernate3.connect.onstartup = false
 
+### Persistence Context Guard
+
+Long running `withHibernate3` blocks may keep loading entities into their session
+until flushes become slow and the heap runs out. A guard can be configured per
+session factory in `Hibernate3Config.groovy`
+
+    sessionFactory {
+        guard {
+            warnThreshold  = 10000  // log a warning with the call site
+            clearThreshold = 50000  // flush and clear blocks marked as safe
+            failThreshold  = 200000 // throw PersistenceContextOverflowException
+            checkInterval  = 100    // loads/saves between two checks
+        }
+    }
+
+Thresholds count the entities plus collections held by a session. A threshold
+of 0 disables its action. Blocks that do not keep references to entities loaded
+earlier may opt into automatic flushing and clearing
+
+    withHibernate3 { sessionFactoryName, session ->
+        PersistenceContextGuard.markClearSafe()
+        ...
+    }
+
+The session is flushed and cleared right before its next method call, never in
+the middle of a Hibernate operation. `PersistenceContextGuard.forSessionFactory(name).metrics`
+reports the high-water mark and how many warnings, clears and failures occurred. A block
+that hits the fail threshold is rolled back, even if it catches the exception.
+
+### Write-Behind Queue
+
+Screens that issue many tiny writes may hand them to a write-behind queue that
+groups them into fewer transactions. Enable it per session factory
+
+    sessionFactory {
+        writeBehind {
+            maxBatchSize = 100   // operations per transaction
+            maxDelay     = 50    // milliseconds to wait for more operations
+            capacity     = 10000 // pending operations before enqueueing is rejected
+        }
+    }
+
+then enqueue persist, merge or delete operations
+
+    WriteBehindQueue queue = WriteBehindQueue.forSessionFactory('default')
+    Future saved = queue.persist(new Person(name: 'Duke'))
+    queue.delete(oldPerson)
+
+A background thread commits the operations in the order they were enqueued.
+Each `Future` completes after its transaction commits. If a batch fails, it is
+rolled back and its operations are retried one transaction each, so only the
+operations that fail on their own complete exceptionally. `cancel()` only
+succeeds while an operation waits in the queue, not once its batch has taken it.
+Enqueueing throws
+`RejectedExecutionException` when the queue is full. `flush(timeout, unit)` waits
+for the operations enqueued so far. Pending operations are written before the
+session factory disconnects.
+
+### Change Events
+
+Views that need to stay fresh may react to committed changes instead of
+polling. Enable change capture per session factory
+
+    sessionFactory {
+        changeEvents {
+            window = 100 // milliseconds to collect changes before delivery
+        }
+    }
+
+`changeEvents = true` enables it with the default window. Inserts, updates and
+deletes are recorded from the post events of the session that flushed them, so
+ids are the generated ones and entity names are the mapped ones; collection
+changes count as updates of their owner. Changes are published only after their transaction commits. Changes made
+within the window are coalesced per instance: an insert followed by updates is
+reported as an insert, and an insert followed by a delete is not reported.
+Batches are delivered from a background thread as a `Hibernate3EntitiesChanged`
+event carrying a list of `EntityChange` (entity name, id, operation), and to any
+`EntityChangeListener` added to `EntityChangePublisher.forSessionFactory(name)`
+
+    onHibernate3EntitiesChanged = { String sessionFactoryName, List<EntityChange> changes ->
+        if (EntityChangePublisher.idsByEntityName(changes).containsKey('sample.Person')) {
+            personList.refresh()
+        }
+    }
+
+Bulk HQL statements, native SQL and `StatelessSession`s bypass interceptors and are
+not reported. An interceptor configured with `entityInterceptor` keeps working.
+
 ### Example
 
 A trivial sample application can be found at [https://github.com/aalmiray/griffon_sample_apps/tree/master/persistence/hibernate3][3]
@@ -183,6 +806,14 @@ The contract for this interface looks like this
         <R> R withHibernate3(CallableWithArgs<R> callable);
         <R> R withHibernate3(String databaseName, Closure<R> closure);
         <R> R withHibernate3(String databaseName, CallableWithArgs<R> callable);
+        <R> R withHibernate3(SessionCallback<R> callback);
+        <R> R withHibernate3(String databaseName, SessionCallback<R> callback);
+        <R> R withHibernate3(String databaseName, Hibernate3Options options, Closure<R> closure);
+        <R> R withHibernate3(String databaseName, Hibernate3Options options, CallableWithArgs<R> callable);
+        <R> R withHibernate3(String databaseName, Hibernate3Options options, SessionCallback<R> callback);
+        SpilledResult spillHibernate3(String databaseName, String hql);
+        SpilledResult spillHibernate3(String databaseName, String hql, Map<String, ?> params);
+        SpilledResult spillHibernate3(String databaseName, String hql, Map<String, ?> params, String[] columnNames, File directory);
     }
 
 It's up to you define how these methods need to be implemented for your tests.
@@ -194,6 +825,14 @@ arguments it receives
         public <R> R withHibernate3(CallableWithArgs<R> callable) { null }
         public <R> R withHibernate3(String databaseName, Closure<R> closure) { null }
         public <R> R withHibernate3(String databaseName, CallableWithArgs<R> callable) { null }
+        public <R> R withHibernate3(SessionCallback<R> callback) { null }
+        public <R> R withHibernate3(String databaseName, SessionCallback<R> callback) { null }
+        public <R> R withHibernate3(String databaseName, Hibernate3Options options, Closure<R> closure) { null }
+        public <R> R withHibernate3(String databaseName, Hibernate3Options options, CallableWithArgs<R> callable) { null }
+        public <R> R withHibernate3(String databaseName, Hibernate3Options options, SessionCallback<R> callback) { null }
+        public SpilledResult spillHibernate3(String databaseName, String hql) { null }
+        public SpilledResult spillHibernate3(String databaseName, String hql, Map<String, ?> params) { null }
+        public SpilledResult spillHibernate3(String databaseName, String hql, Map<String, ?> params, String[] columnNames, File directory) { null }
     }
 
 This implementation may be used in the following way
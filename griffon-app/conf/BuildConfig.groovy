@@ -16,6 +16,10 @@ griffon.project.dependency.resolution = {
         build('org.eclipse.jdt:org.eclipse.jdt.core:3.6.0.v_A58') {
             export = false
         }
+        // hibernate3-benchmark only
+        build('com.h2database:h2:1.3.170') {
+            export = false
+        }
         String lombokIdea = '0.5'
         build("de.plushnikov.lombok-intellij-plugin:processor-api:$lombokIdea",
               "de.plushnikov.lombok-intellij-plugin:processor-core:$lombokIdea",
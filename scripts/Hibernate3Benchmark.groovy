@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+
+/**
+ * Runs the Hibernate3 workload benchmark against an embedded H2 database.
+ *
+ *   griffon hibernate3-benchmark --rows=50000 --concurrency=1,4,16 --report=target/bench.json
+ *
+ * @author Andres Almiray
+ */
+
+includeTargets << griffonScript('_GriffonBootstrap')
+
+target(name: 'hibernate3Benchmark', description: 'Runs the Hibernate3 workload benchmark', prehook: null, posthook: null) {
+    depends(bootstrap)
+
+    Map options = [:]
+    ['entities', 'properties', 'rows', 'batchSize', 'operations', 'rangeSize', 'sessionEntities'].each { String key ->
+        if (argsMap[key]) options[key] = argsMap[key] as int
+    }
+    if (argsMap.concurrency) options.concurrency = argsMap.concurrency.toString().split(',').collect { it.trim() as int }
+    if (argsMap.url) options.url = argsMap.url
+    options.report = argsMap.report ?: "${projectTargetDir}/hibernate3-benchmark-${System.currentTimeMillis()}.json"
+
+    ClassLoader loader = binding.variables.classLoader ?: Thread.currentThread().contextClassLoader
+    def app = loader.loadClass('griffon.util.ApplicationHolder').application
+    // the harness is kept out of the plugin jar and compiled on demand
+    File pluginDir = binding.variables.containsKey('hibernate3PluginDir') ? hibernate3PluginDir as File : new File(basedir)
+    File source = new File(pluginDir, 'src/benchmark/griffon/plugins/hibernate3/benchmark/Hibernate3Benchmark.groovy')
+    def benchmark = new GroovyClassLoader(loader).parseClass(source).newInstance(app, options)
+    File report = benchmark.run()
+    event('StatusFinal', ["Hibernate3 benchmark report written to ${report.absolutePath}"])
+}
+setDefaultTarget('hibernate3Benchmark')
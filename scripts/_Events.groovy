@@ -30,4 +30,74 @@ eventPackageResourcesEnd = {
             mappingsFile.append((res.file.absolutePath - resourcesDir.absolutePath)[1..-1] + '\n')
         }
     }
-}
\ No newline at end of file
+}
+
+eventCompileEnd = {
+    if (compilingPlugin('hibernate3')) return
+    def instrument = buildConfig.griffon?.hibernate3?.instrument
+    if (!instrument?.enabled) return
+
+    List<String> entities = hibernate3MappedClassNames().findAll { String className ->
+        hibernate3MatchesAny(className, instrument.includes ?: ['*']) &&
+            !hibernate3MatchesAny(className, instrument.excludes ?: [])
+    }
+    Set<File> classFiles = entities.collect { String className ->
+        new File(classesDir, className.replace('.', '/') + '.class')
+    }.findAll { it.exists() } as Set
+    if (!classFiles) return
+
+    ClassLoader loader = binding.variables.classLoader ?: Thread.currentThread().contextClassLoader
+    Class loggerClass = loader.loadClass('org.hibernate.bytecode.buildtime.Logger')
+    Class optionsClass = loader.loadClass('org.hibernate.bytecode.buildtime.Instrumenter$Options')
+    Class instrumenterClass = loader.loadClass('org.hibernate.bytecode.buildtime.JavassistInstrumenter')
+
+    def logger = [
+        trace: { String msg -> },
+        debug: { String msg -> },
+        info: { String msg -> },
+        warn: { String msg -> event('StatusError', ["Hibernate3 instrumentation: ${msg}"]) },
+        error: { String msg -> event('StatusError', ["Hibernate3 instrumentation: ${msg}"]) }
+    ].asType(loggerClass)
+    boolean extended = instrument.extended as boolean
+    def options = [performExtendedInstrumentation: { -> extended }].asType(optionsClass)
+
+    instrumenterClass.newInstance(logger, options).execute(classFiles)
+    event('StatusUpdate', ["Instrumented ${classFiles.size()} Hibernate3 entity classes"])
+}
+
+/*
+ * Collects the names of all classes mapped by *.hbm.xml files found in the
+ * application's resources.
+ */
+hibernate3MappedClassNames = {
+    File resources = new File("${basedir}/griffon-app/resources")
+    if (!resources.exists()) return []
+    Resource[] mappings = resolveResources("file://${resources.canonicalPath}/**/*.hbm.xml")
+    List<String> classNames = []
+    mappings.each { Resource res ->
+        XmlSlurper slurper = new XmlSlurper(false, false)
+        // don't go to the network for the DTD
+        slurper.setFeature('http://apache.org/xml/features/nonvalidating/load-external-dtd', false)
+        def mapping = slurper.parse(res.file)
+        String pkg = mapping.@package.text()
+        mapping.depthFirst().findAll { node ->
+            node.name() in ['class', 'subclass', 'joined-subclass', 'union-subclass'] && node.@name.text()
+        }.each { node ->
+            String name = node.@name.text()
+            classNames << (pkg && !name.contains('.') ? "${pkg}.${name}" : name)
+        }
+    }
+    classNames.unique()
+}
+
+/*
+ * Patterns are either fully qualified class names or package names ending
+ * with '.*', which match the package and its subpackages. '*' matches all.
+ */
+hibernate3MatchesAny = { String className, patterns ->
+    patterns.any { String pattern ->
+        if (pattern == '*') return true
+        if (pattern.endsWith('.*')) return className.startsWith(pattern[0..-2])
+        className == pattern
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3.benchmark
+
+import griffon.core.GriffonApplication
+import griffon.plugins.datasource.DataSourceConnector
+import griffon.plugins.hibernate3.Hibernate3Connector
+import griffon.plugins.hibernate3.Hibernate3Holder
+import griffon.plugins.hibernate3.Hibernate3Provider
+import groovy.json.JsonBuilder
+import org.hibernate.Session
+import org.hibernate.SessionFactory
+import org.hibernate.cfg.Configuration
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.SQLException
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Macro benchmark of the plugin against an embedded H2 database.
+ * <p>Generates a schema of {@code entities} dynamic-map entities with
+ * {@code properties} columns each, connects a dedicated {@code benchmark}
+ * session factory through {@code Hibernate3Connector} and measures startup time,
+ * bulk insert throughput, point lookup and range query latency at several
+ * concurrency levels, and memory retained per session. Results are written as
+ * JSON so that runs of different versions can be compared. The application's
+ * {@code BootstrapHibernate3} is not run, and the database is dropped and, when
+ * in memory, shut down at the end.</p>
+ * <p>This class is not part of the plugin jar, the {@code hibernate3-benchmark}
+ * script compiles it when run.</p>
+ * <p>Options, all optional:</p>
+ * <ul>
+ * <li>entities (10), properties (10), rows (100000), batchSize (50)</li>
+ * <li>concurrency ([1, 2, 4, 8]), operations (2000, per thread and level), rangeSize (100)</li>
+ * <li>sessionEntities (1000), url ('jdbc:h2:mem:hibernate3benchmark;DB_CLOSE_DELAY=-1')</li>
+ * <li>report (File or path of the JSON report)</li>
+ * </ul>
+ *
+ * @author Andres Almiray
+ */
+class Hibernate3Benchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Benchmark)
+    static final String SESSION_FACTORY_NAME = 'benchmark'
+    private static final String ENTITY_PREFIX = 'BenchEntity'
+
+    private final GriffonApplication app
+    private final int entities
+    private final int properties
+    private final int rows
+    private final int batchSize
+    private final List<Integer> concurrency
+    private final int operations
+    private final int rangeSize
+    private final int sessionEntities
+    private final String url
+    private final File report
+
+    Hibernate3Benchmark(GriffonApplication app, Map options = [:]) {
+        this.app = app
+        entities = (options.entities ?: 10) as int
+        properties = (options.properties ?: 10) as int
+        rows = (options.rows ?: 100000) as int
+        batchSize = (options.batchSize ?: 50) as int
+        concurrency = (options.concurrency ?: [1, 2, 4, 8]).collect { it as int }
+        operations = (options.operations ?: 2000) as int
+        rangeSize = (options.rangeSize ?: 100) as int
+        sessionEntities = (options.sessionEntities ?: 1000) as int
+        url = options.url ?: 'jdbc:h2:mem:hibernate3benchmark;DB_CLOSE_DELAY=-1'
+        report = options.report ? options.report as File : new File("hibernate3-benchmark-${System.currentTimeMillis()}.json")
+    }
+
+    /**
+     * Runs all measurements and writes the report.
+     *
+     * @return the report file
+     */
+    File run() {
+        Map results = [
+            environment: [
+                java: System.getProperty('java.version'),
+                vm: System.getProperty('java.vm.name'),
+                os: System.getProperty('os.name'),
+                processors: Runtime.runtime.availableProcessors(),
+                maxMemory: Runtime.runtime.maxMemory(),
+                griffon: app.metadata['app.griffon.version'],
+                timestamp: new Date().format("yyyy-MM-dd'T'HH:mm:ssZ")
+            ],
+            parameters: [
+                entities: entities, properties: properties, rows: rows, batchSize: batchSize,
+                concurrency: concurrency, operations: operations, rangeSize: rangeSize,
+                sessionEntities: sessionEntities, url: url
+            ]
+        ]
+
+        configure()
+        Closure mappingsListener = { Map args ->
+            if (args.dataSourceName == SESSION_FACTORY_NAME) addMappings(args.configuration)
+        }
+        app.addApplicationEventListener('Hibernate3ConfigurationAvailable', mappingsListener)
+        try {
+            long start = System.nanoTime()
+            Hibernate3Connector.instance.connect(app, Hibernate3Connector.instance.createConfig(app), SESSION_FACTORY_NAME)
+            results.startup = [millis: millis(System.nanoTime() - start)]
+            LOG.info("Benchmark session factory started in ${results.startup.millis}ms")
+
+            results.bulkInsert = bulkInsert()
+            results.pointLookup = concurrency.collect { int threads -> [threads: threads] + measure(threads, pointLookup()) }
+            results.rangeQuery = concurrency.collect { int threads -> [threads: threads] + measure(threads, rangeQuery()) }
+            results.memory = memoryPerSession()
+        } finally {
+            app.removeApplicationEventListener('Hibernate3ConfigurationAvailable', mappingsListener)
+            Hibernate3Connector.instance.disconnect(app, SESSION_FACTORY_NAME)
+            shutdownDatabase()
+        }
+
+        report.parentFile?.mkdirs()
+        report.text = new JsonBuilder(results).toPrettyString()
+        LOG.info("Benchmark report written to ${report.absolutePath}")
+        report
+    }
+
+    private void configure() {
+        ConfigObject dsConfig = DataSourceConnector.instance.createConfig(app)
+        dsConfig.dataSources."$SESSION_FACTORY_NAME" = new ConfigObject()
+        dsConfig.dataSources."$SESSION_FACTORY_NAME".putAll([
+            driverClassName: 'org.h2.Driver',
+            url: url,
+            username: 'sa',
+            password: '',
+            dbCreate: 'create-drop',
+            pool: [maxWait: 60000L, maxIdle: concurrency.max(), maxActive: concurrency.max() + 2]
+        ])
+        ConfigObject config = Hibernate3Connector.instance.createConfig(app)
+        config.sessionFactories."$SESSION_FACTORY_NAME" = new ConfigObject()
+        config.sessionFactories."$SESSION_FACTORY_NAME".putAll([
+            dialect: 'org.hibernate.dialect.H2Dialect',
+            bootstrap: false,
+            props: [
+                'hibernate.jdbc.batch_size': batchSize.toString(),
+                'hibernate.order_inserts': 'true',
+                'hibernate.default_entity_mode': 'dynamic-map'
+            ]
+        ])
+    }
+
+    /**
+     * Closes an in-memory database, which DB_CLOSE_DELAY would otherwise keep
+     * alive until the JVM exits.
+     */
+    private void shutdownDatabase() {
+        if (!url.startsWith('jdbc:h2:mem:')) return
+        try {
+            Connection connection = DriverManager.getConnection(url, 'sa', '')
+            try {
+                connection.createStatement().execute('SHUTDOWN')
+            } finally {
+                connection.close()
+            }
+        } catch (SQLException e) {
+            LOG.warn("Could not shut down benchmark database $url", e)
+        }
+    }
+
+    private void addMappings(Configuration configuration) {
+        for (int e = 0; e < entities; e++) {
+            StringBuilder xml = new StringBuilder()
+            xml << '<?xml version="1.0"?>\n'
+            xml << '<!DOCTYPE hibernate-mapping PUBLIC "-//Hibernate/Hibernate Mapping DTD 3.0//EN" "http://www.hibernate.org/dtd/hibernate-mapping-3.0.dtd">\n'
+            xml << "<hibernate-mapping><class entity-name=\"${ENTITY_PREFIX}${e}\" table=\"bench_entity_${e}\">"
+            xml << '<id name="id" type="long"><generator class="org.hibernate.id.enhanced.SequenceStyleGenerator">'
+            xml << "<param name=\"sequence_name\">bench_seq_${e}</param><param name=\"increment_size\">${batchSize}</param>"
+            xml << '<param name="optimizer">pooled</param></generator></id>'
+            for (int p = 0; p < properties; p++) {
+                xml << "<property name=\"p${p}\" type=\"${propertyType(p)}\" index=\"bench_${e}_p${p}\"/>".toString()
+            }
+            xml << '</class></hibernate-mapping>'
+            configuration.addXML(xml.toString())
+        }
+    }
+
+    private static String propertyType(int index) {
+        ['long', 'string', 'double', 'timestamp'][index % 4]
+    }
+
+    private static Object propertyValue(int index, long row) {
+        switch (index % 4) {
+            case 0: return row * 31L + index
+            case 1: return "value-${row}-${index}".toString()
+            case 2: return row / 7.0d
+            default: return new Date(1356998400000L + row * 1000L)
+        }
+    }
+
+    private Map bulkInsert() {
+        long start = System.nanoTime()
+        provider().withHibernate3(SESSION_FACTORY_NAME) { String name, Session session ->
+            String entityName = "${ENTITY_PREFIX}0"
+            for (long row = 0; row < rows; row++) {
+                Map entity = [:]
+                for (int p = 0; p < properties; p++) entity["p${p}".toString()] = propertyValue(p, row)
+                session.save(entityName, entity)
+                if ((row + 1) % batchSize == 0) {
+                    session.flush()
+                    session.clear()
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start
+        [rows: rows, millis: millis(elapsed), rowsPerSecond: rows * 1000000000d / elapsed]
+    }
+
+    private Closure pointLookup() {
+        long[] bounds = idBounds()
+        return { Session session, Random random ->
+            session.get("${ENTITY_PREFIX}0".toString(), bounds[0] + (long) (random.nextDouble() * (bounds[1] - bounds[0])))
+        }
+    }
+
+    private Closure rangeQuery() {
+        long[] bounds = idBounds()
+        String hql = "from ${ENTITY_PREFIX}0 e where e.id between :low and :high"
+        return { Session session, Random random ->
+            long low = bounds[0] + (long) (random.nextDouble() * Math.max(1L, bounds[1] - bounds[0] - rangeSize))
+            session.createQuery(hql).setLong('low', low).setLong('high', low + rangeSize).list()
+        }
+    }
+
+    private long[] idBounds() {
+        provider().withHibernate3(SESSION_FACTORY_NAME) { String name, Session session ->
+            Object[] minMax = session.createQuery("select min(e.id), max(e.id) from ${ENTITY_PREFIX}0 e").uniqueResult()
+            [minMax[0] ?: 0L, minMax[1] ?: 0L] as long[]
+        }
+    }
+
+    /**
+     * Runs {@code operation} {@code operations} times on each of {@code threads}
+     * threads, one withHibernate3 block per call, and summarizes the latencies.
+     */
+    private Map measure(int threads, Closure operation) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads)
+        CountDownLatch ready = new CountDownLatch(threads)
+        CountDownLatch go = new CountDownLatch(1)
+        try {
+            List<Future<long[]>> futures = (0..<threads).collect { int t ->
+                executor.submit({
+                    Random random = new Random(t)
+                    long[] latencies = new long[operations]
+                    ready.countDown()
+                    go.await()
+                    for (int i = 0; i < operations; i++) {
+                        long start = System.nanoTime()
+                        provider().withHibernate3(SESSION_FACTORY_NAME) { String name, Session session ->
+                            session.defaultReadOnly = true
+                            operation(session, random)
+                        }
+                        latencies[i] = System.nanoTime() - start
+                    }
+                    latencies
+                } as Callable<long[]>)
+            }
+            ready.await()
+            long start = System.nanoTime()
+            go.countDown()
+            long[] all = new long[threads * operations]
+            futures.eachWithIndex { Future<long[]> future, int t ->
+                System.arraycopy(future.get(), 0, all, t * operations, operations)
+            }
+            long elapsed = System.nanoTime() - start
+            Arrays.sort(all)
+            [
+                operations: all.length,
+                throughput: all.length * 1000000000d / elapsed,
+                meanMicros: mean(all) / 1000d,
+                p50Micros: percentile(all, 0.50d),
+                p95Micros: percentile(all, 0.95d),
+                p99Micros: percentile(all, 0.99d),
+                maxMicros: all[-1] / 1000d
+            ]
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private static double mean(long[] values) {
+        double total = 0d
+        for (long value : values) total += value
+        total / values.length
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)] / 1000d
+    }
+
+    /**
+     * Heap retained by an open session holding {@code sessionEntities} entities,
+     * and by an empty one. Approximate, based on used heap after explicit GCs.
+     */
+    private Map memoryPerSession() {
+        int sessions = 20
+        long before = usedMemory()
+        List<Session> open = []
+        SessionFactory sf = Hibernate3Holder.instance.getSessionFactory(SESSION_FACTORY_NAME)
+        try {
+            sessions.times { open << sf.openSession() }
+            long empty = ((usedMemory() - before) / sessions) as long
+            long loadedBefore = usedMemory()
+            open.each { Session session ->
+                session.createQuery("from ${ENTITY_PREFIX}0 e order by e.id").setMaxResults(sessionEntities).list()
+            }
+            long loaded = ((usedMemory() - loadedBefore) / sessions) as long
+            [
+                emptySessionBytes: empty,
+                sessionEntities: sessionEntities,
+                loadedSessionBytes: loaded,
+                bytesPerEntity: sessionEntities ? loaded / sessionEntities : 0
+            ]
+        } finally {
+            open*.close()
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.runtime
+        3.times {
+            System.gc()
+            Thread.sleep(50L)
+        }
+        runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private static double millis(long nanos) {
+        nanos / 1000000d
+    }
+
+    private Hibernate3Provider provider() {
+        Hibernate3Connector.instance.resolveHibernate3Provider(app)
+    }
+}
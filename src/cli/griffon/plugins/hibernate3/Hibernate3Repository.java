@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.codehaus.groovy.transform.GroovyASTTransformationClass;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Annotates an abstract class whose abstract finder methods should be
+ * implemented at compile time.</p>
+ * <p>Methods named {@code findBy<Property>[And<Property>]*},
+ * {@code findAllBy...} or {@code countBy...} are turned into HQL against the
+ * given entity, other methods take their HQL from {@code @Hibernate3Query}.
+ * Method arguments are bound to the query by position. The class also gets
+ * the methods of {@code @Hibernate3Aware}.</p>
+ *
+ * @author Andres Almiray
+ * @see Hibernate3Query
+ * @see org.codehaus.griffon.ast.Hibernate3RepositoryASTTransformation
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+@GroovyASTTransformationClass("org.codehaus.griffon.ast.Hibernate3RepositoryASTTransformation")
+public @interface Hibernate3Repository {
+    /**
+     * The mapped entity class.
+     */
+    Class value() default void.class;
+
+    /**
+     * The entity name, for entities not mapped to a class.
+     */
+    String entityName() default "";
+
+    String sessionFactory() default "default";
+}
@@ -33,7 +33,12 @@ public interface Hibernate3AwareConstants extends BaseConstants {
     String MYBATIS_PROVIDER_FIELD_NAME = "this$Hibernate3Provider";
     String METHOD_GET_MYBATIS_PROVIDER = "getHibernate3Provider";
     String METHOD_SET_MYBATIS_PROVIDER = "setHibernate3Provider";
+    String SESSION_CALLBACK_TYPE = "griffon.plugins.hibernate3.SessionCallback";
+    String OPTIONS_TYPE = "griffon.plugins.hibernate3.Hibernate3Options";
+    String SPILLED_RESULT_TYPE = "griffon.plugins.hibernate3.SpilledResult";
+    String JAVA_UTIL_MAP = "java.util.Map";
     String METHOD_WITH_HIBERNATE3 = "withHibernate3";
+    String METHOD_SPILL_HIBERNATE3 = "spillHibernate3";
     String PROVIDER = "provider";
 
     MethodDescriptor[] METHODS = new MethodDescriptor[] {
@@ -64,6 +69,62 @@ public interface Hibernate3AwareConstants extends BaseConstants {
             args(
                 type(JAVA_LANG_STRING),
                 type(GRIFFON_UTIL_CALLABLEWITHARGS, R))
+        ),
+        MethodDescriptor.method(
+            type(R),
+            typeParams(R),
+            METHOD_WITH_HIBERNATE3,
+            args(type(SESSION_CALLBACK_TYPE, R))
+        ),
+        MethodDescriptor.method(
+            type(R),
+            typeParams(R),
+            METHOD_WITH_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(SESSION_CALLBACK_TYPE, R))
+        ),
+        MethodDescriptor.method(
+            type(R),
+            typeParams(R),
+            METHOD_WITH_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(OPTIONS_TYPE),
+                type(GROOVY_LANG_CLOSURE, R))
+        ),
+        MethodDescriptor.method(
+            type(R),
+            typeParams(R),
+            METHOD_WITH_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(OPTIONS_TYPE),
+                type(GRIFFON_UTIL_CALLABLEWITHARGS, R))
+        ),
+        MethodDescriptor.method(
+            type(R),
+            typeParams(R),
+            METHOD_WITH_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(OPTIONS_TYPE),
+                type(SESSION_CALLBACK_TYPE, R))
+        ),
+        MethodDescriptor.method(
+            type(SPILLED_RESULT_TYPE),
+            METHOD_SPILL_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(JAVA_LANG_STRING))
+        ),
+        MethodDescriptor.method(
+            type(SPILLED_RESULT_TYPE),
+            METHOD_SPILL_HIBERNATE3,
+            args(
+                type(JAVA_LANG_STRING),
+                type(JAVA_LANG_STRING),
+                type(JAVA_UTIL_MAP))
         )
     };
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.core.handlers;
+
+/**
+ * @author Andres Almiray
+ */
+public interface Hibernate3RepositoryConstants extends Hibernate3AwareConstants {
+    String REPOSITORIES_TYPE = "griffon.plugins.hibernate3.Hibernate3Repositories";
+    String QUERY_ANNOTATION_TYPE = "griffon.plugins.hibernate3.Hibernate3Query";
+    String QUERIES_FIELD_NAME = "this$Hibernate3Queries";
+    String METHOD_REGISTER = "register";
+    String DEFAULT_SESSION_FACTORY = "default";
+}
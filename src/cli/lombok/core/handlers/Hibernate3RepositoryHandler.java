@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.core.handlers;
+
+import lombok.ast.Call;
+import lombok.ast.IMethod;
+import lombok.ast.IType;
+import lombok.ast.NewArray;
+import lombok.ast.Statement;
+
+import java.util.List;
+
+import static lombok.ast.AST.*;
+
+/**
+ * @author Andres Almiray
+ */
+public abstract class Hibernate3RepositoryHandler<TYPE_TYPE extends IType<? extends IMethod<?, ?, ?, ?>, ?, ?, ?, ?, ?>> extends Hibernate3AwareHandler<TYPE_TYPE> implements Hibernate3RepositoryConstants {
+    /**
+     * Body of an abstract repository method:
+     * {@code return (castType) Hibernate3Repositories.<kind>(this$Hibernate3Provider, sessionFactoryName, hql, new Object[]{args})}
+     */
+    public Statement<?> repositoryMethodBody(Hibernate3RepositoryQuery query, String sessionFactoryName, List<String> parameterNames, boolean returnsVoid) {
+        NewArray arguments = NewArray(Type("java.lang.Object"));
+        for (String parameterName : parameterNames) {
+            arguments.withInitializationExpression(Name(parameterName));
+        }
+        Call call = Call(Name(REPOSITORIES_TYPE), query.getKind().getMethod())
+            .withArgument(Field(MYBATIS_PROVIDER_FIELD_NAME))
+            .withArgument(String(sessionFactoryName))
+            .withArgument(String(query.getHql()))
+            .withArgument(arguments);
+        if (returnsVoid) return call;
+        if (query.getCastType() != null) return Return(Cast(Type(query.getCastType()), call));
+        return Return(call);
+    }
+
+    /**
+     * Adds {@code private static final boolean this$Hibernate3Queries = Hibernate3Repositories.register(sessionFactoryName, new String[]{hql, ...})}
+     */
+    public void addRepositoryQueriesField(final TYPE_TYPE type, String sessionFactoryName, List<String> queries) {
+        NewArray hql = NewArray(Type("java.lang.String"));
+        for (String query : queries) {
+            hql.withInitializationExpression(String(query));
+        }
+        type.editor().injectField(
+            FieldDecl(Type("boolean"), QUERIES_FIELD_NAME)
+                .makePrivate()
+                .makeStatic()
+                .makeFinal()
+                .withInitialization(Call(Name(REPOSITORIES_TYPE), METHOD_REGISTER)
+                    .withArgument(String(sessionFactoryName))
+                    .withArgument(hql))
+        );
+    }
+
+    /**
+     * The entity queried by derived finders, from the {@code value} or
+     * {@code entityName} members of {@code @Hibernate3Repository}.
+     */
+    public static String entityName(String rawValue, String entityName) {
+        if (entityName != null && entityName.length() > 0) return entityName;
+        if (rawValue == null) return null;
+        return rawValue.endsWith(".class") ? rawValue.substring(0, rawValue.length() - ".class".length()) : rawValue;
+    }
+}
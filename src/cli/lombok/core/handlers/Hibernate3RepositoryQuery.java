@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.core.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The query behind an abstract method of a {@code @Hibernate3Repository},
+ * shared by the AST transformation and the Lombok handlers.
+ *
+ * @author Andres Almiray
+ */
+public final class Hibernate3RepositoryQuery {
+    public enum Kind {
+        LIST("list"), UNIQUE("unique"), COUNT("count"), UPDATE("update");
+
+        private final String method;
+
+        Kind(String method) {
+            this.method = method;
+        }
+
+        /**
+         * The method of {@code Hibernate3Repositories} running this kind of query.
+         */
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    private static final String FIND_ALL_BY = "findAllBy";
+    private static final String FIND_BY = "findBy";
+    private static final String COUNT_BY = "countBy";
+    private static final String ALIAS = "e";
+
+    private final String hql;
+    private final Kind kind;
+    private final String castType;
+
+    private Hibernate3RepositoryQuery(String hql, Kind kind, String castType) {
+        this.hql = hql;
+        this.kind = kind;
+        this.castType = castType;
+    }
+
+    public String getHql() {
+        return hql;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * The type to cast the result of {@code Hibernate3Repositories} to in Java
+     * code, {@code null} when the method returns {@code void} or no cast is needed.
+     */
+    public String getCastType() {
+        return castType;
+    }
+
+    /**
+     * @param entityName     the entity queried by derived finders
+     * @param methodName     name of the abstract method
+     * @param hql            value of its {@code @Hibernate3Query}, {@code null} if absent
+     * @param returnType     its return type as written in source
+     * @param parameterCount its number of parameters
+     * @throws IllegalArgumentException if no query can be derived or the return type doesn't fit it
+     */
+    public static Hibernate3RepositoryQuery of(String entityName, String methodName, String hql, String returnType, int parameterCount) {
+        String type = erasure(returnType);
+        Kind kind;
+        if (hql != null) {
+            String statement = hql.trim().toLowerCase();
+            if (statement.startsWith("update") || statement.startsWith("delete") || statement.startsWith("insert")) {
+                kind = Kind.UPDATE;
+            } else if (isCollection(type)) {
+                kind = Kind.LIST;
+            } else if (isCount(type)) {
+                kind = Kind.COUNT;
+            } else {
+                kind = Kind.UNIQUE;
+            }
+        } else {
+            String criteria;
+            if (methodName.startsWith(FIND_ALL_BY)) {
+                kind = Kind.LIST;
+                criteria = methodName.substring(FIND_ALL_BY.length());
+            } else if (methodName.startsWith(FIND_BY)) {
+                kind = isCollection(type) ? Kind.LIST : Kind.UNIQUE;
+                criteria = methodName.substring(FIND_BY.length());
+            } else if (methodName.startsWith(COUNT_BY)) {
+                kind = Kind.COUNT;
+                criteria = methodName.substring(COUNT_BY.length());
+            } else {
+                throw new IllegalArgumentException("Method " + methodName + " is neither annotated with @Hibernate3Query nor named findBy*, findAllBy* or countBy*");
+            }
+            if (entityName == null || entityName.length() == 0) {
+                throw new IllegalArgumentException("Method " + methodName + " needs the entity of @Hibernate3Repository to derive its query");
+            }
+            List<String> properties = properties(methodName, criteria);
+            if (properties.size() != parameterCount) {
+                throw new IllegalArgumentException("Method " + methodName + " queries " + properties.size() + " properties but takes " + parameterCount + " parameters");
+            }
+            StringBuilder query = new StringBuilder();
+            if (kind == Kind.COUNT) query.append("select count(*) ");
+            query.append("from ").append(entityName).append(' ').append(ALIAS).append(" where ");
+            for (int i = 0; i < properties.size(); i++) {
+                if (i > 0) query.append(" and ");
+                query.append(ALIAS).append('.').append(properties.get(i)).append(" = ?");
+            }
+            hql = query.toString();
+        }
+        return new Hibernate3RepositoryQuery(hql, kind, castType(methodName, kind, type, returnType.trim()));
+    }
+
+    private static List<String> properties(String methodName, String criteria) {
+        List<String> properties = new ArrayList<String>();
+        for (String property : criteria.split("And(?=[A-Z])")) {
+            if (property.length() == 0) {
+                throw new IllegalArgumentException("Method " + methodName + " names no property to query by");
+            }
+            properties.add(Character.toLowerCase(property.charAt(0)) + property.substring(1));
+        }
+        return properties;
+    }
+
+    private static String castType(String methodName, Kind kind, String type, String returnType) {
+        boolean isVoid = "void".equals(type);
+        switch (kind) {
+            case COUNT:
+                if (!isCount(type)) {
+                    throw new IllegalArgumentException("Method " + methodName + " counts rows and must return long, Long, int or Integer");
+                }
+                return type.endsWith("int") || type.endsWith("Integer") ? "int" : null;
+            case UPDATE:
+                if (!isVoid && !"int".equals(type) && !type.endsWith("Integer") && !"long".equals(type)) {
+                    throw new IllegalArgumentException("Method " + methodName + " runs a bulk update and must return void, int, Integer or long");
+                }
+                return null;
+            default:
+                if (isVoid) {
+                    throw new IllegalArgumentException("Method " + methodName + " runs a query and can't return void");
+                }
+                if (type.indexOf('.') < 0 && Character.isLowerCase(type.charAt(0))) {
+                    throw new IllegalArgumentException("Method " + methodName + " must return a reference type, use countBy* for counts");
+                }
+                // lists are returned raw
+                return kind == Kind.UNIQUE ? returnType : null;
+        }
+    }
+
+    private static boolean isCollection(String type) {
+        return type.equals("List") || type.equals("Collection") || type.equals("Iterable") ||
+            type.equals("java.util.List") || type.equals("java.util.Collection") || type.equals("java.lang.Iterable");
+    }
+
+    private static boolean isCount(String type) {
+        return type.equals("long") || type.equals("int") ||
+            type.equals("Long") || type.equals("Integer") ||
+            type.equals("java.lang.Long") || type.equals("java.lang.Integer");
+    }
+
+    private static String erasure(String type) {
+        int generics = type.indexOf('<');
+        return (generics < 0 ? type : type.substring(0, generics)).trim();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.eclipse.handlers;
+
+import griffon.plugins.hibernate3.Hibernate3Repository;
+import lombok.core.AnnotationValues;
+import lombok.core.handlers.Hibernate3RepositoryConstants;
+import lombok.core.handlers.Hibernate3RepositoryHandler;
+import lombok.core.handlers.Hibernate3RepositoryQuery;
+import lombok.eclipse.EclipseAnnotationHandler;
+import lombok.eclipse.EclipseNode;
+import lombok.eclipse.handlers.ast.EclipseMethod;
+import lombok.eclipse.handlers.ast.EclipseType;
+import org.eclipse.jdt.internal.compiler.ast.*;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static lombok.core.util.ErrorMessages.canBeUsedOnClassOnly;
+
+/**
+ * @author Andres Almiray
+ */
+public class HandleHibernate3Repository extends EclipseAnnotationHandler<Hibernate3Repository> {
+    private final EclipseHibernate3RepositoryHandler handler = new EclipseHibernate3RepositoryHandler();
+
+    @Override
+    public void handle(AnnotationValues<Hibernate3Repository> annotation, Annotation source, EclipseNode annotationNode) {
+        EclipseType type = EclipseType.typeOf(annotationNode, source);
+        if (type.isAnnotation() || type.isInterface() || type.isEnum()) {
+            annotationNode.addError(canBeUsedOnClassOnly(Hibernate3Repository.class));
+            return;
+        }
+
+        String entityName = Hibernate3RepositoryHandler.entityName(annotation.getRawExpression("value"), annotation.getInstance().entityName());
+        String sessionFactoryName = annotation.getInstance().sessionFactory();
+
+        EclipseUtil.addInterface(type.get(), Hibernate3RepositoryConstants.MYBATIS_CONTRIBUTION_HANDLER_TYPE, source);
+        handler.addHibernate3ProviderField(type);
+        handler.addHibernate3ProviderAccessors(type);
+        handler.addHibernate3ContributionMethods(type);
+
+        List<String> queries = new ArrayList<String>();
+        boolean implemented = true;
+        for (EclipseMethod method : type.methods()) {
+            if (!(method.get() instanceof MethodDeclaration)) continue;
+            MethodDeclaration decl = (MethodDeclaration) method.get();
+            if (!decl.isAbstract()) continue;
+            List<String> parameterNames = new ArrayList<String>();
+            if (decl.arguments != null) {
+                for (Argument argument : decl.arguments) {
+                    parameterNames.add(new String(argument.name));
+                }
+            }
+            String methodName = new String(decl.selector);
+            Hibernate3RepositoryQuery query;
+            try {
+                query = Hibernate3RepositoryQuery.of(entityName, methodName, hql(methodName, decl), decl.returnType.toString(), parameterNames.size());
+            } catch (IllegalArgumentException e) {
+                method.node().addError(e.getMessage());
+                implemented = false;
+                continue;
+            }
+            decl.modifiers &= ~ClassFileConstants.AccAbstract;
+            method.editor().replaceBody(handler.repositoryMethodBody(query, sessionFactoryName, parameterNames, "void".equals(decl.returnType.toString())));
+            queries.add(query.getHql());
+        }
+        if (!implemented) return;
+
+        type.get().modifiers &= ~ClassFileConstants.AccAbstract;
+        handler.addRepositoryQueriesField(type, sessionFactoryName, queries);
+        type.editor().rebuild();
+    }
+
+    private static String hql(String methodName, MethodDeclaration decl) {
+        if (decl.annotations == null) return null;
+        for (Annotation annotation : decl.annotations) {
+            String annotationType = annotation.type.toString();
+            if (!annotationType.equals(Hibernate3RepositoryConstants.QUERY_ANNOTATION_TYPE) && !annotationType.equals("Hibernate3Query")) continue;
+            Expression value = null;
+            if (annotation instanceof SingleMemberAnnotation) {
+                value = ((SingleMemberAnnotation) annotation).memberValue;
+            } else if (annotation instanceof NormalAnnotation && ((NormalAnnotation) annotation).memberValuePairs != null) {
+                for (MemberValuePair pair : ((NormalAnnotation) annotation).memberValuePairs) {
+                    if ("value".equals(new String(pair.name))) value = pair.value;
+                }
+            }
+            if (value instanceof StringLiteral) return new String(((StringLiteral) value).source());
+            throw new IllegalArgumentException("The value of @Hibernate3Query on " + methodName + " must be a String literal");
+        }
+        return null;
+    }
+
+    private static class EclipseHibernate3RepositoryHandler extends Hibernate3RepositoryHandler<EclipseType> {
+    }
+}
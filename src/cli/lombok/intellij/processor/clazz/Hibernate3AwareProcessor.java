@@ -27,6 +27,7 @@ import lombok.core.handlers.Hibernate3AwareConstants;
 import lombok.core.util.MethodDescriptor;
 import org.jetbrains.annotations.NotNull;
 
+import java.lang.annotation.Annotation;
 import java.util.List;
 
 /**
@@ -36,7 +37,11 @@ public class Hibernate3AwareProcessor extends AbstractGriffonLombokClassProcesso
     private static final String MYBATIS_PROVIDER_FIELD_INITIALIZER = DEFAULT_MYBATIS_PROVIDER_TYPE + ".getInstance()";
 
     public Hibernate3AwareProcessor() {
-        super(Hibernate3Aware.class, PsiMethod.class);
+        this(Hibernate3Aware.class);
+    }
+
+    protected Hibernate3AwareProcessor(Class<? extends Annotation> supportedAnnotationClass) {
+        super(supportedAnnotationClass, PsiMethod.class);
     }
 
     protected <Psi extends PsiElement> void processIntern(@NotNull PsiClass psiClass, @NotNull PsiAnnotation psiAnnotation, @NotNull List<Psi> target) {
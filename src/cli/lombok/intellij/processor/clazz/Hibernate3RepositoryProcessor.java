@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.intellij.processor.clazz;
+
+import griffon.plugins.hibernate3.Hibernate3Repository;
+
+/**
+ * Contributes the members of {@code @Hibernate3Aware} to repositories. Their
+ * abstract methods are implemented by the compiler, IntelliJ keeps showing
+ * them as declared.
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate3RepositoryProcessor extends Hibernate3AwareProcessor {
+    public Hibernate3RepositoryProcessor() {
+        super(Hibernate3Repository.class);
+    }
+}
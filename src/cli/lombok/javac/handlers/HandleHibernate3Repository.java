@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lombok.javac.handlers;
+
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.tree.JCTree;
+import griffon.plugins.hibernate3.Hibernate3Repository;
+import lombok.core.AnnotationValues;
+import lombok.core.handlers.Hibernate3RepositoryConstants;
+import lombok.core.handlers.Hibernate3RepositoryHandler;
+import lombok.core.handlers.Hibernate3RepositoryQuery;
+import lombok.javac.JavacAnnotationHandler;
+import lombok.javac.JavacNode;
+import lombok.javac.handlers.ast.JavacMethod;
+import lombok.javac.handlers.ast.JavacType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static lombok.core.util.ErrorMessages.canBeUsedOnClassOnly;
+import static lombok.javac.handlers.JavacHandlerUtil.deleteAnnotationIfNeccessary;
+
+/**
+ * @author Andres Almiray
+ */
+public class HandleHibernate3Repository extends JavacAnnotationHandler<Hibernate3Repository> {
+    private final JavacHibernate3RepositoryHandler handler = new JavacHibernate3RepositoryHandler();
+
+    @Override
+    public void handle(final AnnotationValues<Hibernate3Repository> annotation, final JCTree.JCAnnotation source, final JavacNode annotationNode) {
+        deleteAnnotationIfNeccessary(annotationNode, Hibernate3Repository.class);
+
+        JavacType type = JavacType.typeOf(annotationNode, source);
+        if (type.isAnnotation() || type.isInterface() || type.isEnum()) {
+            annotationNode.addError(canBeUsedOnClassOnly(Hibernate3Repository.class));
+            return;
+        }
+
+        String entityName = Hibernate3RepositoryHandler.entityName(annotation.getRawExpression("value"), annotation.getInstance().entityName());
+        String sessionFactoryName = annotation.getInstance().sessionFactory();
+
+        JavacUtil.addInterface(type.node(), Hibernate3RepositoryConstants.MYBATIS_CONTRIBUTION_HANDLER_TYPE);
+        handler.addHibernate3ProviderField(type);
+        handler.addHibernate3ProviderAccessors(type);
+        handler.addHibernate3ContributionMethods(type);
+
+        List<String> queries = new ArrayList<String>();
+        boolean implemented = true;
+        for (JavacMethod method : type.methods()) {
+            JCTree.JCMethodDecl decl = method.get();
+            if ((decl.mods.flags & Flags.ABSTRACT) == 0) continue;
+            List<String> parameterNames = new ArrayList<String>();
+            for (JCTree.JCVariableDecl parameter : decl.params) {
+                parameterNames.add(parameter.name.toString());
+            }
+            Hibernate3RepositoryQuery query;
+            try {
+                query = Hibernate3RepositoryQuery.of(entityName, decl.name.toString(), hql(decl), decl.restype.toString(), parameterNames.size());
+            } catch (IllegalArgumentException e) {
+                method.node().addError(e.getMessage());
+                implemented = false;
+                continue;
+            }
+            decl.mods.flags &= ~Flags.ABSTRACT;
+            method.editor().replaceBody(handler.repositoryMethodBody(query, sessionFactoryName, parameterNames, "void".equals(decl.restype.toString())));
+            queries.add(query.getHql());
+        }
+        if (!implemented) return;
+
+        ((JCTree.JCClassDecl) type.get()).mods.flags &= ~Flags.ABSTRACT;
+        handler.addRepositoryQueriesField(type, sessionFactoryName, queries);
+        type.editor().rebuild();
+    }
+
+    private static String hql(JCTree.JCMethodDecl decl) {
+        for (JCTree.JCAnnotation annotation : decl.mods.annotations) {
+            String annotationType = annotation.annotationType.toString();
+            if (!annotationType.equals(Hibernate3RepositoryConstants.QUERY_ANNOTATION_TYPE) && !annotationType.equals("Hibernate3Query")) continue;
+            JCTree.JCExpression value = annotation.args.head;
+            if (value instanceof JCTree.JCAssign) value = ((JCTree.JCAssign) value).rhs;
+            if (value instanceof JCTree.JCLiteral) return String.valueOf(((JCTree.JCLiteral) value).value);
+            throw new IllegalArgumentException("The value of @Hibernate3Query on " + decl.name + " must be a String literal");
+        }
+        return null;
+    }
+
+    private static class JavacHibernate3RepositoryHandler extends Hibernate3RepositoryHandler<JavacType> {
+    }
+}
@@ -52,7 +52,8 @@ public class Hibernate3AwareASTTransformation extends AbstractASTTransformation
     private static final ClassNode DEFAULT_MYBATIS_PROVIDER_CNODE = makeClassSafe(DefaultHibernate3Provider.class);
 
     private static final String[] DELEGATING_METHODS = new String[] {
-        METHOD_WITH_HIBERNATE3
+        METHOD_WITH_HIBERNATE3,
+        METHOD_SPILL_HIBERNATE3
     };
 
     static {
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.griffon.ast;
+
+import griffon.plugins.hibernate3.Hibernate3Query;
+import lombok.core.handlers.Hibernate3RepositoryConstants;
+import lombok.core.handlers.Hibernate3RepositoryQuery;
+import org.codehaus.groovy.ast.*;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.syntax.SyntaxException;
+import org.codehaus.groovy.transform.GroovyASTTransformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.codehaus.griffon.ast.GriffonASTUtils.*;
+
+/**
+ * Handles generation of code for the {@code @Hibernate3Repository} annotation.
+ * <p/>
+ * Every abstract method of the annotated class gets a body that runs its query
+ * through {@code Hibernate3Repositories}, the HQL being a constant and the
+ * arguments bound by position. Annotate the class with {@code @CompileStatic}
+ * as well to have the generated methods statically compiled too.
+ *
+ * @author Andres Almiray
+ */
+@GroovyASTTransformation(phase = CompilePhase.CANONICALIZATION)
+public class Hibernate3RepositoryASTTransformation extends AbstractASTTransformation implements Hibernate3RepositoryConstants {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3RepositoryASTTransformation.class);
+    private static final ClassNode QUERY_CNODE = makeClassSafe(Hibernate3Query.class);
+    private static final ClassNode REPOSITORIES_CNODE = ClassHelper.make(REPOSITORIES_TYPE);
+
+    /**
+     * Handles the bulk of the processing, mostly delegating to other methods.
+     *
+     * @param nodes  the ast nodes
+     * @param source the source unit for the nodes
+     */
+    public void visit(ASTNode[] nodes, SourceUnit source) {
+        checkNodesForAnnotationAndType(nodes[0], nodes[1]);
+        AnnotationNode annotation = (AnnotationNode) nodes[0];
+        ClassNode classNode = (ClassNode) nodes[1];
+        if (classNode.isInterface()) {
+            addError("@Hibernate3Repository can only be applied to classes, " + classNode.getName() + " is an interface.", classNode, source);
+            return;
+        }
+
+        String entityName = entityName(annotation);
+        String sessionFactoryName = DEFAULT_SESSION_FACTORY;
+        Expression member = annotation.getMember("sessionFactory");
+        if (member instanceof ConstantExpression) sessionFactoryName = String.valueOf(((ConstantExpression) member).getValue());
+
+        Hibernate3AwareASTTransformation.addHibernate3ContributionIfNeeded(source, classNode);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Implementing repository methods of " + classNode.getName());
+        }
+
+        List<Expression> queries = new ArrayList<Expression>();
+        boolean implemented = true;
+        for (MethodNode method : classNode.getMethods()) {
+            if (!method.isAbstract()) continue;
+            try {
+                Hibernate3RepositoryQuery query = Hibernate3RepositoryQuery.of(
+                    entityName,
+                    method.getName(),
+                    hql(method),
+                    returnTypeName(method.getReturnType()),
+                    method.getParameters().length);
+                method.setCode(implementation(method, query, sessionFactoryName));
+                method.setModifiers(method.getModifiers() & ~ACC_ABSTRACT);
+                queries.add(new ConstantExpression(query.getHql()));
+            } catch (IllegalArgumentException e) {
+                addError(e.getMessage(), method, source);
+                implemented = false;
+            }
+        }
+        if (!implemented) return;
+        classNode.setModifiers(classNode.getModifiers() & ~ACC_ABSTRACT);
+
+        // add field:
+        // private static final boolean this$Hibernate3Queries = Hibernate3Repositories.register(sessionFactoryName, [hql, ...] as String[])
+        classNode.addField(
+            QUERIES_FIELD_NAME,
+            ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC,
+            ClassHelper.boolean_TYPE,
+            new StaticMethodCallExpression(REPOSITORIES_CNODE, METHOD_REGISTER, new ArgumentListExpression(
+                new ConstantExpression(sessionFactoryName),
+                new ArrayExpression(ClassHelper.STRING_TYPE, queries))));
+    }
+
+    private static String entityName(AnnotationNode annotation) {
+        Expression entityName = annotation.getMember("entityName");
+        if (entityName instanceof ConstantExpression) return String.valueOf(((ConstantExpression) entityName).getValue());
+        Expression entity = annotation.getMember("value");
+        if (entity instanceof ClassExpression) return entity.getType().getName();
+        return null;
+    }
+
+    private static String hql(MethodNode method) {
+        List<AnnotationNode> annotations = method.getAnnotations(QUERY_CNODE);
+        if (annotations.isEmpty()) return null;
+        Expression value = annotations.get(0).getMember("value");
+        if (!(value instanceof ConstantExpression)) {
+            throw new IllegalArgumentException("The value of @Hibernate3Query on " + method.getName() + " must be a constant String");
+        }
+        return String.valueOf(((ConstantExpression) value).getValue());
+    }
+
+    private static String returnTypeName(ClassNode type) {
+        if (ClassHelper.isPrimitiveType(type) || type.getName().startsWith("java.")) return type.getName();
+        return type.getNameWithoutPackage();
+    }
+
+    private static Statement implementation(MethodNode method, Hibernate3RepositoryQuery query, String sessionFactoryName) {
+        List<Expression> variables = new ArrayList<Expression>();
+        for (Parameter parameter : method.getParameters()) {
+            variables.add(new VariableExpression(parameter));
+        }
+        // Hibernate3Repositories.<kind>(getHibernate3Provider(), sessionFactoryName, hql, [args] as Object[])
+        Expression call = new StaticMethodCallExpression(REPOSITORIES_CNODE, query.getKind().getMethod(), new ArgumentListExpression(
+            new MethodCallExpression(VariableExpression.THIS_EXPRESSION, METHOD_GET_MYBATIS_PROVIDER, ArgumentListExpression.EMPTY_ARGUMENTS),
+            new ConstantExpression(sessionFactoryName),
+            new ConstantExpression(query.getHql()),
+            new ArrayExpression(ClassHelper.OBJECT_TYPE, variables)));
+        ClassNode returnType = method.getReturnType();
+        if (ClassHelper.VOID_TYPE.equals(returnType)) {
+            return new ExpressionStatement(call);
+        }
+        return new ReturnStatement(new CastExpression(returnType, call));
+    }
+
+    private static void addError(String message, ASTNode node, SourceUnit source) {
+        source.getErrorCollector().addErrorAndContinue(new SyntaxErrorMessage(
+            new SyntaxException(message, node.getLineNumber(), node.getColumnNumber(), node.getLastLineNumber(), node.getLastColumnNumber()),
+            source));
+    }
+}
@@ -18,11 +18,20 @@ package griffon.plugins.hibernate3;
 
 import griffon.util.CallableWithArgs;
 import groovy.lang.Closure;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
 import static griffon.util.GriffonNameUtils.isBlank;
 
 /**
@@ -37,24 +46,16 @@ public abstract class AbstractHibernate3Provider implements Hibernate3Provider {
     }
 
     public <R> R withHibernate3(String sessionFactoryName, Closure<R> closure) {
-        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
-        if (closure != null) {
-            SessionFactory sf = getSessionFactory(sessionFactoryName);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
-            }
-            Session session = sf.openSession();
-            try {
-                session.beginTransaction();
+        return withHibernate3(sessionFactoryName, null, closure);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, final Closure<R> closure) {
+        if (closure == null) return null;
+        return withHibernate3(sessionFactoryName, options, new SessionCallback<R>() {
+            public R doInSession(String sessionFactoryName, Session session) {
                 return closure.call(sessionFactoryName, session);
-            } finally {
-                if (!session.getTransaction().wasRolledBack()) {
-                    session.getTransaction().commit();
-                }
-                session.close();
             }
-        }
-        return null;
+        });
     }
 
     public <R> R withHibernate3(CallableWithArgs<R> callable) {
@@ -62,25 +63,190 @@ public abstract class AbstractHibernate3Provider implements Hibernate3Provider {
     }
 
     public <R> R withHibernate3(String sessionFactoryName, CallableWithArgs<R> callable) {
+        return withHibernate3(sessionFactoryName, null, callable);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, final CallableWithArgs<R> callable) {
+        if (callable == null) return null;
+        return withHibernate3(sessionFactoryName, options, new SessionCallback<R>() {
+            public R doInSession(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    public <R> R withHibernate3(SessionCallback<R> callback) {
+        return withHibernate3(DEFAULT, callback);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, SessionCallback<R> callback) {
+        return withHibernate3(sessionFactoryName, null, callback);
+    }
+
+    /**
+     * Runs {@code callback} in a transaction. With {@code options}, the time left
+     * until their deadline is the query timeout of every statement, and the
+     * transaction is rolled back if the block is cancelled or runs past it.
+     */
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, SessionCallback<R> callback) {
         if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
-        if (callable != null) {
-            SessionFactory sf = getSessionFactory(sessionFactoryName);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
+        if (callback != null) {
+            Hibernate3Cancellation cancellation = options != null ? options.getCancellation() : null;
+            long deadline = options != null ? options.deadlineFrom(System.currentTimeMillis()) : 0L;
+            if (cancellation != null) {
+                cancellation.attach(null, deadline);
+                cancellation.checkCancelled();
             }
-            Session session = sf.openSession();
+            Hibernate3Options.Priority priority = options != null ? options.getPriority() : Hibernate3Options.Priority.INTERACTIVE;
+            Bulkhead bulkhead = Bulkhead.forSessionFactory(sessionFactoryName);
+            if (bulkhead != null) bulkhead.acquire(priority, deadline);
             try {
-                session.beginTransaction();
-                return callable.call(new Object[]{sessionFactoryName, session});
+                SessionFactory sf = getSessionFactory(sessionFactoryName);
+                try {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
+                    }
+                    Session session = openSession(sessionFactoryName, sf);
+                    try {
+                        if (options != null) {
+                            for (String fetchProfile : options.getFetchProfiles()) session.enableFetchProfile(fetchProfile);
+                        }
+                        Transaction transaction = session.getTransaction();
+                        if (deadline > 0) transaction.setTimeout(secondsUntil(deadline));
+                        if (cancellation != null) {
+                            cancellation.attach(session, deadline);
+                            // a cancel that arrived while waiting for the bulkhead or the session
+                            // found no session to stop, so it has to be honoured here
+                            cancellation.checkCancelled();
+                        }
+                        transaction.begin();
+                        R result = callback.doInSession(sessionFactoryName, session);
+                        if (cancellation != null) cancellation.checkCancelled();
+                        return result;
+                    } finally {
+                        try {
+                            if (cancellation != null) cancellation.detach();
+                            if (cancellation != null && cancellation.expire() || overflowed(session)) {
+                                rollback(sessionFactoryName, session);
+                            } else if (session.getTransaction().isActive()) {
+                                // not begun when a fetch profile or cancellation check failed
+                                session.getTransaction().commit();
+                            }
+                        } finally {
+                            closeSession(sessionFactoryName, session);
+                        }
+                    }
+                } finally {
+                    releaseSessionFactory(sessionFactoryName, sf);
+                }
             } finally {
-                if (!session.getTransaction().wasRolledBack()) {
-                    session.getTransaction().commit();
+                if (bulkhead != null) bulkhead.release(priority);
+            }
+        }
+        return null;
+    }
+
+    private static int secondsUntil(long deadline) {
+        // JDBC timeouts are in whole seconds, 0 meaning none
+        return (int) Math.max(1L, (deadline - System.currentTimeMillis() + 999L) / 1000L);
+    }
+
+    private static void rollback(String sessionFactoryName, Session session) {
+        Transaction transaction = session.getTransaction();
+        if (!transaction.isActive()) return;
+        try {
+            transaction.rollback();
+        } catch (HibernateException e) {
+            // keep the exception that stopped the block
+            LOG.warn("Could not roll back block on '" + sessionFactoryName + "'", e);
+        }
+    }
+
+    /**
+     * Whether the guard of {@code session} hit its fail threshold, even if the
+     * block caught the exception; a runaway block must not commit its partial work.
+     */
+    private static boolean overflowed(Session session) {
+        PersistenceContextGuard.SessionGuard sessionGuard = PersistenceContextGuard.currentSessionGuard();
+        return sessionGuard != null && sessionGuard.owns(session) && sessionGuard.isOverflowed();
+    }
+
+    public SpilledResult spillHibernate3(String sessionFactoryName, String hql) {
+        return spillHibernate3(sessionFactoryName, hql, Collections.<String, Object>emptyMap(), null, null);
+    }
+
+    public SpilledResult spillHibernate3(String sessionFactoryName, String hql, Map<String, ?> params) {
+        return spillHibernate3(sessionFactoryName, hql, params, null, null);
+    }
+
+    /**
+     * Runs {@code hql} with a forward-only cursor and copies its rows into a
+     * memory-mapped {@code SpilledResult}.
+     *
+     * @param columnNames column names, defaults to the query's return aliases when {@code null}
+     * @param directory   where the spill file is created, defaults to {@code java.io.tmpdir} when {@code null}
+     */
+    public SpilledResult spillHibernate3(String sessionFactoryName, final String hql, final Map<String, ?> params, final String[] columnNames, final File directory) {
+        return withHibernate3(sessionFactoryName, new SessionCallback<SpilledResult>() {
+            public SpilledResult doInSession(String sessionFactoryName, Session session) {
+                Query query = session.createQuery(hql);
+                if (params != null) {
+                    for (Map.Entry<String, ?> param : params.entrySet()) {
+                        if (param.getValue() instanceof Collection) {
+                            query.setParameterList(param.getKey(), (Collection) param.getValue());
+                        } else {
+                            query.setParameter(param.getKey(), param.getValue());
+                        }
+                    }
                 }
+                return SpilledResult.spill(session, query, columnNames, directory);
+            }
+        });
+    }
+
+    /**
+     * Opens the session handed to a {@code withHibernate3} block, applying the
+     * {@code PersistenceContextGuard} of the session factory if one is configured
+     * and reporting it to its {@code Hibernate3Monitor}s.
+     */
+    protected Session openSession(String sessionFactoryName, SessionFactory sf) {
+        Session session;
+        PersistenceContextGuard guard = PersistenceContextGuard.forSessionFactory(sessionFactoryName);
+        if (guard == null) {
+            session = sf.openSession();
+        } else {
+            PersistenceContextGuard.SessionGuard sessionGuard = guard.newSessionGuard(((SessionFactoryImplementor) sf).getInterceptor());
+            session = sessionGuard.attach(sf.openSession(sessionGuard));
+        }
+        if (SqlProfiler.forSessionFactory(sessionFactoryName) != null) SqlProfiler.enterBlock(session);
+        BatchFetchTuner tuner = BatchFetchTuner.forSessionFactory(sessionFactoryName);
+        if (tuner != null) BatchFetchTuner.enterBlock(session, tuner);
+        Hibernate3Monitors monitors = Hibernate3Monitors.forSessionFactory(sessionFactoryName);
+        if (monitors != null) monitors.opened(sessionFactoryName, session);
+        return session;
+    }
+
+    protected void closeSession(String sessionFactoryName, Session session) {
+        try {
+            SqlProfiler.exitBlock(session);
+            BatchFetchTuner.exitBlock(session);
+            PersistenceContextGuard.SessionGuard sessionGuard = PersistenceContextGuard.currentSessionGuard();
+            if (sessionGuard != null && sessionGuard.owns(session)) sessionGuard.detach();
+        } finally {
+            try {
                 session.close();
+            } finally {
+                Hibernate3Monitors.closed(sessionFactoryName, session);
             }
         }
-        return null;
     }
 
     protected abstract SessionFactory getSessionFactory(String sessionFactoryName);
+
+    /**
+     * Called once a {@code withHibernate3} block is done with the factory returned
+     * by {@code getSessionFactory}.
+     */
+    protected void releaseSessionFactory(String sessionFactoryName, SessionFactory sf) {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.Collection;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getBoolean;
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt;
+
+/**
+ * <p>Counts, per entity and collection role, the lazy loads each
+ * {@code withHibernate3} block triggers, and recommends batch fetch sizes that
+ * turn them into fewer queries.</p>
+ * <p>Enabled per session factory in {@code Hibernate3Config.groovy}</p>
+ * <pre>
+ * sessionFactory {
+ *     batchTuning {
+ *         apply        = false // set recommended sizes when the factory is next built
+ *         maxBatchSize = 50
+ *         minSessions  = 10    // blocks that must have loaded an entity or role
+ *         samples      = 256   // per block counts kept per entity or role
+ *     }
+ * }
+ * </pre>
+ * <p>A recommendation covers 90% of the blocks seen, so that most of them load
+ * an entity or collection role with a single query. Sizes are only ever raised,
+ * sizes set in the mappings are kept when larger. Recorded counts survive
+ * {@code reload()}, which applies the recommendations when {@code apply} is set,
+ * and are dropped on disconnect.</p>
+ *
+ * @author Andres Almiray
+ */
+public class BatchFetchTuner {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFetchTuner.class);
+    private static final Map<String, BatchFetchTuner> TUNERS = new ConcurrentHashMap<String, BatchFetchTuner>();
+    private static final ThreadLocal<LinkedList<Object[]>> BLOCKS = new ThreadLocal<LinkedList<Object[]>>();
+
+    private final String sessionFactoryName;
+    private volatile boolean apply;
+    private volatile int maxBatchSize;
+    private volatile int minSessions;
+    private volatile int sampleSize;
+    private final Map<String, Usage> usages = new LinkedHashMap<String, Usage>();
+    private final Map<String, Integer> batchSizes = new HashMap<String, Integer>();
+    private final List<Recommendation> applied = new ArrayList<Recommendation>();
+    private List<Recommendation> pendingApplied = Collections.emptyList();
+    private Map<String, Integer> pendingBatchSizes = Collections.emptyMap();
+
+    public BatchFetchTuner(String sessionFactoryName, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        configure(config);
+    }
+
+    /**
+     * Updates the settings, keeping the counts recorded so far.
+     */
+    public void configure(Map config) {
+        apply = getBoolean(config, "apply", false);
+        maxBatchSize = Math.max(2, getInt(config, "maxBatchSize", 50));
+        minSessions = Math.max(1, getInt(config, "minSessions", 10));
+        sampleSize = Math.max(16, getInt(config, "samples", 256));
+    }
+
+    public static void register(String sessionFactoryName, BatchFetchTuner tuner) {
+        TUNERS.put(sessionFactoryName, tuner);
+    }
+
+    public static BatchFetchTuner unregister(String sessionFactoryName) {
+        return TUNERS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the tuner of the given session factory, {@code null} if batch tuning is disabled.
+     */
+    public static BatchFetchTuner forSessionFactory(String sessionFactoryName) {
+        return TUNERS.get(sessionFactoryName);
+    }
+
+    static void enterBlock(Session session, BatchFetchTuner tuner) {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        if (blocks == null) {
+            blocks = new LinkedList<Object[]>();
+            BLOCKS.set(blocks);
+        }
+        blocks.addFirst(new Object[]{session, tuner, new HashMap<String, int[]>()});
+    }
+
+    static void exitBlock(Session session) {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        if (blocks == null || blocks.isEmpty() || blocks.getFirst()[0] != session) return;
+        Object[] block = blocks.removeFirst();
+        if (blocks.isEmpty()) BLOCKS.remove();
+        ((BatchFetchTuner) block[1]).record((Map<String, int[]>) block[2]);
+    }
+
+    /**
+     * Counts a lazy load of an entity (by entity name) or collection (by role) in the current block.
+     */
+    public void lazyLoad(String name, boolean collection) {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        if (blocks == null || blocks.isEmpty() || blocks.getFirst()[1] != this) return;
+        Map<String, int[]> counts = (Map<String, int[]>) blocks.getFirst()[2];
+        String key = (collection ? "collection:" : "entity:") + name;
+        int[] count = counts.get(key);
+        if (count == null) counts.put(key, new int[]{1});
+        else count[0]++;
+    }
+
+    private synchronized void record(Map<String, int[]> counts) {
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            Usage usage = usages.get(entry.getKey());
+            if (usage == null) {
+                usage = new Usage(sampleSize);
+                usages.put(entry.getKey(), usage);
+            }
+            usage.add(entry.getValue()[0]);
+        }
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public boolean isApply() {
+        return apply;
+    }
+
+    public synchronized List<Recommendation> getRecommendations() {
+        List<Recommendation> recommendations = new ArrayList<Recommendation>();
+        for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+            Usage usage = entry.getValue();
+            if (usage.sessions < minSessions) continue;
+            Integer current = batchSizes.get(entry.getKey());
+            int currentBatchSize = current != null ? Math.max(1, current) : 1;
+            // samples count queries, each loading up to the current batch size
+            int[] samples = usage.samples();
+            int[] loads = new int[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                loads[i] = (int) Math.min(Integer.MAX_VALUE, (long) samples[i] * currentBatchSize);
+            }
+            Arrays.sort(loads);
+            int batchSize = Math.min(maxBatchSize, loads[(int) Math.ceil(loads.length * 0.9) - 1]);
+            if (batchSize < 2 || batchSize <= currentBatchSize) continue;
+            long before = 0L;
+            long after = 0L;
+            for (int i = 0; i < samples.length; i++) {
+                before += samples[i];
+                after += (loads[i] + batchSize - 1) / batchSize;
+            }
+            String key = entry.getKey();
+            recommendations.add(new Recommendation(key.substring(key.indexOf(':') + 1), key.startsWith("collection:"),
+                currentBatchSize, batchSize, samples.length, before, after));
+        }
+        Collections.sort(recommendations, new Comparator<Recommendation>() {
+            public int compare(Recommendation a, Recommendation b) {
+                long saved = (a.queriesBefore - a.queriesAfter) - (b.queriesBefore - b.queriesAfter);
+                return saved < 0 ? 1 : (saved == 0 ? 0 : -1);
+            }
+        });
+        return recommendations;
+    }
+
+    /**
+     * Returns the recommendations set on the last built factory.
+     */
+    public synchronized List<Recommendation> getApplied() {
+        return new ArrayList<Recommendation>(applied);
+    }
+
+    /**
+     * Raises the batch sizes of the mappings to the recommended ones when
+     * {@code apply} is set. Called by {@code HibernateConfigurationHelper} with its
+     * mappings already built; nothing changes here until {@code commit()}.
+     */
+    public synchronized void tune(Configuration configuration) {
+        List<Recommendation> recommendations = apply ? getRecommendations() : Collections.<Recommendation>emptyList();
+        List<Recommendation> tuned = new ArrayList<Recommendation>();
+        for (Recommendation recommendation : recommendations) {
+            if (recommendation.collection) {
+                Collection collection = configuration.getCollectionMapping(recommendation.name);
+                if (collection == null) continue;
+                collection.setBatchSize(recommendation.batchSize);
+            } else {
+                PersistentClass persistentClass = configuration.getClassMapping(recommendation.name);
+                if (persistentClass == null) continue;
+                persistentClass.setBatchSize(recommendation.batchSize);
+            }
+            tuned.add(recommendation);
+        }
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (Iterator<PersistentClass> classes = configuration.getClassMappings(); classes.hasNext(); ) {
+            PersistentClass persistentClass = classes.next();
+            sizes.put("entity:" + persistentClass.getEntityName(), persistentClass.getBatchSize());
+        }
+        for (Iterator<Collection> collections = configuration.getCollectionMappings(); collections.hasNext(); ) {
+            Collection collection = collections.next();
+            sizes.put("collection:" + collection.getRole(), collection.getBatchSize());
+        }
+        pendingApplied = tuned;
+        pendingBatchSizes = sizes;
+    }
+
+    /**
+     * Makes the sizes of the last {@code tune()} current once the factory built with
+     * them is in use. Counts of raised entities and roles start over; when the build
+     * failed this is never called and the counts are kept.
+     */
+    public synchronized void commit() {
+        applied.clear();
+        for (Recommendation recommendation : pendingApplied) {
+            usages.remove(recommendation.getKey());
+            applied.add(recommendation);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Batch size of " + recommendation.name + " on '" + sessionFactoryName + "' raised from " +
+                    recommendation.currentBatchSize + " to " + recommendation.batchSize);
+            }
+        }
+        batchSizes.clear();
+        batchSizes.putAll(pendingBatchSizes);
+        pendingApplied = Collections.emptyList();
+        pendingBatchSizes = Collections.emptyMap();
+    }
+
+    /**
+     * Writes the pending recommendations, then the applied ones with the lazy loads
+     * measured since.
+     */
+    public synchronized void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("Batch fetch recommendations of '" + sessionFactoryName + "'");
+        out.println(" blocks  size ->  new   queries -> estimated  entity / collection role");
+        for (Recommendation recommendation : getRecommendations()) {
+            out.println(String.format("%7d %5d %6d %9d %12d  %s", recommendation.sessions, recommendation.currentBatchSize,
+                recommendation.batchSize, recommendation.queriesBefore, recommendation.queriesAfter, recommendation.name));
+        }
+        if (!applied.isEmpty()) {
+            out.println();
+            out.println("Applied batch sizes of '" + sessionFactoryName + "'");
+            out.println(" blocks  size ->  new   queries -> measured  entity / collection role");
+            for (Recommendation recommendation : applied) {
+                Usage usage = usages.get(recommendation.getKey());
+                long measured = 0L;
+                if (usage != null) {
+                    for (int count : usage.samples()) measured += count;
+                }
+                out.println(String.format("%7d %5d %6d %9d %12s  %s", recommendation.sessions, recommendation.currentBatchSize,
+                    recommendation.batchSize, recommendation.queriesBefore,
+                    usage != null ? measured + " / " + usage.samples().length : "-", recommendation.name));
+            }
+        }
+        out.flush();
+    }
+
+    public synchronized void clear() {
+        usages.clear();
+    }
+
+    /**
+     * A batch size worth setting on an entity or collection role. Query counts are
+     * totals over the recorded blocks, as loaded and as estimated with the new size.
+     */
+    public static final class Recommendation {
+        private final String name;
+        private final boolean collection;
+        private final int currentBatchSize;
+        private final int batchSize;
+        private final int sessions;
+        private final long queriesBefore;
+        private final long queriesAfter;
+
+        private Recommendation(String name, boolean collection, int currentBatchSize, int batchSize, int sessions, long queriesBefore, long queriesAfter) {
+            this.name = name;
+            this.collection = collection;
+            this.currentBatchSize = currentBatchSize;
+            this.batchSize = batchSize;
+            this.sessions = sessions;
+            this.queriesBefore = queriesBefore;
+            this.queriesAfter = queriesAfter;
+        }
+
+        private String getKey() {
+            return (collection ? "collection:" : "entity:") + name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCollection() {
+            return collection;
+        }
+
+        public int getCurrentBatchSize() {
+            return currentBatchSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public int getSessions() {
+            return sessions;
+        }
+
+        public long getQueriesBefore() {
+            return queriesBefore;
+        }
+
+        public long getQueriesAfter() {
+            return queriesAfter;
+        }
+    }
+
+    private static final class Usage {
+        private final int[] ring;
+        private long sessions;
+
+        private Usage(int size) {
+            ring = new int[size];
+        }
+
+        private void add(int count) {
+            ring[(int) (sessions++ % ring.length)] = count;
+        }
+
+        private int[] samples() {
+            return Arrays.copyOf(ring, (int) Math.min(sessions, ring.length));
+        }
+    }
+}
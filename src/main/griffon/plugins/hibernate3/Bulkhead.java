@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.exceptions.BulkheadFullException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt;
+import static griffon.plugins.hibernate3.internal.ConfigValues.getLong;
+
+/**
+ * <p>Caps the number of {@code withHibernate3} blocks running at once on a
+ * session factory. Blocks over the cap wait in a bounded queue, and are refused
+ * with a {@code BulkheadFullException} when the queue is full or their wait
+ * times out.</p>
+ * <p>Configured per session factory in {@code Hibernate3Config.groovy}</p>
+ * <pre>
+ * sessionFactory {
+ *     bulkhead {
+ *         maxConcurrent      = 10   // blocks running at once
+ *         maxQueue           = 50   // blocks waiting, 0 refuses right away
+ *         timeout            = 2000 // milliseconds a block may wait
+ *         interactiveReserve = 2    // slots background blocks can't take
+ *     }
+ * }
+ * </pre>
+ * <p>Interactive blocks, the default, are admitted before waiting background
+ * ones. Background blocks, marked with {@code Hibernate3Options.priority()},
+ * never take the reserved slots.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Bulkhead {
+    private static final Map<String, Bulkhead> BULKHEADS = new ConcurrentHashMap<String, Bulkhead>();
+
+    private final String sessionFactoryName;
+    private final int maxConcurrent;
+    private final int maxBackground;
+    private final int maxQueue;
+    private final long timeout;
+
+    private final ThreadLocal<int[]> holds = new ThreadLocal<int[]>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition interactiveTurn = lock.newCondition();
+    private final Condition backgroundTurn = lock.newCondition();
+    private int active;
+    private int activeBackground;
+    private int waitingInteractive;
+    private int waitingBackground;
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+    private long waitNanos;
+    private int maxQueueDepth;
+
+    public Bulkhead(String sessionFactoryName, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.maxConcurrent = Math.max(1, getInt(config, "maxConcurrent", 10));
+        int reserve = Math.min(Math.max(0, getInt(config, "interactiveReserve", 0)), maxConcurrent - 1);
+        this.maxBackground = maxConcurrent - reserve;
+        this.maxQueue = Math.max(0, getInt(config, "maxQueue", 50));
+        this.timeout = Math.max(0L, getLong(config, "timeout", 2000L));
+    }
+
+    public static void register(String sessionFactoryName, Bulkhead bulkhead) {
+        BULKHEADS.put(sessionFactoryName, bulkhead);
+    }
+
+    public static Bulkhead unregister(String sessionFactoryName) {
+        return BULKHEADS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the bulkhead of the given session factory, {@code null} if none was configured.
+     */
+    public static Bulkhead forSessionFactory(String sessionFactoryName) {
+        return BULKHEADS.get(sessionFactoryName);
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    /**
+     * Waits for a slot, at most the configured timeout or until {@code deadline} if it is earlier.
+     * A thread already holding a slot, running a nested block, keeps using it.
+     *
+     * @param deadline as given by {@code System.currentTimeMillis()}, 0 for none
+     * @throws BulkheadFullException if the queue is full or no slot freed up in time
+     */
+    public void acquire(Hibernate3Options.Priority priority, long deadline) {
+        int[] held = holds.get();
+        if (held != null) {
+            held[0]++;
+            return;
+        }
+        doAcquire(priority, deadline);
+        holds.set(new int[]{1});
+    }
+
+    private void doAcquire(Hibernate3Options.Priority priority, long deadline) {
+        boolean background = priority == Hibernate3Options.Priority.BACKGROUND;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (deadline > 0) nanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis()));
+        lock.lock();
+        try {
+            if (canEnter(background)) {
+                enter(background);
+                return;
+            }
+            if (waitingInteractive + waitingBackground >= maxQueue || nanos <= 0) {
+                rejected++;
+                throw new BulkheadFullException("Too many blocks running on '" + sessionFactoryName + "'");
+            }
+            long start = System.nanoTime();
+            if (background) waitingBackground++;
+            else waitingInteractive++;
+            maxQueueDepth = Math.max(maxQueueDepth, waitingInteractive + waitingBackground);
+            try {
+                while (!canEnter(background)) {
+                    if (nanos <= 0) {
+                        timedOut++;
+                        throw new BulkheadFullException("Timed out waiting to run on '" + sessionFactoryName + "'");
+                    }
+                    nanos = (background ? backgroundTurn : interactiveTurn).awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BulkheadFullException("Interrupted while waiting to run on '" + sessionFactoryName + "'", e);
+            } finally {
+                if (background) {
+                    waitingBackground--;
+                } else if (--waitingInteractive == 0) {
+                    // waiting background blocks may go now
+                    backgroundTurn.signalAll();
+                }
+            }
+            waitNanos += System.nanoTime() - start;
+            enter(background);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(Hibernate3Options.Priority priority) {
+        int[] held = holds.get();
+        if (held == null) return;
+        if (--held[0] > 0) return;
+        holds.remove();
+        lock.lock();
+        try {
+            active--;
+            if (priority == Hibernate3Options.Priority.BACKGROUND) activeBackground--;
+            if (waitingInteractive > 0) {
+                interactiveTurn.signal();
+            } else if (waitingBackground > 0) {
+                backgroundTurn.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canEnter(boolean background) {
+        if (active >= maxConcurrent) return false;
+        // background blocks queue behind interactive ones and leave the reserve alone
+        return !background || (waitingInteractive == 0 && active < maxBackground);
+    }
+
+    private void enter(boolean background) {
+        active++;
+        if (background) activeBackground++;
+        admitted++;
+    }
+
+    public Map<String, Long> getMetrics() {
+        lock.lock();
+        try {
+            Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+            metrics.put("active", (long) active);
+            metrics.put("activeBackground", (long) activeBackground);
+            metrics.put("queued", (long) (waitingInteractive + waitingBackground));
+            metrics.put("queuedInteractive", (long) waitingInteractive);
+            metrics.put("queuedBackground", (long) waitingBackground);
+            metrics.put("maxQueueDepth", (long) maxQueueDepth);
+            metrics.put("admitted", admitted);
+            metrics.put("rejected", rejected);
+            metrics.put("timedOut", timedOut);
+            metrics.put("waitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            return metrics;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.JdbcUtils;
+import org.hibernate.QueryException;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.query.HQLQueryPlan;
+import org.hibernate.hql.ParameterTranslations;
+import org.hibernate.hql.QueryTranslator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.type.Type;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * <p>Runs an HQL or SQL query and copies its columns straight from the JDBC
+ * {@code ResultSet} into primitive arrays, skipping entity hydration and
+ * {@code Object[]} rows altogether.</p>
+ * <pre>
+ * withHibernate3 { sessionFactoryName, session ->
+ *     ColumnarResult result = ColumnarProjection.hql(session, 'select o.customer.id, o.total from Order o where o.year = ?')
+ *         .longColumn('customer')
+ *         .doubleColumn('total')
+ *         .parameters(2013)
+ *         .list()
+ * }
+ * </pre>
+ * <p>Columns are declared in select clause order. HQL is translated to SQL through
+ * the session factory's query plan cache; it must translate to a single SQL
+ * statement (no implicit polymorphism). Parameters may be positional or named.
+ * SQL queries accept positional parameters only.</p>
+ * <p>The query runs on the session's connection without flushing it first.</p>
+ *
+ * @author Andres Almiray
+ * @see ColumnarResult
+ */
+public class ColumnarProjection {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * Receives rows as they are read. The chunk and its arrays are reused once
+     * {@code onChunk()} returns, copy whatever needs to outlive the call.
+     * Dictionary codes are stable across chunks.
+     */
+    public interface ChunkHandler {
+        void onChunk(ColumnarResult chunk);
+    }
+
+    private final Session session;
+    private final String query;
+    private final boolean hql;
+    private final List<String> names = new ArrayList<String>();
+    private final List<ColumnarResult.ColumnType> types = new ArrayList<ColumnarResult.ColumnType>();
+    private final Map<String, Object> namedParameters = new LinkedHashMap<String, Object>();
+    private Object[] positionalParameters = new Object[0];
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private ColumnarProjection(Session session, String query, boolean hql) {
+        if (session == null) throw new IllegalArgumentException("Session must not be null");
+        if (query == null) throw new IllegalArgumentException("Query must not be null");
+        this.session = session;
+        this.query = query;
+        this.hql = hql;
+    }
+
+    public static ColumnarProjection hql(Session session, String hql) {
+        return new ColumnarProjection(session, hql, true);
+    }
+
+    public static ColumnarProjection sql(Session session, String sql) {
+        return new ColumnarProjection(session, sql, false);
+    }
+
+    public ColumnarProjection longColumn(String name) {
+        return column(name, ColumnarResult.ColumnType.LONG);
+    }
+
+    public ColumnarProjection doubleColumn(String name) {
+        return column(name, ColumnarResult.ColumnType.DOUBLE);
+    }
+
+    public ColumnarProjection stringColumn(String name) {
+        return column(name, ColumnarResult.ColumnType.STRING);
+    }
+
+    public ColumnarProjection column(String name, ColumnarResult.ColumnType type) {
+        names.add(name);
+        types.add(type);
+        return this;
+    }
+
+    public ColumnarProjection parameters(Object... values) {
+        positionalParameters = values != null ? values : new Object[0];
+        return this;
+    }
+
+    public ColumnarProjection parameter(String name, Object value) {
+        if (!hql) throw new IllegalArgumentException("Named parameters are only supported by HQL queries");
+        namedParameters.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the JDBC fetch size, the growth increment of the column arrays and the
+     * number of rows handed to a {@code ChunkHandler} at once.
+     */
+    public ColumnarProjection chunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be greater than zero");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Reads all rows into a single result.
+     */
+    public ColumnarResult list() {
+        final ColumnarResult result = newResult();
+        execute(result, null);
+        return result;
+    }
+
+    /**
+     * Hands rows to {@code handler} in chunks of at most {@code chunkSize} rows
+     * without accumulating them.
+     *
+     * @return the total number of rows read
+     */
+    public long stream(ChunkHandler handler) {
+        if (handler == null) throw new IllegalArgumentException("ChunkHandler must not be null");
+        return execute(newResult(), handler);
+    }
+
+    private ColumnarResult newResult() {
+        if (names.isEmpty()) throw new IllegalStateException("No columns were declared");
+        return new ColumnarResult(
+            names.toArray(new String[names.size()]),
+            types.toArray(new ColumnarResult.ColumnType[types.size()]),
+            chunkSize);
+    }
+
+    private long execute(final ColumnarResult result, final ChunkHandler handler) {
+        final String sql;
+        final Object[] bindings;
+        final Type[] bindingTypes;
+        if (hql) {
+            QueryTranslator translator = translate();
+            sql = translator.getSQLString();
+            ParameterTranslations translations = translator.getParameterTranslations();
+            bindings = new Object[countHqlParameters(translations)];
+            bindingTypes = new Type[bindings.length];
+            bindHqlParameters(translations, bindings, bindingTypes);
+        } else {
+            sql = query;
+            bindings = positionalParameters;
+            bindingTypes = new Type[bindings.length];
+        }
+
+        final long[] total = new long[1];
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = null;
+                ResultSet resultSet = null;
+                try {
+                    statement = connection.prepareStatement(sql);
+                    statement.setFetchSize(chunkSize);
+                    for (int i = 0; i < bindings.length; i++) {
+                        if (bindingTypes[i] != null) {
+                            bindingTypes[i].nullSafeSet(statement, bindings[i], i + 1, (SessionImplementor) session);
+                        } else {
+                            statement.setObject(i + 1, bindings[i]);
+                        }
+                    }
+                    resultSet = statement.executeQuery();
+                    total[0] = read(resultSet, result, handler);
+                } finally {
+                    JdbcUtils.closeResultSet(resultSet);
+                    JdbcUtils.closeStatement(statement);
+                }
+            }
+        });
+        return total[0];
+    }
+
+    private long read(ResultSet resultSet, ColumnarResult result, ChunkHandler handler) throws SQLException {
+        int columns = result.getColumnCount();
+        if (resultSet.getMetaData().getColumnCount() < columns) {
+            throw new QueryException("Query selects fewer columns than the " + columns + " declared", query);
+        }
+        ColumnarResult.ColumnType[] columnTypes = types.toArray(new ColumnarResult.ColumnType[columns]);
+        long total = 0;
+        while (resultSet.next()) {
+            if (handler != null && result.isFull()) {
+                handler.onChunk(result);
+                result.reset();
+            }
+            int row = result.nextRow();
+            for (int i = 0; i < columns; i++) {
+                switch (columnTypes[i]) {
+                    case LONG:
+                        long longValue = resultSet.getLong(i + 1);
+                        result.setLong(row, i, longValue, resultSet.wasNull());
+                        break;
+                    case DOUBLE:
+                        double doubleValue = resultSet.getDouble(i + 1);
+                        result.setDouble(row, i, doubleValue, resultSet.wasNull());
+                        break;
+                    default:
+                        result.setString(row, i, resultSet.getString(i + 1));
+                }
+            }
+            total++;
+        }
+        if (handler != null && result.getRowCount() > 0) {
+            handler.onChunk(result);
+            result.reset();
+        }
+        return total;
+    }
+
+    private QueryTranslator translate() {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) session.getSessionFactory();
+        HQLQueryPlan plan = factory.getQueryPlanCache().getHQLQueryPlan(query, false, Collections.EMPTY_MAP);
+        QueryTranslator[] translators = plan.getTranslators();
+        if (translators.length != 1) {
+            throw new QueryException("Query must translate to a single SQL statement, polymorphic queries are not supported", query);
+        }
+        return translators[0];
+    }
+
+    private int countHqlParameters(ParameterTranslations translations) {
+        int count = positionalParameters.length;
+        for (String name : namedParameters.keySet()) {
+            count += translations.getNamedParameterSqlLocations(name).length;
+        }
+        return count;
+    }
+
+    private void bindHqlParameters(ParameterTranslations translations, Object[] bindings, Type[] bindingTypes) {
+        for (int i = 0; i < positionalParameters.length; i++) {
+            // ordinal positions count from 1
+            int location = translations.getOrdinalParameterSqlLocation(i + 1);
+            bindings[location] = positionalParameters[i];
+            bindingTypes[location] = translations.getOrdinalParameterExpectedType(i + 1);
+        }
+        for (Map.Entry<String, Object> parameter : namedParameters.entrySet()) {
+            Type type = translations.getNamedParameterExpectedType(parameter.getKey());
+            for (int location : translations.getNamedParameterSqlLocations(parameter.getKey())) {
+                bindings[location] = parameter.getValue();
+                bindingTypes[location] = type;
+            }
+        }
+    }
+}
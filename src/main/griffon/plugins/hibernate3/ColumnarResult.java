@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import java.util.*;
+
+/**
+ * <p>Rows of a {@code ColumnarProjection} stored as one primitive array per column.</p>
+ * <p>{@code LONG} columns are backed by a {@code long[]}, {@code DOUBLE} columns by a
+ * {@code double[]} and {@code STRING} columns by an {@code int[]} of codes into a
+ * per-column dictionary. Arrays may be longer than {@code getRowCount()}; only
+ * the first {@code getRowCount()} slots hold data.</p>
+ *
+ * @author Andres Almiray
+ * @see ColumnarProjection
+ */
+public class ColumnarResult {
+    public enum ColumnType {
+        LONG, DOUBLE, STRING
+    }
+
+    private final String[] names;
+    private final ColumnType[] types;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final int[][] codes;
+    private final List<String>[] dictionaries;
+    private final Map<String, Integer>[] dictionaryIndices;
+    private final BitSet[] nulls;
+    private final int chunkSize;
+    private int capacity;
+    private int rowCount;
+
+    @SuppressWarnings("unchecked")
+    ColumnarResult(String[] names, ColumnType[] types, int chunkSize) {
+        this.names = names;
+        this.types = types;
+        this.chunkSize = chunkSize;
+        this.longs = new long[types.length][];
+        this.doubles = new double[types.length][];
+        this.codes = new int[types.length][];
+        this.dictionaries = new List[types.length];
+        this.dictionaryIndices = new Map[types.length];
+        this.nulls = new BitSet[types.length];
+        for (int i = 0; i < types.length; i++) {
+            nulls[i] = new BitSet();
+            switch (types[i]) {
+                case LONG:
+                    longs[i] = new long[0];
+                    break;
+                case DOUBLE:
+                    doubles[i] = new double[0];
+                    break;
+                default:
+                    codes[i] = new int[0];
+                    dictionaries[i] = new ArrayList<String>();
+                    dictionaryIndices[i] = new HashMap<String, Integer>();
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    public ColumnType getColumnType(int column) {
+        return types[column];
+    }
+
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        throw new IllegalArgumentException("No such column " + name);
+    }
+
+    public boolean isNull(int row, int column) {
+        return nulls[column].get(row);
+    }
+
+    public long[] getLongs(int column) {
+        checkType(column, ColumnType.LONG);
+        return longs[column];
+    }
+
+    public double[] getDoubles(int column) {
+        checkType(column, ColumnType.DOUBLE);
+        return doubles[column];
+    }
+
+    /**
+     * Returns dictionary codes of a {@code STRING} column, -1 marks a null value.
+     */
+    public int[] getCodes(int column) {
+        checkType(column, ColumnType.STRING);
+        return codes[column];
+    }
+
+    /**
+     * Returns the distinct values of a {@code STRING} column, indexed by code.
+     */
+    public List<String> getDictionary(int column) {
+        checkType(column, ColumnType.STRING);
+        return Collections.unmodifiableList(dictionaries[column]);
+    }
+
+    public String getString(int row, int column) {
+        int code = getCodes(column)[row];
+        return code < 0 ? null : dictionaries[column].get(code);
+    }
+
+    private void checkType(int column, ColumnType type) {
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + names[column] + " is of type " + types[column] + ", not " + type);
+        }
+    }
+
+    // -- filled by ColumnarProjection
+
+    /**
+     * Makes room for one more row, growing every column by whole chunks.
+     */
+    int nextRow() {
+        if (rowCount == capacity) {
+            int grown = Math.max(capacity * 2, capacity + chunkSize);
+            for (int i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case LONG:
+                        longs[i] = Arrays.copyOf(longs[i], grown);
+                        break;
+                    case DOUBLE:
+                        doubles[i] = Arrays.copyOf(doubles[i], grown);
+                        break;
+                    default:
+                        codes[i] = Arrays.copyOf(codes[i], grown);
+                }
+            }
+            capacity = grown;
+        }
+        return rowCount++;
+    }
+
+    void setLong(int row, int column, long value, boolean isNull) {
+        longs[column][row] = value;
+        if (isNull) nulls[column].set(row);
+    }
+
+    void setDouble(int row, int column, double value, boolean isNull) {
+        doubles[column][row] = value;
+        if (isNull) nulls[column].set(row);
+    }
+
+    void setString(int row, int column, String value) {
+        if (value == null) {
+            codes[column][row] = -1;
+            nulls[column].set(row);
+            return;
+        }
+        Integer code = dictionaryIndices[column].get(value);
+        if (code == null) {
+            code = dictionaries[column].size();
+            dictionaries[column].add(value);
+            dictionaryIndices[column].put(value, code);
+        }
+        codes[column][row] = code;
+    }
+
+    boolean isFull() {
+        return rowCount == capacity && capacity >= chunkSize;
+    }
+
+    /**
+     * Empties the chunk while keeping its arrays and dictionaries, so that
+     * codes stay stable across chunks of the same stream.
+     */
+    void reset() {
+        rowCount = 0;
+        for (BitSet columnNulls : nulls) {
+            columnNulls.clear();
+        }
+    }
+}
@@ -37,6 +37,11 @@ public class DefaultHibernate3Provider extends AbstractHibernate3Provider {
 
     @Override
     protected SessionFactory getSessionFactory(String sessionFactoryName) {
-        return Hibernate3Holder.getInstance().fetchSessionFactory(sessionFactoryName);
+        return Hibernate3Holder.getInstance().acquireSessionFactory(sessionFactoryName);
+    }
+
+    @Override
+    protected void releaseSessionFactory(String sessionFactoryName, SessionFactory sf) {
+        Hibernate3Holder.getInstance().releaseSessionFactory(sessionFactoryName, sf);
     }
 }
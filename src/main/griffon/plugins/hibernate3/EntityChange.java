@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import java.io.Serializable;
+
+/**
+ * A committed change to a single entity instance.
+ *
+ * @author Andres Almiray
+ * @see EntityChangePublisher
+ */
+public final class EntityChange implements Serializable {
+    public enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final String entityName;
+    private final Serializable id;
+    private final Operation operation;
+
+    public EntityChange(String entityName, Serializable id, Operation operation) {
+        this.entityName = entityName;
+        this.id = id;
+        this.operation = operation;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public Serializable getId() {
+        return id;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + entityName + "#" + id;
+    }
+}
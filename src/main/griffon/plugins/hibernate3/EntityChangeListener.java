@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import java.util.List;
+
+/**
+ * Receives coalesced batches of committed entity changes. Invoked from the
+ * publisher's thread, never from the thread that committed the changes.
+ *
+ * @author Andres Almiray
+ */
+public interface EntityChangeListener {
+    void entitiesChanged(String sessionFactoryName, List<EntityChange> changes);
+}
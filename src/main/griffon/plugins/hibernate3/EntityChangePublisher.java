@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getLong;
+
+/**
+ * <p>Delivers the entity changes committed through a SessionFactory to
+ * registered {@code EntityChangeListener}s.</p>
+ * <p>Changes are collected for {@code window} milliseconds after the first
+ * commit and coalesced per entity instance before delivery: an insert followed
+ * by updates is reported as an insert, an insert followed by a delete is not
+ * reported at all, and so on. Listeners run on a single background thread in
+ * the order they were added.</p>
+ * <pre>
+ * sessionFactory {
+ *     changeEvents {
+ *         window = 100 // milliseconds
+ *     }
+ * }
+ * </pre>
+ * <p>Only changes made through regular sessions are captured; bulk HQL updates,
+ * native SQL and {@code StatelessSession}s bypass interceptors.</p>
+ *
+ * @author Andres Almiray
+ */
+public class EntityChangePublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(EntityChangePublisher.class);
+    private static final Map<String, EntityChangePublisher> PUBLISHERS = new ConcurrentHashMap<String, EntityChangePublisher>();
+
+    private final String sessionFactoryName;
+    private final long window;
+    private final List<EntityChangeListener> listeners = new CopyOnWriteArrayList<EntityChangeListener>();
+    private final Map<List<Object>, EntityChange> pending = new LinkedHashMap<List<Object>, EntityChange>();
+    private final ScheduledExecutorService executor;
+    private boolean scheduled;
+
+    public EntityChangePublisher(final String sessionFactoryName, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.window = Math.max(0L, getLong(config, "window", 100L));
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hibernate3-change-events-" + sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static void register(String sessionFactoryName, EntityChangePublisher publisher) {
+        PUBLISHERS.put(sessionFactoryName, publisher);
+    }
+
+    public static EntityChangePublisher unregister(String sessionFactoryName) {
+        return PUBLISHERS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the publisher of the given session factory, {@code null} if change events are not enabled.
+     */
+    public static EntityChangePublisher forSessionFactory(String sessionFactoryName) {
+        return PUBLISHERS.get(sessionFactoryName);
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public void addListener(EntityChangeListener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public void removeListener(EntityChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public List<EntityChangeListener> getListeners() {
+        return Collections.unmodifiableList(new ArrayList<EntityChangeListener>(listeners));
+    }
+
+    /**
+     * Queues the changes of a committed transaction for delivery.
+     */
+    public void publish(Collection<EntityChange> changes) {
+        if (changes.isEmpty()) return;
+        synchronized (pending) {
+            for (EntityChange change : changes) {
+                coalesce(change);
+            }
+            if (scheduled || pending.isEmpty()) return;
+            scheduled = true;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    deliver();
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down, changes are dropped
+            synchronized (pending) {
+                scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Delivers pending changes and stops the publisher thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(window + 5000L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deliver();
+    }
+
+    private void coalesce(EntityChange change) {
+        List<Object> key = Arrays.<Object>asList(change.getEntityName(), change.getId());
+        EntityChange previous = pending.get(key);
+        if (previous == null) {
+            pending.put(key, change);
+            return;
+        }
+        EntityChange.Operation operation = merge(previous.getOperation(), change.getOperation());
+        if (operation == null) {
+            pending.remove(key);
+        } else if (operation != previous.getOperation()) {
+            pending.put(key, new EntityChange(change.getEntityName(), change.getId(), operation));
+        }
+    }
+
+    /**
+     * Combines two consecutive operations on the same instance, {@code null} when they cancel out.
+     */
+    private static EntityChange.Operation merge(EntityChange.Operation first, EntityChange.Operation second) {
+        switch (first) {
+            case INSERT:
+                return second == EntityChange.Operation.DELETE ? null : EntityChange.Operation.INSERT;
+            case DELETE:
+                return second == EntityChange.Operation.DELETE ? EntityChange.Operation.DELETE : EntityChange.Operation.UPDATE;
+            default:
+                return second == EntityChange.Operation.DELETE ? EntityChange.Operation.DELETE : EntityChange.Operation.UPDATE;
+        }
+    }
+
+    private void deliver() {
+        List<EntityChange> changes;
+        synchronized (pending) {
+            scheduled = false;
+            if (pending.isEmpty()) return;
+            changes = Collections.unmodifiableList(new ArrayList<EntityChange>(pending.values()));
+            pending.clear();
+        }
+        for (EntityChangeListener listener : listeners) {
+            try {
+                listener.entitiesChanged(sessionFactoryName, changes);
+            } catch (RuntimeException e) {
+                LOG.warn("Entity change listener " + listener + " of '" + sessionFactoryName + "' failed", e);
+            }
+        }
+    }
+
+    /**
+     * Groups changes by entity name, handy for views that refresh per type.
+     */
+    public static Map<String, Set<Serializable>> idsByEntityName(List<EntityChange> changes) {
+        Map<String, Set<Serializable>> ids = new LinkedHashMap<String, Set<Serializable>>();
+        for (EntityChange change : changes) {
+            Set<Serializable> set = ids.get(change.getEntityName());
+            if (set == null) {
+                set = new LinkedHashSet<Serializable>();
+                ids.put(change.getEntityName(), set);
+            }
+            set.add(change.getId());
+        }
+        return ids;
+    }
+}
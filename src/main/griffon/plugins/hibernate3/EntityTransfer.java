@@ -0,0 +1,843 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.JdbcUtils;
+import org.hibernate.*;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.ComponentType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * <p>Streams entities or query results to and from CSV or a compact binary row
+ * format.</p>
+ * <p>Exports read through a forward-only cursor of a {@code StatelessSession} and
+ * write through a buffered {@code FileChannel}; numbers are written without
+ * going through intermediate strings. Imports parse the file from a
+ * {@code FileChannel} and insert rows with batched JDBC statements, committing
+ * every {@code commitInterval} rows.</p>
+ * <p>Entity exports contain the identifier followed by every property that is
+ * neither a collection nor a component. Many-to-one associations are written as
+ * the identifier of the associated entity. The first row of a CSV file holds the
+ * column names; an empty unquoted field stands for {@code null}.</p>
+ *
+ * @author Andres Almiray
+ */
+public final class EntityTransfer {
+    private static final Logger LOG = LoggerFactory.getLogger(EntityTransfer.class);
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_COMMIT_INTERVAL = 10000;
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int FETCH_SIZE = 1000;
+    private static final int BINARY_MAGIC = 0x47483354; // GH3T
+    private static final byte BINARY_VERSION = 1;
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_STRING = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Format {
+        CSV, BINARY
+    }
+
+    private EntityTransfer() {}
+
+    /**
+     * Writes every instance of {@code entityName} to {@code file}.
+     *
+     * @return the number of rows written
+     */
+    public static long exportEntity(String sessionFactoryName, String entityName, File file, Format format) {
+        SessionFactoryImplementor factory = acquire(sessionFactoryName);
+        try {
+            return exportEntity(factory, entityName, file, format);
+        } finally {
+            Hibernate3Holder.getInstance().releaseSessionFactory(sessionFactoryName, factory);
+        }
+    }
+
+    private static long exportEntity(SessionFactoryImplementor factory, String entityName, File file, Format format) {
+        EntityColumns columns = new EntityColumns(factory, entityName);
+        StatelessSession session = factory.openStatelessSession();
+        ScrollableResults results = null;
+        RowWriter writer = null;
+        try {
+            writer = newWriter(format, file, factory, columns.names, columns.types);
+            results = session.createQuery("from " + entityName)
+                .setReadOnly(true)
+                .setFetchSize(FETCH_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+            Object[] row = new Object[columns.names.length];
+            long count = 0;
+            while (results.next()) {
+                columns.extract(results.get(0), (SessionImplementor) session, row);
+                writer.write(row);
+                count++;
+            }
+            writer.close();
+            writer = null;
+            return count;
+        } catch (IOException e) {
+            throw new HibernateException("Could not export " + entityName + " to " + file, e);
+        } finally {
+            if (results != null) results.close();
+            if (writer != null) writer.abort();
+            session.close();
+        }
+    }
+
+    /**
+     * Writes the rows of an HQL query to {@code file}. Column names are taken
+     * from the query's return aliases; use the entity's property names as aliases
+     * if the file is meant to be imported later.
+     *
+     * @return the number of rows written
+     */
+    public static long exportQuery(String sessionFactoryName, String hql, Map<String, ?> params, File file, Format format) {
+        SessionFactoryImplementor factory = acquire(sessionFactoryName);
+        try {
+            return exportQuery(factory, hql, params, file, format);
+        } finally {
+            Hibernate3Holder.getInstance().releaseSessionFactory(sessionFactoryName, factory);
+        }
+    }
+
+    private static long exportQuery(SessionFactoryImplementor factory, String hql, Map<String, ?> params, File file, Format format) {
+        StatelessSession session = factory.openStatelessSession();
+        ScrollableResults results = null;
+        RowWriter writer = null;
+        try {
+            Query query = session.createQuery(hql);
+            if (params != null) {
+                for (Map.Entry<String, ?> param : params.entrySet()) {
+                    if (param.getValue() instanceof Collection) {
+                        query.setParameterList(param.getKey(), (Collection) param.getValue());
+                    } else {
+                        query.setParameter(param.getKey(), param.getValue());
+                    }
+                }
+            }
+            writer = newWriter(format, file, factory, query.getReturnAliases(), query.getReturnTypes());
+            results = query.setReadOnly(true).setFetchSize(FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+            long count = 0;
+            while (results.next()) {
+                writer.write(results.get());
+                count++;
+            }
+            writer.close();
+            writer = null;
+            return count;
+        } catch (IOException e) {
+            throw new HibernateException("Could not export query results to " + file, e);
+        } finally {
+            if (results != null) results.close();
+            if (writer != null) writer.abort();
+            session.close();
+        }
+    }
+
+    public static long importEntity(String sessionFactoryName, String entityName, File file, Format format) {
+        return importEntity(sessionFactoryName, entityName, file, format, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Inserts the rows found in {@code file} into the table of {@code entityName}.
+     * Columns are matched by name; insertable columns missing from the file are
+     * set to {@code null}. Rows are sent in JDBC batches of {@code batchSize} and
+     * committed every {@code commitInterval} rows, a failure rolls back the
+     * uncommitted rows only.
+     *
+     * @return the number of rows inserted
+     */
+    public static long importEntity(String sessionFactoryName, String entityName, File file, Format format, int batchSize, int commitInterval) {
+        SessionFactoryImplementor factory = acquire(sessionFactoryName);
+        try {
+            return importEntity(factory, entityName, file, format, batchSize, commitInterval);
+        } finally {
+            Hibernate3Holder.getInstance().releaseSessionFactory(sessionFactoryName, factory);
+        }
+    }
+
+    private static long importEntity(SessionFactoryImplementor factory, String entityName, File file, Format format, int batchSize, int commitInterval) {
+        EntityColumns columns = new EntityColumns(factory, entityName);
+        EntityPersister persister = factory.getEntityPersister(entityName);
+        if (!(persister instanceof SingleTableEntityPersister)) {
+            throw new HibernateException("Importing is only supported for entities mapped to a single table, " + entityName + " is not");
+        }
+        SingleTableEntityPersister tablePersister = (SingleTableEntityPersister) persister;
+        StatelessSession session = factory.openStatelessSession();
+        ConnectionProvider connectionProvider = factory.getConnectionProvider();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        RowReader reader = null;
+        boolean autoCommit = true;
+        try {
+            reader = newReader(format, file);
+            int[] sourceIndex = columns.match(reader.getColumnNames());
+            connection = connectionProvider.getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(columns.insertSql(tablePersister));
+
+            Object[] row;
+            Object[] values = new Object[columns.names.length];
+            long count = 0;
+            while ((row = reader.next()) != null) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = sourceIndex[i] < 0 || sourceIndex[i] >= row.length ? null : columns.coerce(i, row[sourceIndex[i]]);
+                }
+                columns.bind(statement, values, (SessionImplementor) session);
+                statement.addBatch();
+                count++;
+                if (count % batchSize == 0) statement.executeBatch();
+                if (count % commitInterval == 0) {
+                    statement.executeBatch();
+                    connection.commit();
+                    if (LOG.isDebugEnabled()) LOG.debug("Imported " + count + " rows into " + entityName);
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+            return count;
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new HibernateException("Could not import " + file + " into " + entityName, e);
+        } catch (IOException e) {
+            rollback(connection);
+            throw new HibernateException("Could not import " + file + " into " + entityName, e);
+        } catch (RuntimeException e) {
+            rollback(connection);
+            throw e;
+        } finally {
+            if (reader != null) reader.close();
+            JdbcUtils.closeStatement(statement);
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(autoCommit);
+                    connectionProvider.closeConnection(connection);
+                } catch (SQLException e) {
+                    LOG.warn("Could not release import connection", e);
+                }
+            }
+            session.close();
+        }
+    }
+
+    // holds the factory in use for the whole transfer, so it is neither evicted nor closed underneath it
+    private static SessionFactoryImplementor acquire(String sessionFactoryName) {
+        return (SessionFactoryImplementor) Hibernate3Holder.getInstance().acquireSessionFactory(sessionFactoryName);
+    }
+
+    private static void rollback(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOG.warn("Could not roll back import", e);
+        }
+    }
+
+    private static RowWriter newWriter(Format format, File file, SessionFactoryImplementor factory, String[] names, Type[] types) throws IOException {
+        return format == Format.BINARY ? new BinaryWriter(file, factory, names, types) : new CsvWriter(file, factory, names, types);
+    }
+
+    private static RowReader newReader(Format format, File file) throws IOException {
+        return format == Format.BINARY ? new BinaryReader(file) : new CsvReader(file);
+    }
+
+    /**
+     * The exportable columns of an entity: its identifier plus every property that
+     * is neither a collection nor a component, associations reduced to their id.
+     */
+    private static class EntityColumns {
+        private final SessionFactoryImplementor factory;
+        private final EntityPersister persister;
+        private final String[] names;
+        private final Type[] types;
+        private final int[] propertyIndex;
+        private final EntityType[] associations;
+
+        private EntityColumns(SessionFactoryImplementor factory, String entityName) {
+            this.factory = factory;
+            this.persister = factory.getEntityPersister(entityName);
+            if (persister.getIdentifierType() instanceof ComponentType) {
+                throw new HibernateException("Composite identifiers are not supported, " + entityName + " has one");
+            }
+            List<String> names = new ArrayList<String>();
+            List<Type> types = new ArrayList<Type>();
+            List<Integer> indices = new ArrayList<Integer>();
+            List<EntityType> associations = new ArrayList<EntityType>();
+            names.add(persister.getIdentifierPropertyName());
+            types.add(persister.getIdentifierType());
+            indices.add(-1);
+            associations.add(null);
+            Type[] propertyTypes = persister.getPropertyTypes();
+            String[] propertyNames = persister.getPropertyNames();
+            boolean[] insertable = persister.getPropertyInsertability();
+            for (int i = 0; i < propertyTypes.length; i++) {
+                Type type = propertyTypes[i];
+                if (!insertable[i] || type instanceof CollectionType || type instanceof ComponentType) continue;
+                names.add(propertyNames[i]);
+                indices.add(i);
+                if (type instanceof EntityType) {
+                    EntityType entityType = (EntityType) type;
+                    associations.add(entityType);
+                    types.add(entityType.getIdentifierOrUniqueKeyType(factory));
+                } else {
+                    associations.add(null);
+                    types.add(type);
+                }
+            }
+            this.names = names.toArray(new String[names.size()]);
+            this.types = types.toArray(new Type[types.size()]);
+            this.associations = associations.toArray(new EntityType[associations.size()]);
+            this.propertyIndex = new int[indices.size()];
+            for (int i = 0; i < propertyIndex.length; i++) {
+                propertyIndex[i] = indices.get(i);
+            }
+        }
+
+        private void extract(Object entity, SessionImplementor session, Object[] row) {
+            Object[] properties = persister.getPropertyValues(entity, EntityMode.POJO);
+            for (int i = 0; i < row.length; i++) {
+                if (propertyIndex[i] < 0) {
+                    row[i] = persister.getIdentifier(entity, session);
+                } else if (associations[i] != null) {
+                    row[i] = identifierOf(associations[i], properties[propertyIndex[i]], session);
+                } else {
+                    row[i] = properties[propertyIndex[i]];
+                }
+            }
+        }
+
+        private Object identifierOf(EntityType type, Object value, SessionImplementor session) {
+            if (value == null) return null;
+            if (value instanceof HibernateProxy) {
+                return ((HibernateProxy) value).getHibernateLazyInitializer().getIdentifier();
+            }
+            return factory.getEntityPersister(type.getAssociatedEntityName()).getIdentifier(value, session);
+        }
+
+        private int[] match(String[] sourceNames) {
+            int[] indices = new int[names.length];
+            Map<String, Integer> positions = new HashMap<String, Integer>();
+            for (int i = 0; i < sourceNames.length; i++) {
+                positions.put(sourceNames[i], i);
+            }
+            for (int i = 0; i < names.length; i++) {
+                Integer position = positions.get(names[i]);
+                indices[i] = position != null ? position : -1;
+            }
+            if (indices[0] < 0 && !persister.getIdentifierType().getReturnedClass().isPrimitive()) {
+                LOG.warn("File has no '" + names[0] + "' column, rows will be inserted with null identifiers");
+            }
+            return indices;
+        }
+
+        private String insertSql(SingleTableEntityPersister persister) {
+            StringBuilder columnList = new StringBuilder();
+            StringBuilder valueList = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                String[] columnNames = propertyIndex[i] < 0 ?
+                    persister.getIdentifierColumnNames() :
+                    persister.getPropertyColumnNames(propertyIndex[i]);
+                if (columnNames.length != types[i].getColumnSpan(factory)) {
+                    throw new HibernateException("Property " + names[i] + " of " + persister.getEntityName() + " is not mapped to plain columns");
+                }
+                for (String columnName : columnNames) {
+                    if (columnList.length() > 0) {
+                        columnList.append(", ");
+                        valueList.append(", ");
+                    }
+                    columnList.append(columnName);
+                    valueList.append('?');
+                }
+            }
+            if (persister.getDiscriminatorColumnName() != null && persister.getDiscriminatorSQLValue() != null) {
+                columnList.append(", ").append(persister.getDiscriminatorColumnName());
+                valueList.append(", ").append(persister.getDiscriminatorSQLValue());
+            }
+            return "insert into " + persister.getTableName() + " (" + columnList + ") values (" + valueList + ")";
+        }
+
+        private void bind(PreparedStatement statement, Object[] values, SessionImplementor session) throws SQLException {
+            int index = 1;
+            for (int i = 0; i < values.length; i++) {
+                types[i].nullSafeSet(statement, values[i], index, session);
+                index += types[i].getColumnSpan(factory);
+            }
+        }
+
+        /**
+         * Converts a value read from a file into an instance of the column's Java type.
+         */
+        private Object coerce(int column, Object value) {
+            if (value == null) return null;
+            Type type = types[column];
+            Class target = type.getReturnedClass();
+            if (target.isInstance(value)) return value;
+            if (value instanceof Number) {
+                Number number = (Number) value;
+                if (target == Long.class || target == long.class) return number.longValue();
+                if (target == Integer.class || target == int.class) return number.intValue();
+                if (target == Short.class || target == short.class) return number.shortValue();
+                if (target == Byte.class || target == byte.class) return number.byteValue();
+                if (target == Double.class || target == double.class) return number.doubleValue();
+                if (target == Float.class || target == float.class) return number.floatValue();
+                if (target == BigDecimal.class) return value instanceof Double ? BigDecimal.valueOf(number.doubleValue()) : BigDecimal.valueOf(number.longValue());
+                if (target == BigInteger.class) return BigInteger.valueOf(number.longValue());
+            }
+            return type.fromXMLString(value.toString(), factory);
+        }
+    }
+
+    private interface RowWriter {
+        void write(Object[] row) throws IOException;
+
+        void close() throws IOException;
+
+        void abort();
+    }
+
+    private interface RowReader {
+        String[] getColumnNames();
+
+        /**
+         * Returns the next row, {@code null} at the end of the file.
+         */
+        Object[] next() throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Buffers output in a direct {@code ByteBuffer} and drains it to a {@code FileChannel}.
+     */
+    private static abstract class ChannelWriter implements RowWriter {
+        protected final File file;
+        protected final SessionFactoryImplementor factory;
+        protected final Type[] types;
+        protected final FileChannel channel;
+        protected final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final char[] digits = new char[20];
+
+        protected ChannelWriter(File file, SessionFactoryImplementor factory, Type[] types) throws IOException {
+            this.file = file;
+            this.factory = factory;
+            this.types = types;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.channel.truncate(0);
+        }
+
+        protected void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) drain();
+        }
+
+        protected void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        protected void putAscii(long value) throws IOException {
+            ensure(20);
+            if (value == Long.MIN_VALUE) {
+                putUtf8(String.valueOf(value));
+                return;
+            }
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int position = digits.length;
+            do {
+                digits[--position] = (char) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            while (position < digits.length) {
+                buffer.put((byte) digits[position++]);
+            }
+        }
+
+        protected void putUtf8(CharSequence value) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(value);
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isOverflow()) {
+                    drain();
+                } else {
+                    break;
+                }
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                drain();
+            }
+        }
+
+        protected String asString(int column, Object value) {
+            if (value instanceof String) return (String) value;
+            return types[column].toXMLString(value, factory);
+        }
+
+        public void close() throws IOException {
+            drain();
+            channel.force(false);
+            channel.close();
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            file.delete();
+        }
+    }
+
+    private static class CsvWriter extends ChannelWriter {
+        private CsvWriter(File file, SessionFactoryImplementor factory, String[] names, Type[] types) throws IOException {
+            super(file, factory, types);
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) buffer.put((byte) ',');
+                putField(names[i]);
+            }
+            buffer.put((byte) '\n');
+        }
+
+        public void write(Object[] row) throws IOException {
+            for (int i = 0; i < row.length; i++) {
+                ensure(1);
+                if (i > 0) buffer.put((byte) ',');
+                Object value = row[i];
+                if (value == null) continue;
+                if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                    putAscii(((Number) value).longValue());
+                } else if (value instanceof Boolean) {
+                    putUtf8(value.toString());
+                } else {
+                    putField(asString(i, value));
+                }
+            }
+            ensure(1);
+            buffer.put((byte) '\n');
+        }
+
+        private void putField(String value) throws IOException {
+            boolean quote = value.length() == 0;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                putUtf8(value);
+                return;
+            }
+            ensure(1);
+            buffer.put((byte) '"');
+            putUtf8(value.indexOf('"') > -1 ? value.replace("\"", "\"\"") : value);
+            ensure(1);
+            buffer.put((byte) '"');
+        }
+    }
+
+    private static class BinaryWriter extends ChannelWriter {
+        private BinaryWriter(File file, SessionFactoryImplementor factory, String[] names, Type[] types) throws IOException {
+            super(file, factory, types);
+            buffer.putInt(BINARY_MAGIC);
+            buffer.put(BINARY_VERSION);
+            buffer.putInt(names.length);
+            for (String name : names) {
+                putString(name);
+            }
+        }
+
+        public void write(Object[] row) throws IOException {
+            for (int i = 0; i < row.length; i++) {
+                Object value = row[i];
+                ensure(9);
+                if (value == null) {
+                    buffer.put(TAG_NULL);
+                } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                    buffer.put(TAG_LONG);
+                    buffer.putLong(((Number) value).longValue());
+                } else if (value instanceof Double || value instanceof Float) {
+                    buffer.put(TAG_DOUBLE);
+                    buffer.putDouble(((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    buffer.put(TAG_BOOLEAN);
+                    buffer.put((byte) (((Boolean) value) ? 1 : 0));
+                } else {
+                    buffer.put(TAG_STRING);
+                    putString(asString(i, value));
+                }
+            }
+        }
+
+        private void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF8);
+            ensure(4);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) drain();
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Reads a {@code FileChannel} through a direct {@code ByteBuffer} that is
+     * refilled on demand.
+     */
+    private static abstract class ChannelReader implements RowReader {
+        protected final FileChannel channel;
+        protected ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        protected boolean eof;
+
+        protected ChannelReader(File file) throws IOException {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+            buffer.flip();
+        }
+
+        /**
+         * Makes sure at least {@code bytes} bytes are buffered, returns false if the
+         * file ends before that.
+         */
+        protected boolean fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return true;
+            if (bytes > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2));
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes && !eof) {
+                if (channel.read(buffer) < 0) eof = true;
+            }
+            buffer.flip();
+            return buffer.remaining() >= bytes;
+        }
+
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static class BinaryReader extends ChannelReader {
+        private final String[] columnNames;
+
+        private BinaryReader(File file) throws IOException {
+            super(file);
+            if (!fill(9) || buffer.getInt() != BINARY_MAGIC) {
+                throw new IOException(file + " is not a binary export file");
+            }
+            byte version = buffer.get();
+            if (version != BINARY_VERSION) {
+                throw new IOException("Unsupported binary export version " + version);
+            }
+            columnNames = new String[buffer.getInt()];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = getString();
+            }
+        }
+
+        public String[] getColumnNames() {
+            return columnNames;
+        }
+
+        public Object[] next() throws IOException {
+            if (!fill(1)) return null;
+            Object[] row = new Object[columnNames.length];
+            for (int i = 0; i < row.length; i++) {
+                if (!fill(1)) throw new IOException("Truncated row");
+                byte tag = buffer.get();
+                switch (tag) {
+                    case TAG_NULL:
+                        break;
+                    case TAG_LONG:
+                        require(8);
+                        row[i] = buffer.getLong();
+                        break;
+                    case TAG_DOUBLE:
+                        require(8);
+                        row[i] = buffer.getDouble();
+                        break;
+                    case TAG_BOOLEAN:
+                        require(1);
+                        row[i] = buffer.get() != 0;
+                        break;
+                    case TAG_STRING:
+                        row[i] = getString();
+                        break;
+                    default:
+                        throw new IOException("Unknown value tag " + tag);
+                }
+            }
+            return row;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (!fill(bytes)) throw new IOException("Truncated row");
+        }
+
+        private String getString() throws IOException {
+            require(4);
+            int length = buffer.getInt();
+            require(length);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * RFC 4180 parser working on characters decoded straight from the channel.
+     */
+    private static class CsvReader extends ChannelReader {
+        private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        private final StringBuilder field = new StringBuilder();
+        private final List<Object> fields = new ArrayList<Object>();
+        private final String[] columnNames;
+        private boolean decoderFlushed;
+
+        private CsvReader(File file) throws IOException {
+            super(file);
+            chars.flip();
+            Object[] header = next();
+            if (header == null) throw new IOException(file + " is empty");
+            columnNames = new String[header.length];
+            for (int i = 0; i < header.length; i++) {
+                columnNames[i] = header[i] != null ? header[i].toString() : "";
+            }
+        }
+
+        public String[] getColumnNames() {
+            return columnNames;
+        }
+
+        public Object[] next() throws IOException {
+            fields.clear();
+            field.setLength(0);
+            boolean quoted = false, inQuotes = false, any = false;
+            int c;
+            while ((c = read()) >= 0) {
+                any = true;
+                if (inQuotes) {
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            read();
+                            field.append('"');
+                        } else {
+                            inQuotes = false;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    inQuotes = true;
+                    quoted = true;
+                } else if (c == ',') {
+                    endField(quoted);
+                    quoted = false;
+                } else if (c == '\n' || c == '\r') {
+                    if (c == '\r' && peek() == '\n') read();
+                    endField(quoted);
+                    return fields.toArray();
+                } else {
+                    field.append((char) c);
+                }
+            }
+            if (!any) return null;
+            endField(quoted);
+            return fields.toArray();
+        }
+
+        private void endField(boolean quoted) {
+            fields.add(field.length() == 0 && !quoted ? null : field.toString());
+            field.setLength(0);
+        }
+
+        private int read() throws IOException {
+            if (!chars.hasRemaining() && !refill()) return -1;
+            return chars.get();
+        }
+
+        private int peek() throws IOException {
+            if (!chars.hasRemaining() && !refill()) return -1;
+            return chars.get(chars.position());
+        }
+
+        private boolean refill() throws IOException {
+            chars.clear();
+            while (chars.position() == 0) {
+                if (!buffer.hasRemaining() && !eof) fill(1);
+                CoderResult result = decoder.decode(buffer, chars, eof);
+                if (eof && !buffer.hasRemaining()) {
+                    if (!decoderFlushed) {
+                        decoder.flush(chars);
+                        decoderFlushed = true;
+                    }
+                    break;
+                }
+                // an incomplete multi byte sequence sits at the end of the buffer
+                if (result.isUnderflow() && chars.position() == 0) fill(buffer.remaining() + 1);
+            }
+            chars.flip();
+            return chars.hasRemaining();
+        }
+    }
+}
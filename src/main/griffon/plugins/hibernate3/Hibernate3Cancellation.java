@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.exceptions.CancelledException;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cancels a running {@code withHibernate3} block from any thread. The statement
+ * being executed is cancelled through JDBC, and the block's transaction is
+ * rolled back once it returns. Blocks running many statements may call
+ * {@code checkCancelled()} between them to stop early.
+ *
+ * @author Andres Almiray
+ * @see Hibernate3Options
+ */
+public final class Hibernate3Cancellation {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Cancellation.class);
+
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+    private volatile long deadline;
+    private Session session;
+
+    Hibernate3Cancellation() {
+    }
+
+    public void cancel() {
+        Session running;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            running = session;
+        }
+        if (running == null) return;
+        try {
+            running.cancelQuery();
+        } catch (HibernateException e) {
+            // no statement running, or it just completed
+            if (LOG.isDebugEnabled()) LOG.debug("Could not cancel running statement", e);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns {@code true} if the block was stopped by its deadline rather than by {@code cancel()}.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @throws CancelledException if the block was cancelled or ran past its deadline
+     */
+    public void checkCancelled() {
+        if (expire()) {
+            throw new CancelledException(timedOut ? "Deadline expired" : "Cancelled");
+        }
+    }
+
+    /**
+     * Marks the block as timed out if its deadline passed.
+     *
+     * @return whether the block is cancelled
+     */
+    boolean expire() {
+        if (deadline > 0 && !cancelled && System.currentTimeMillis() >= deadline) {
+            timedOut = true;
+            cancelled = true;
+        }
+        return cancelled;
+    }
+
+    synchronized void attach(Session session, long deadline) {
+        this.session = session;
+        this.deadline = deadline;
+    }
+
+    synchronized void detach() {
+        this.session = null;
+    }
+}
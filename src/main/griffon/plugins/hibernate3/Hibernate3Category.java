@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import griffon.util.CallableWithArgs;
+import groovy.lang.Closure;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * <p>The {@code withHibernate3} methods as static methods taking the receiver
+ * as first argument, usable as a category</p>
+ * <pre>
+ * use(Hibernate3Category) {
+ *     withHibernate3 { sessionFactoryName, session -> ... }
+ * }
+ * </pre>
+ * <p>or as an extension module, by listing it as an {@code extensionClasses} of
+ * the application's {@code META-INF/services/org.codehaus.groovy.runtime.ExtensionModule}.
+ * Statically compiled code then calls these methods directly.</p>
+ *
+ * @author Andres Almiray
+ */
+public final class Hibernate3Category {
+    private static volatile Hibernate3Provider provider = DefaultHibernate3Provider.getInstance();
+
+    private Hibernate3Category() {
+    }
+
+    static void setProvider(Hibernate3Provider provider) {
+        Hibernate3Category.provider = provider != null ? provider : DefaultHibernate3Provider.getInstance();
+    }
+
+    public static <R> R withHibernate3(Object self, Closure<R> closure) {
+        return provider.withHibernate3(closure);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, Closure<R> closure) {
+        return provider.withHibernate3(sessionFactoryName, closure);
+    }
+
+    public static <R> R withHibernate3(Object self, CallableWithArgs<R> callable) {
+        return provider.withHibernate3(callable);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, CallableWithArgs<R> callable) {
+        return provider.withHibernate3(sessionFactoryName, callable);
+    }
+
+    public static <R> R withHibernate3(Object self, SessionCallback<R> callback) {
+        return provider.withHibernate3(callback);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, SessionCallback<R> callback) {
+        return provider.withHibernate3(sessionFactoryName, callback);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, Hibernate3Options options, Closure<R> closure) {
+        return provider.withHibernate3(sessionFactoryName, options, closure);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, Hibernate3Options options, CallableWithArgs<R> callable) {
+        return provider.withHibernate3(sessionFactoryName, options, callable);
+    }
+
+    public static <R> R withHibernate3(Object self, String sessionFactoryName, Hibernate3Options options, SessionCallback<R> callback) {
+        return provider.withHibernate3(sessionFactoryName, options, callback);
+    }
+
+    public static SpilledResult spillHibernate3(Object self, String sessionFactoryName, String hql) {
+        return provider.spillHibernate3(sessionFactoryName, hql);
+    }
+
+    public static SpilledResult spillHibernate3(Object self, String sessionFactoryName, String hql, Map<String, ?> params) {
+        return provider.spillHibernate3(sessionFactoryName, hql, params);
+    }
+
+    public static SpilledResult spillHibernate3(Object self, String sessionFactoryName, String hql, Map<String, ?> params, String[] columnNames, File directory) {
+        return provider.spillHibernate3(sessionFactoryName, hql, params, columnNames, directory);
+    }
+}
@@ -18,13 +18,30 @@ package griffon.plugins.hibernate3
 
 import griffon.plugins.datasource.DataSourceConnector
 import griffon.plugins.datasource.DataSourceHolder
+import griffon.plugins.hibernate3.internal.ConfigValues
 import griffon.plugins.hibernate3.internal.HibernateConfigurationHelper
+import griffon.plugins.hibernate3.internal.QueryPlanPrecompiler
+import griffon.plugins.hibernate3.internal.SessionFactoryWarmer
 import org.hibernate.SessionFactory
+import org.hibernate.engine.SessionFactoryImplementor
 import org.hibernate.cfg.Configuration
 import griffon.util.ConfigUtils
 import griffon.core.GriffonApplication
 
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
 import javax.sql.DataSource
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletionService
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
 
 /**
  * @author Andres Almiray
@@ -32,7 +49,15 @@ import javax.sql.DataSource
 @Singleton
 final class Hibernate3Connector {
     private static final String DEFAULT = 'default'
-    private bootstrap
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Connector)
+    // per factory, so that disconnecting one destroys the bootstrap that initialized it
+    private final Map<String, Object> bootstraps = new ConcurrentHashMap<String, Object>()
+    private final Object reloadLock = new Object()
+    @Lazy private ExecutorService reloadExecutor = Executors.newSingleThreadExecutor({ Runnable r ->
+        Thread t = new Thread(r, 'hibernate3-reload')
+        t.daemon = true
+        t
+    } as ThreadFactory)
 
     ConfigObject createConfig(GriffonApplication app) {
         if (!app.config.pluginConfig.hibernate3) {
@@ -65,30 +90,278 @@ final class Hibernate3Connector {
 
         config = narrowConfig(config, dataSourceName)
         app.event('Hibernate3ConnectStart', [config, dataSourceName])
-        Configuration configuration = createConfiguration(app, config, dsConfig, dataSourceName)
-        createSchema(dsConfig, dataSourceName, configuration)
-        SessionFactory sessionFactory = configuration.buildSessionFactory()
+        Hibernate3Monitors monitors = Hibernate3Monitors.configure(dataSourceName, config.monitors)
+        HibernateConfigurationHelper configHelper = new HibernateConfigurationHelper(config, dsConfig, dataSourceName, DataSourceHolder.instance.getDataSource(dataSourceName))
+        SessionFactory sessionFactory
+        QueryPlanPrecompiler precompiler
+        try {
+            long start = System.nanoTime()
+            Configuration configuration = createConfiguration(app, configHelper)
+            createSchema(dsConfig, dataSourceName, configuration)
+            monitors?.buildPhase(dataSourceName, Hibernate3Monitor.PHASE_CONFIGURATION, System.nanoTime() - start)
+            start = System.nanoTime()
+            sessionFactory = configuration.buildSessionFactory()
+            monitors?.buildPhase(dataSourceName, Hibernate3Monitor.PHASE_BUILD, System.nanoTime() - start)
+            precompiler = createPrecompiler(config, dataSourceName, configuration, sessionFactory)
+        } catch (Exception e) {
+            // registered while configuring, nothing will use them
+            EntityChangePublisher.unregister(dataSourceName)?.shutdown()
+            Hibernate3Monitors.unregister(dataSourceName)
+            throw e
+        }
+        registerConfiguredServices(dataSourceName, configHelper)
         Hibernate3Holder.instance.setSessionFactory(dataSourceName, sessionFactory)
+        registerServices(app, config, dataSourceName)
+        if (precompiler?.background) precompiler.precompile(sessionFactory)
         app.event('Hibernate3SessionFactoryCreated', [config, dataSourceName, sessionFactory])
-        bootstrap = app.class.classLoader.loadClass('BootstrapHibernate3').newInstance()
-        bootstrap.metaClass.app = app
-        resolveHibernate3Provider(app).withHibernate3(dataSourceName) { dsName, session -> bootstrap.init(dsName, session) }
+        // factories of tools, such as the benchmark, may opt out of the application's bootstrap
+        if (ConfigValues.getBoolean(config, 'bootstrap', true)) {
+            def bootstrap = app.class.classLoader.loadClass('BootstrapHibernate3').newInstance()
+            bootstrap.metaClass.app = app
+            bootstraps[dataSourceName] = bootstrap
+            resolveHibernate3Provider(app).withHibernate3(dataSourceName) { dsName, session -> bootstrap.init(dsName, session) }
+        }
+        if (config.warmup) {
+            new SessionFactoryWarmer(dataSourceName, sessionFactory, resolveHibernate3Provider(app), config.warmup).warmup()
+        }
         app.event('Hibernate3ConnectEnd', [dataSourceName, dataSource])
         sessionFactory
     }
 
+    /**
+     * Builds a new SessionFactory from a freshly loaded {@code Hibernate3Config}
+     * and swaps it in for the current one. Blocks already running keep the
+     * previous factory, which is closed once they are done or after
+     * {@code reload.drainTimeout} seconds (60 by default). The schema is left
+     * untouched and the dataSource is reused as is.
+     */
+    SessionFactory reload(GriffonApplication app, String dataSourceName = DEFAULT) {
+        synchronized (reloadLock) {
+            SessionFactory previous = Hibernate3Holder.instance.getSessionFactory(dataSourceName)
+            if (previous == null) {
+                return connect(app, createConfig(app), dataSourceName)
+            }
+            if (previous instanceof SessionFactoryImplementor && previous.settings.autoDropSchema) {
+                throw new IllegalStateException("SessionFactory '$dataSourceName' uses create-drop, closing it after a reload would drop its schema")
+            }
+
+            app.config.pluginConfig.hibernate3 = ConfigUtils.loadConfigWithI18n('Hibernate3Config')
+            ConfigObject config = narrowConfig(createConfig(app), dataSourceName)
+            ConfigObject dsConfig = DataSourceConnector.instance.createConfig(app)
+            app.event('Hibernate3ReloadStart', [config, dataSourceName, previous])
+            EntityChangePublisher previousPublisher = EntityChangePublisher.unregister(dataSourceName)
+            SqlProfiler previousProfiler = SqlProfiler.forSessionFactory(dataSourceName)
+            Hibernate3Monitors monitors = Hibernate3Monitors.configure(dataSourceName, config.monitors)
+            SessionFactory sessionFactory
+            HibernateConfigurationHelper configHelper = new HibernateConfigurationHelper(config, dsConfig, dataSourceName, DataSourceHolder.instance.getDataSource(dataSourceName))
+            try {
+                long start = System.nanoTime()
+                Configuration configuration = createConfiguration(app, configHelper)
+                // the schema belongs to the running factory
+                configuration.properties.remove('hibernate.hbm2ddl.auto')
+                monitors?.buildPhase(dataSourceName, Hibernate3Monitor.PHASE_CONFIGURATION, System.nanoTime() - start)
+                start = System.nanoTime()
+                sessionFactory = configuration.buildSessionFactory()
+                monitors?.buildPhase(dataSourceName, Hibernate3Monitor.PHASE_BUILD, System.nanoTime() - start)
+                QueryPlanPrecompiler precompiler = createPrecompiler(config, dataSourceName, configuration, sessionFactory)
+                if (precompiler?.background) precompiler.precompile(sessionFactory)
+            } catch (Exception e) {
+                EntityChangePublisher.unregister(dataSourceName)?.shutdown()
+                if (previousPublisher) EntityChangePublisher.register(dataSourceName, previousPublisher)
+                throw e
+            }
+
+            // the previous factory keeps its own profiler until it is retired
+            registerConfiguredServices(dataSourceName, configHelper)
+            Hibernate3Holder.instance.replaceSessionFactory(dataSourceName, sessionFactory)
+            // the queue resolves the factory per write, callers holding it keep using it;
+            // registerServices applies the new settings to it
+            WriteBehindQueue previousQueue = config.writeBehind ? null : WriteBehindQueue.unregister(dataSourceName)
+            PersistenceContextGuard.unregister(dataSourceName)
+            Bulkhead.unregister(dataSourceName)
+            registerServices(app, config, dataSourceName, previousPublisher, previousProfiler)
+            app.event('Hibernate3SessionFactoryCreated', [config, dataSourceName, sessionFactory])
+            previousQueue?.shutdown(30L, TimeUnit.SECONDS)
+            retire(dataSourceName, previous, previousPublisher, ConfigValues.getLong(config, 'reload.drainTimeout', 60L) * 1000L)
+            app.event('Hibernate3ReloadEnd', [dataSourceName, sessionFactory])
+            sessionFactory
+        }
+    }
+
+    /**
+     * Runs {@code reload()} on a background thread.
+     */
+    Future<SessionFactory> reloadAsync(GriffonApplication app, String dataSourceName = DEFAULT) {
+        reloadExecutor.submit({ reload(app, dataSourceName) } as Callable<SessionFactory>)
+    }
+
+    private void retire(String dataSourceName, SessionFactory previous, EntityChangePublisher previousPublisher, long drainTimeout) {
+        Thread.startDaemon("hibernate3-retire-$dataSourceName") {
+            long deadline = System.currentTimeMillis() + drainTimeout
+            int inFlight
+            while ((inFlight = Hibernate3Holder.instance.getInFlightCount(previous)) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L)
+            }
+            if (inFlight > 0) {
+                LOG.warn("Closing replaced SessionFactory '$dataSourceName' with $inFlight blocks still using it")
+            }
+            try {
+                previous.close()
+            } finally {
+                previousPublisher?.shutdown()
+            }
+        }
+    }
+
+    /**
+     * Translates the configured queries and those of known repositories right
+     * away unless they are meant to be translated in the background, in which
+     * case the precompiler is returned.
+     */
+    private QueryPlanPrecompiler createPrecompiler(ConfigObject config, String dataSourceName, Configuration configuration, SessionFactory sessionFactory) {
+        Set<String> repositoryQueries = Hibernate3Repositories.getQueries(dataSourceName)
+        if (!config.queryPlans && !repositoryQueries) return null
+        QueryPlanPrecompiler precompiler = new QueryPlanPrecompiler(dataSourceName, config.queryPlans, configuration)
+        repositoryQueries.each { String hql -> precompiler.addQuery(hql) }
+        if (precompiler.background) return precompiler
+        try {
+            precompiler.precompile(sessionFactory)
+        } catch (Exception e) {
+            sessionFactory.close()
+            throw e
+        }
+        null
+    }
+
+    /**
+     * Registers the services of a factory. When reloading, listeners of the
+     * previous change publisher and profiler, the plugin's own included, are
+     * moved over to the new ones.
+     */
+    private void registerServices(GriffonApplication app, ConfigObject config, String dataSourceName,
+                                  EntityChangePublisher previousPublisher = null, SqlProfiler previousProfiler = null) {
+        if (config.guard) {
+            PersistenceContextGuard.register(dataSourceName, new PersistenceContextGuard(dataSourceName, config.guard))
+        }
+        if (config.bulkhead) {
+            Bulkhead.register(dataSourceName, new Bulkhead(dataSourceName, config.bulkhead))
+        }
+        if (config.writeBehind) {
+            WriteBehindQueue writeBehindQueue = WriteBehindQueue.forSessionFactory(dataSourceName)
+            if (writeBehindQueue) {
+                writeBehindQueue.configure(config.writeBehind)
+            } else {
+                WriteBehindQueue.register(dataSourceName, new WriteBehindQueue(dataSourceName, config.writeBehind, resolveHibernate3Provider(app)))
+            }
+        }
+        SqlProfiler profiler = SqlProfiler.forSessionFactory(dataSourceName)
+        if (profiler && previousProfiler && !previousProfiler.is(profiler)) {
+            previousProfiler.slowStatementListeners.each { profiler.addSlowStatementListener(it) }
+        } else if (profiler) {
+            profiler.addSlowStatementListener({ SqlProfiler.StatementRecord record ->
+                app.eventAsync('Hibernate3SlowStatement', [dataSourceName, record])
+            } as SqlProfiler.SlowStatementListener)
+        }
+        EntityChangePublisher changePublisher = EntityChangePublisher.forSessionFactory(dataSourceName)
+        if (changePublisher && previousPublisher && !previousPublisher.is(changePublisher)) {
+            previousPublisher.listeners.each { changePublisher.addListener(it) }
+        } else if (changePublisher) {
+            changePublisher.addListener({ String sessionFactoryName, List<EntityChange> changes ->
+                app.event('Hibernate3EntitiesChanged', [sessionFactoryName, changes])
+            } as EntityChangeListener)
+        }
+    }
+
     void disconnect(GriffonApplication app, String dataSourceName = DEFAULT) {
         if (!Hibernate3Holder.instance.isSessionFactoryAvailable(dataSourceName)) return
 
+        close(app, dataSourceName, drain(app, dataSourceName))
+    }
+
+    /**
+     * First half of a disconnect: flushes the write-behind queue and waits for
+     * running blocks. Safe to run for several factories at once.
+     */
+    private SessionFactory drain(GriffonApplication app, String dataSourceName) {
         SessionFactory sessionFactory = Hibernate3Holder.instance.getSessionFactory(dataSourceName)
         app.event('Hibernate3DisconnectStart', [dataSourceName, sessionFactory])
-        resolveHibernate3Provider(app).withHibernate3(dataSourceName) { dsName, session -> bootstrap.destroy(dsName, session) }
+        WriteBehindQueue writeBehindQueue = WriteBehindQueue.unregister(dataSourceName)
+        if (writeBehindQueue) writeBehindQueue.shutdown(30L, TimeUnit.SECONDS)
+        // shutdown work must not be turned away
+        Bulkhead.unregister(dataSourceName)
+        ConfigObject config = narrowConfig(createConfig(app), dataSourceName)
+        int inFlight = Hibernate3Holder.instance.drainSessionFactory(dataSourceName, ConfigValues.getLong(config, 'shutdown.drainTimeout', 30L) * 1000L)
+        if (inFlight > 0) {
+            LOG.warn("Closing SessionFactory '$dataSourceName' with $inFlight blocks still using it")
+        }
+        sessionFactory
+    }
+
+    /**
+     * Second half of a disconnect: runs the bootstrap, closes the factory and
+     * disconnects its dataSource. Runs on one thread at a time.
+     */
+    private void close(GriffonApplication app, String dataSourceName, SessionFactory sessionFactory) {
+        // disconnectAll() drains on other threads
+        Hibernate3Holder.instance.takeOverDrain(dataSourceName)
+        def bootstrap = bootstraps.remove(dataSourceName)
+        if (bootstrap) {
+            resolveHibernate3Provider(app).withHibernate3(dataSourceName) { dsName, session -> bootstrap.destroy(dsName, session) }
+        }
         Hibernate3Holder.instance.disconnectSessionFactory(dataSourceName)
+        sessionFactory.close()
+        PersistenceContextGuard.unregister(dataSourceName)
+        EntityChangePublisher.unregister(dataSourceName)?.shutdown()
+        SqlProfiler.unregister(dataSourceName)
+        BatchFetchTuner.unregister(dataSourceName)
+        Hibernate3Monitors.unregister(dataSourceName)
         app.event('Hibernate3DisconnectEnd', [dataSourceName])
         ConfigObject dsconfig = DataSourceConnector.instance.createConfig(app)
         DataSourceConnector.instance.disconnect(app, dsconfig, dataSourceName)
     }
 
+    /**
+     * Disconnects every connected SessionFactory. All of them are drained at once:
+     * each one flushes its write-behind queue, then waits up to
+     * {@code shutdown.drainTimeout} seconds (30 by default) for running blocks to
+     * finish, refusing new ones meanwhile. Factories are then closed one at a time
+     * on the calling thread, in the order their drains complete.
+     */
+    void disconnectAll(GriffonApplication app) {
+        String[] names = Hibernate3Holder.instance.sessionFactoryNames
+        if (names.length == 0) return
+        if (names.length == 1) {
+            disconnect(app, names[0])
+            return
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(names.length, { Runnable r ->
+            Thread t = new Thread(r, 'hibernate3-disconnect')
+            t.daemon = true
+            t
+        } as ThreadFactory)
+        try {
+            CompletionService<SessionFactory> drains = new ExecutorCompletionService<SessionFactory>(executor)
+            Map<Future, String> pending = [:]
+            names.each { String name ->
+                pending[drains.submit({ drain(app, name) } as Callable<SessionFactory>)] = name
+            }
+            // bootstraps and the dataSource connector are not meant to be called concurrently
+            while (pending) {
+                Future<SessionFactory> drained = drains.take()
+                String name = pending.remove(drained)
+                try {
+                    close(app, name, drained.get())
+                } catch (ExecutionException e) {
+                    LOG.error("Could not disconnect SessionFactory '$name'", e.cause)
+                } catch (Exception e) {
+                    LOG.error("Could not disconnect SessionFactory '$name'", e)
+                }
+            }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
     Hibernate3Provider resolveHibernate3Provider(GriffonApplication app) {
         def hibernate3Provider = app.config.hibernate3Provider
         if (hibernate3Provider instanceof Class) {
@@ -101,19 +374,37 @@ final class Hibernate3Connector {
         hibernate3Provider
     }
 
-    private Configuration createConfiguration(GriffonApplication app, ConfigObject config, ConfigObject dsConfig, String dataSourceName) {
-        DataSource dataSource = DataSourceHolder.instance.getDataSource(dataSourceName)
-        HibernateConfigurationHelper configHelper = new HibernateConfigurationHelper(config, dsConfig, dataSourceName, dataSource)
+    private Configuration createConfiguration(GriffonApplication app, HibernateConfigurationHelper configHelper) {
         Configuration configuration = configHelper.buildConfiguration()
         app.event('Hibernate3ConfigurationAvailable', [[
                 configuration: configuration,
-                dataSourceName: dataSourceName,
-                dataSourceConfig: dsConfig,
-                hibernateConfig: config
+                dataSourceName: configHelper.dataSourceName,
+                dataSourceConfig: configHelper.dataSourceConfig,
+                hibernateConfig: configHelper.sessionConfig
         ]])
         configuration
     }
 
+    /**
+     * Registers the services the configuration helper created, once the factory
+     * configured with them has been built.
+     */
+    private void registerConfiguredServices(String dataSourceName, HibernateConfigurationHelper configHelper) {
+        SqlProfiler profiler = configHelper.sqlProfiler
+        if (profiler) {
+            SqlProfiler.register(dataSourceName, profiler)
+        } else {
+            SqlProfiler.unregister(dataSourceName)
+        }
+        BatchFetchTuner tuner = configHelper.batchFetchTuner
+        if (tuner) {
+            tuner.commit()
+            BatchFetchTuner.register(dataSourceName, tuner)
+        } else {
+            BatchFetchTuner.unregister(dataSourceName)
+        }
+    }
+
     private void createSchema(ConfigObject config, String dataSourceName, Configuration configuration) {
         String dbCreate = 'create-drop'
         if (dataSourceName == DEFAULT) {
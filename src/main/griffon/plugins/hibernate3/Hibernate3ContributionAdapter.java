@@ -19,6 +19,8 @@ package griffon.plugins.hibernate3;
 import griffon.util.CallableWithArgs;
 import groovy.lang.Closure;
 
+import java.util.Map;
+
 /**
  * @author Andres Almiray
  */
@@ -50,4 +52,32 @@ public class Hibernate3ContributionAdapter implements Hibernate3ContributionHand
     public <R> R withHibernate3(String sessionFactoryName, CallableWithArgs<R> callable) {
         return provider.withHibernate3(sessionFactoryName, callable);
     }
+
+    public <R> R withHibernate3(SessionCallback<R> callback) {
+        return withHibernate3(DEFAULT, callback);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, SessionCallback<R> callback) {
+        return provider.withHibernate3(sessionFactoryName, callback);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, Closure<R> closure) {
+        return provider.withHibernate3(sessionFactoryName, options, closure);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, CallableWithArgs<R> callable) {
+        return provider.withHibernate3(sessionFactoryName, options, callable);
+    }
+
+    public <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, SessionCallback<R> callback) {
+        return provider.withHibernate3(sessionFactoryName, options, callback);
+    }
+
+    public SpilledResult spillHibernate3(String sessionFactoryName, String hql) {
+        return provider.spillHibernate3(sessionFactoryName, hql);
+    }
+
+    public SpilledResult spillHibernate3(String sessionFactoryName, String hql, Map<String, ?> params) {
+        return provider.spillHibernate3(sessionFactoryName, hql, params);
+    }
 }
\ No newline at end of file
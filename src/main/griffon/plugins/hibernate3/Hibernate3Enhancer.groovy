@@ -16,7 +16,8 @@
 
 package griffon.plugins.hibernate3
 
-import griffon.util.CallableWithArgs
+import griffon.plugins.hibernate3.internal.WithHibernate3MetaMethod
+import org.codehaus.groovy.runtime.HandleMetaClass
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
@@ -24,24 +25,37 @@ import org.slf4j.LoggerFactory
  * @author Andres Almiray
  */
 final class Hibernate3Enhancer {
-    private static final String DEFAULT = 'default'
     private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Enhancer)
 
     private Hibernate3Enhancer() {}
-    
+
+    /**
+     * Registers the {@code withHibernate3} methods on the given MetaClass. The
+     * registered methods are shared by every MetaClass enhanced with the same
+     * provider and call it directly.
+     */
     static void enhance(MetaClass mc, Hibernate3Provider provider = DefaultHibernate3Provider.instance) {
         if (LOG.debugEnabled) LOG.debug("Enhancing $mc with $provider")
-        mc.withHibernate3 = {Closure closure ->
-            provider.withHibernate3(DEFAULT, closure)
-        }
-        mc.withHibernate3 << {String sessionFactoryName, Closure closure ->
-            provider.withHibernate3(sessionFactoryName, closure)
-        }
-        mc.withHibernate3 << {CallableWithArgs callable ->
-            provider.withHibernate3(DEFAULT, callable)
-        }
-        mc.withHibernate3 << {String sessionFactoryName, CallableWithArgs callable ->
-            provider.withHibernate3(sessionFactoryName, callable)
+        ExpandoMetaClass emc = expandoMetaClassOf(mc)
+        for (MetaMethod method : WithHibernate3MetaMethod.forProvider(provider)) {
+            emc.registerInstanceMethod(method)
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the provider used by {@code Hibernate3Category}.
+     */
+    static void useProvider(Hibernate3Provider provider) {
+        Hibernate3Category.setProvider(provider)
+    }
+
+    private static ExpandoMetaClass expandoMetaClassOf(MetaClass mc) {
+        if (mc instanceof ExpandoMetaClass) return mc
+        if (mc instanceof HandleMetaClass) return mc.replaceDelegate()
+        if (mc instanceof DelegatingMetaClass && mc.adaptee instanceof ExpandoMetaClass) return mc.adaptee
+        ExpandoMetaClass emc = new ExpandoMetaClass(mc.theClass, true, true)
+        emc.initialize()
+        GroovySystem.metaClassRegistry.setMetaClass(mc.theClass, emc)
+        emc
+    }
+}
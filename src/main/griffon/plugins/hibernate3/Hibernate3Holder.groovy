@@ -17,22 +17,58 @@
 package griffon.plugins.hibernate3
 
 import org.hibernate.SessionFactory
+import org.hibernate.engine.SessionFactoryImplementor
 import griffon.core.GriffonApplication
 import griffon.util.ApplicationHolder
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt
+import static griffon.plugins.hibernate3.internal.ConfigValues.getLong
+import static griffon.plugins.hibernate3.internal.ConfigValues.getStringList
 import static griffon.util.GriffonNameUtils.isBlank
 
 /**
+ * Keeps track of every SessionFactory by name.
+ * <p>With a {@code sessionFactoryEviction} block in {@code Hibernate3Config.groovy}
+ * factories built on demand by {@code fetchSessionFactory} are bounded: the least
+ * recently used idle factory is disconnected once more than {@code maxActive} are
+ * connected, factories unused for {@code idleTimeout} seconds are disconnected as
+ * well, and at most {@code maxConcurrentBuilds} factories are built at once.
+ * Evicted factories are rebuilt the next time they are used.</p>
+ * <pre>
+ * sessionFactoryEviction {
+ *     maxActive           = 20
+ *     idleTimeout         = 900 // seconds, 0 disables idle eviction
+ *     maxConcurrentBuilds = 2
+ *     exclude             = ['default']
+ * }
+ * </pre>
+ *
  * @author Andres Almiray
  */
 class Hibernate3Holder {
     private static final String DEFAULT = 'default'
     private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Holder)
     private final Map<String, SessionFactory> sessionFactories = [:]
+    private final Map<SessionFactory, Usage> usages = new IdentityHashMap<SessionFactory, Usage>()
+    private final Map<String, Object> buildLocks = [:]
     private static final Object[] LOCK = new Object[0]
 
+    private volatile boolean evictionConfigured
+    private int maxActive
+    private long idleTimeout
+    private Semaphore buildPermits
+    private Set<String> excluded = [] as Set
+    private ScheduledExecutorService evictionTimer
+
     private static final Hibernate3Holder INSTANCE
 
     static {
@@ -46,7 +82,10 @@ class Hibernate3Holder {
     private Hibernate3Holder() {}
 
     String[] getSessionFactoryNames() {
-        List<String> sessionFactoryNames = new ArrayList().addAll(sessionFactories.keySet())
+        List<String> sessionFactoryNames
+        synchronized (LOCK) {
+            sessionFactoryNames = sessionFactories.findAll { it.value != null }.collect { it.key }
+        }
         sessionFactoryNames.toArray(new String[sessionFactoryNames.size()])
     }
 
@@ -72,12 +111,21 @@ class Hibernate3Holder {
 
     SessionFactory fetchSessionFactory(String sessionFactoryName) {
         if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
-        SessionFactory sf = retrieveSessionFactory(sessionFactoryName)
+        SessionFactory sf = resolveSessionFactory(sessionFactoryName, false)
+
         if (sf == null) {
-            GriffonApplication app = ApplicationHolder.application
-            ConfigObject config = Hibernate3Connector.instance.createConfig(app)
-            sf = Hibernate3Connector.instance.connect(app, config, sessionFactoryName)
+            throw new IllegalArgumentException("No such SessionFactory configuration for name $sessionFactoryName")
         }
+        sf
+    }
+
+    /**
+     * Like {@code fetchSessionFactory} but also marks the factory as in use so
+     * that it is not evicted until {@code releaseSessionFactory} is called.
+     */
+    SessionFactory acquireSessionFactory(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        SessionFactory sf = resolveSessionFactory(sessionFactoryName, true)
 
         if (sf == null) {
             throw new IllegalArgumentException("No such SessionFactory configuration for name $sessionFactoryName")
@@ -85,6 +133,232 @@ class Hibernate3Holder {
         sf
     }
 
+    void releaseSessionFactory(String sessionFactoryName, SessionFactory sf) {
+        synchronized (LOCK) {
+            Usage usage = usages[sf]
+            if (usage && usage.inFlight.get() > 0) {
+                usage.inFlight.decrementAndGet()
+                usage.lastAccess = System.currentTimeMillis()
+                if (usage.inFlight.get() == 0 && usage.drainer != null) LOCK.notifyAll()
+                // a factory replaced by reloadSessionFactory() is forgotten once drained
+                if (usage.inFlight.get() == 0 && !sessionFactories.values().any { it.is(sf) }) usages.remove(sf)
+            }
+        }
+    }
+
+    /**
+     * Returns how many {@code withHibernate3} blocks are currently using the factory
+     * registered under the given name.
+     */
+    int getInFlightCount(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            SessionFactory sf = sessionFactories[sessionFactoryName]
+            sf != null ? getInFlightCount(sf) : 0
+        }
+    }
+
+    /**
+     * Returns how many {@code withHibernate3} blocks are currently using the given
+     * factory instance, which may have been replaced already.
+     */
+    int getInFlightCount(SessionFactory sf) {
+        synchronized (LOCK) {
+            usages[sf]?.inFlight?.get() ?: 0
+        }
+    }
+
+    /**
+     * Stops handing out the factory registered under the given name to other threads
+     * and waits up to {@code timeout} milliseconds for the blocks using it to finish.
+     * The calling thread may keep using the factory until it is disconnected.
+     *
+     * @return how many blocks are still using the factory
+     */
+    int drainSessionFactory(String sessionFactoryName, long timeout) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        long deadline = System.currentTimeMillis() + timeout
+        synchronized (LOCK) {
+            SessionFactory sf = sessionFactories[sessionFactoryName]
+            Usage usage = sf != null ? usages[sf] : null
+            if (usage == null) return 0
+            usage.drainer = Thread.currentThread()
+            long remaining
+            while (usage.inFlight.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0L) {
+                LOCK.wait(remaining)
+            }
+            usage.inFlight.get()
+        }
+    }
+
+    /**
+     * Lets the calling thread use a factory drained by another thread, so that
+     * it can finish disconnecting it.
+     */
+    void takeOverDrain(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            SessionFactory sf = sessionFactories[sessionFactoryName]
+            Usage usage = sf != null ? usages[sf] : null
+            if (usage?.drainer != null) usage.drainer = Thread.currentThread()
+        }
+    }
+
+    /**
+     * Atomically replaces the factory registered under the given name. Blocks that
+     * already use the previous factory keep it, new ones get the replacement.
+     *
+     * @return the previous factory
+     */
+    SessionFactory replaceSessionFactory(String sessionFactoryName, SessionFactory sf) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            SessionFactory previous = sessionFactories[sessionFactoryName]
+            storeSessionFactory(sessionFactoryName, sf)
+            previous
+        }
+    }
+
+    private SessionFactory resolveSessionFactory(String sessionFactoryName, boolean acquire) {
+        SessionFactory sf = useSessionFactory(sessionFactoryName, acquire)
+        if (sf != null) return sf
+
+        configureEviction()
+        synchronized (buildLock(sessionFactoryName)) {
+            sf = useSessionFactory(sessionFactoryName, acquire)
+            if (sf != null) return sf
+
+            if (buildPermits) buildPermits.acquire()
+            try {
+                GriffonApplication app = ApplicationHolder.application
+                ConfigObject config = Hibernate3Connector.instance.createConfig(app)
+                sf = Hibernate3Connector.instance.connect(app, config, sessionFactoryName)
+            } finally {
+                if (buildPermits) buildPermits.release()
+            }
+            if (sf == null) return null
+            sf = useSessionFactory(sessionFactoryName, acquire) ?: sf
+        }
+        if (maxActive > 0) evictLeastRecentlyUsed(sessionFactoryName)
+        sf
+    }
+
+    private SessionFactory useSessionFactory(String sessionFactoryName, boolean acquire) {
+        synchronized (LOCK) {
+            SessionFactory sf = sessionFactories[sessionFactoryName]
+            if (sf == null) return null
+            Usage usage = usages[sf]
+            if (usage == null) {
+                usage = new Usage()
+                usages[sf] = usage
+            }
+            // the factory is being evicted, only the evicting thread may still use it
+            if (usage.evictor != null && usage.evictor != Thread.currentThread()) return null
+            if (usage.drainer != null && usage.drainer != Thread.currentThread()) {
+                throw new IllegalStateException("SessionFactory '$sessionFactoryName' is shutting down")
+            }
+            if (acquire) usage.inFlight.incrementAndGet()
+            usage.lastAccess = System.currentTimeMillis()
+            sf
+        }
+    }
+
+    private Object buildLock(String sessionFactoryName) {
+        synchronized (LOCK) {
+            Object lock = buildLocks[sessionFactoryName]
+            if (lock == null) {
+                lock = new Object()
+                buildLocks[sessionFactoryName] = lock
+            }
+            lock
+        }
+    }
+
+    private void configureEviction() {
+        if (evictionConfigured) return
+        synchronized (LOCK) {
+            if (evictionConfigured) return
+            GriffonApplication app = ApplicationHolder.application
+            Map config = app ? Hibernate3Connector.instance.createConfig(app).sessionFactoryEviction : null
+            if (config) {
+                maxActive = getInt(config, 'maxActive', 0)
+                idleTimeout = getLong(config, 'idleTimeout', 0L) * 1000L
+                int maxConcurrentBuilds = getInt(config, 'maxConcurrentBuilds', 0)
+                if (maxConcurrentBuilds > 0) buildPermits = new Semaphore(maxConcurrentBuilds, true)
+                excluded = getStringList(config, 'exclude') as Set
+                if (idleTimeout > 0L) {
+                    evictionTimer = Executors.newSingleThreadScheduledExecutor({ Runnable r ->
+                        Thread t = new Thread(r, 'hibernate3-session-factory-eviction')
+                        t.daemon = true
+                        t
+                    } as ThreadFactory)
+                    long period = Math.max(1000L, (long) (idleTimeout / 2L))
+                    evictionTimer.scheduleWithFixedDelay({ evictIdle() } as Runnable, period, period, TimeUnit.MILLISECONDS)
+                }
+            }
+            evictionConfigured = true
+        }
+    }
+
+    private void evictLeastRecentlyUsed(String justBuilt) {
+        while (true) {
+            String candidate = null
+            synchronized (LOCK) {
+                List<String> active = sessionFactories.findAll { it.value != null }.collect { it.key }
+                if (active.size() <= maxActive) return
+                long oldest = Long.MAX_VALUE
+                for (String name : active) {
+                    Usage usage = usages[sessionFactories[name]]
+                    if (name == justBuilt || !evictable(name, usage)) continue
+                    if (usage.lastAccess < oldest) {
+                        oldest = usage.lastAccess
+                        candidate = name
+                    }
+                }
+            }
+            if (candidate == null || !evict(candidate, 0L)) return
+        }
+    }
+
+    private void evictIdle() {
+        try {
+            List<String> names
+            synchronized (LOCK) {
+                names = sessionFactories.findAll { it.value != null }.collect { it.key }
+            }
+            for (String name : names) evict(name, idleTimeout)
+        } catch (Throwable t) {
+            LOG.warn('Could not evict idle session factories', t)
+        }
+    }
+
+    private boolean evictable(String sessionFactoryName, Usage usage) {
+        if (usage == null || excluded.contains(sessionFactoryName)) return false
+        if (usage.inFlight.get() > 0 || usage.evictor != null) return false
+        SessionFactory sf = sessionFactories[sessionFactoryName]
+        // closing a create-drop factory would drop its schema
+        !(sf instanceof SessionFactoryImplementor) || !sf.settings.autoDropSchema
+    }
+
+    private boolean evict(String sessionFactoryName, long minIdle) {
+        synchronized (buildLock(sessionFactoryName)) {
+            Usage usage
+            synchronized (LOCK) {
+                usage = usages[sessionFactories[sessionFactoryName]]
+                if (!evictable(sessionFactoryName, usage)) return false
+                if (System.currentTimeMillis() - usage.lastAccess < minIdle) return false
+                usage.evictor = Thread.currentThread()
+            }
+            try {
+                if (LOG.isInfoEnabled()) LOG.info("Evicting SessionFactory '$sessionFactoryName'")
+                Hibernate3Connector.instance.disconnect(ApplicationHolder.application, sessionFactoryName)
+            } finally {
+                usage.evictor = null
+            }
+            true
+        }
+    }
+
     private SessionFactory retrieveSessionFactory(String sessionFactoryName) {
         synchronized (LOCK) {
             sessionFactories[sessionFactoryName]
@@ -93,7 +367,21 @@ class Hibernate3Holder {
 
     private void storeSessionFactory(String sessionFactoryName, SessionFactory sf) {
         synchronized (LOCK) {
+            SessionFactory previous = sessionFactories[sessionFactoryName]
             sessionFactories[sessionFactoryName] = sf
+            if (previous != null && !previous.is(sf) && !usages[previous]?.inFlight?.get()) {
+                usages.remove(previous)
+            }
+            if (sf != null && !usages.containsKey(sf)) {
+                usages[sf] = new Usage()
+            }
         }
     }
+
+    private static class Usage {
+        final AtomicInteger inFlight = new AtomicInteger()
+        volatile long lastAccess = System.currentTimeMillis()
+        volatile Thread evictor
+        volatile Thread drainer
+    }
 }
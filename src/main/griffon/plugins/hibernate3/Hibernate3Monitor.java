@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Session;
+
+/**
+ * <p>Receives timing events of a SessionFactory: session and transaction
+ * lifecycle, flushes and the phases of building the factory.</p>
+ * <p>Monitors are listed per session factory in {@code Hibernate3Config.groovy}
+ * as classes or class names, and must have a no-args constructor</p>
+ * <pre>
+ * sessionFactory {
+ *     monitors = [com.acme.JfrHibernate3Monitor]
+ * }
+ * </pre>
+ * <p>Callbacks run on the thread doing the work and should return quickly.
+ * Durations are in nanoseconds.</p>
+ *
+ * @author Andres Almiray
+ * @see Hibernate3MonitorAdapter
+ */
+public interface Hibernate3Monitor {
+    String PHASE_CONFIGURATION = "configuration";
+    String PHASE_DIALECT = "dialect";
+    String PHASE_BUILD = "build";
+
+    /**
+     * Called for each phase of {@code Hibernate3Connector.connect}: configuration,
+     * dialect detection and building the factory, which includes schema export.
+     */
+    void buildPhase(String sessionFactoryName, String phase, long durationNanos);
+
+    void sessionOpened(String sessionFactoryName, Session session);
+
+    void sessionClosed(String sessionFactoryName, Session session, long durationNanos);
+
+    void transactionBegun(String sessionFactoryName);
+
+    void transactionCompleted(String sessionFactoryName, boolean committed, long durationNanos);
+
+    void flushed(String sessionFactoryName, int entityCount, long durationNanos);
+}
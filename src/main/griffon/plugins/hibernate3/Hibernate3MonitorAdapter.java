@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Session;
+
+/**
+ * A {@code Hibernate3Monitor} that ignores every event, override the ones of interest.
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate3MonitorAdapter implements Hibernate3Monitor {
+    public void buildPhase(String sessionFactoryName, String phase, long durationNanos) {
+    }
+
+    public void sessionOpened(String sessionFactoryName, Session session) {
+    }
+
+    public void sessionClosed(String sessionFactoryName, Session session, long durationNanos) {
+    }
+
+    public void transactionBegun(String sessionFactoryName) {
+    }
+
+    public void transactionCompleted(String sessionFactoryName, boolean committed, long durationNanos) {
+    }
+
+    public void flushed(String sessionFactoryName, int entityCount, long durationNanos) {
+    }
+}
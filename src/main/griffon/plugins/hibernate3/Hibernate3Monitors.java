@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The monitors configured for a SessionFactory, seen as a single
+ * {@code Hibernate3Monitor}. A failing monitor is logged and does not affect
+ * the others nor the operation being monitored.
+ *
+ * @author Andres Almiray
+ */
+public final class Hibernate3Monitors implements Hibernate3Monitor {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Monitors.class);
+    private static final Map<String, Hibernate3Monitors> MONITORS = new ConcurrentHashMap<String, Hibernate3Monitors>();
+    private static final ThreadLocal<LinkedList<Object[]>> SESSIONS = new ThreadLocal<LinkedList<Object[]>>();
+
+    private final Hibernate3Monitor[] monitors;
+
+    private Hibernate3Monitors(List<Hibernate3Monitor> monitors) {
+        this.monitors = monitors.toArray(new Hibernate3Monitor[monitors.size()]);
+    }
+
+    /**
+     * Instantiates the monitors listed in {@code config} (a class, a class name or
+     * a list of them) and registers them for the given session factory.
+     *
+     * @return the registered monitors, {@code null} if none are configured
+     */
+    public static Hibernate3Monitors configure(String sessionFactoryName, Object config) {
+        List<Hibernate3Monitor> monitors = new ArrayList<Hibernate3Monitor>();
+        Collection entries = config instanceof Collection ? (Collection) config :
+            config instanceof Object[] ? Arrays.asList((Object[]) config) :
+                config instanceof Class || config instanceof String || config instanceof Hibernate3Monitor ? Collections.singletonList(config) :
+                    Collections.emptyList();
+        for (Object entry : entries) {
+            monitors.add(newMonitor(entry));
+        }
+        if (monitors.isEmpty()) {
+            MONITORS.remove(sessionFactoryName);
+            return null;
+        }
+        Hibernate3Monitors composite = new Hibernate3Monitors(monitors);
+        MONITORS.put(sessionFactoryName, composite);
+        return composite;
+    }
+
+    public static void unregister(String sessionFactoryName) {
+        MONITORS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the monitors of the given session factory, {@code null} if none are configured.
+     */
+    public static Hibernate3Monitors forSessionFactory(String sessionFactoryName) {
+        return MONITORS.get(sessionFactoryName);
+    }
+
+    private static Hibernate3Monitor newMonitor(Object entry) {
+        if (entry instanceof Hibernate3Monitor) return (Hibernate3Monitor) entry;
+        try {
+            Class type = entry instanceof Class ? (Class) entry :
+                Thread.currentThread().getContextClassLoader().loadClass(String.valueOf(entry));
+            return (Hibernate3Monitor) type.newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Cannot instantiate monitor " + entry, e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Cannot instantiate monitor " + entry, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot instantiate monitor " + entry, e);
+        }
+    }
+
+    void opened(String sessionFactoryName, Session session) {
+        LinkedList<Object[]> sessions = SESSIONS.get();
+        if (sessions == null) {
+            sessions = new LinkedList<Object[]>();
+            SESSIONS.set(sessions);
+        }
+        sessions.addFirst(new Object[]{session, System.nanoTime(), this});
+        sessionOpened(sessionFactoryName, session);
+    }
+
+    /**
+     * Reports the closing of a session opened through {@code opened()}, if any.
+     */
+    static void closed(String sessionFactoryName, Session session) {
+        LinkedList<Object[]> sessions = SESSIONS.get();
+        if (sessions == null || sessions.isEmpty() || sessions.getFirst()[0] != session) return;
+        Object[] entry = sessions.removeFirst();
+        if (sessions.isEmpty()) SESSIONS.remove();
+        ((Hibernate3Monitors) entry[2]).sessionClosed(sessionFactoryName, session, System.nanoTime() - (Long) entry[1]);
+    }
+
+    public void buildPhase(String sessionFactoryName, String phase, long durationNanos) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.buildPhase(sessionFactoryName, phase, durationNanos);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    public void sessionOpened(String sessionFactoryName, Session session) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.sessionOpened(sessionFactoryName, session);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    public void sessionClosed(String sessionFactoryName, Session session, long durationNanos) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.sessionClosed(sessionFactoryName, session, durationNanos);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    public void transactionBegun(String sessionFactoryName) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.transactionBegun(sessionFactoryName);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    public void transactionCompleted(String sessionFactoryName, boolean committed, long durationNanos) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.transactionCompleted(sessionFactoryName, committed, durationNanos);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    public void flushed(String sessionFactoryName, int entityCount, long durationNanos) {
+        for (Hibernate3Monitor monitor : monitors) {
+            try {
+                monitor.flushed(sessionFactoryName, entityCount, durationNanos);
+            } catch (RuntimeException e) {
+                failed(monitor, e);
+            }
+        }
+    }
+
+    private static void failed(Hibernate3Monitor monitor, RuntimeException e) {
+        LOG.warn("Monitor " + monitor + " failed", e);
+    }
+}
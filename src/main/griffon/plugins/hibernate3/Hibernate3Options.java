@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Options of a single {@code withHibernate3} block</p>
+ * <pre>
+ * Hibernate3Options options = new Hibernate3Options().timeout(5, TimeUnit.SECONDS)
+ * cancelButton.actionPerformed = { options.cancellation.cancel() }
+ * withHibernate3('default', options) { sessionFactoryName, session -> ... }
+ * </pre>
+ * <p>The time left until the deadline is applied as query timeout to every
+ * statement of the block. Once cancelled or past its deadline the block's
+ * transaction is rolled back instead of committed. An options instance, like
+ * its cancellation handle, should be used for one block only.</p>
+ * <p>Fetch profiles declared in the {@code fetchProfiles} block of
+ * {@code Hibernate3Config.groovy} can be enabled for the block's session
+ * with {@code fetchProfiles()}.</p>
+ * <p>Blocks of {@code BACKGROUND} priority give way to interactive ones when
+ * the session factory has a {@code Bulkhead}.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate3Options {
+    public enum Priority {
+        INTERACTIVE, BACKGROUND
+    }
+
+    private long timeout;
+    private long deadline;
+    private Priority priority = Priority.INTERACTIVE;
+    private String[] fetchProfiles = new String[0];
+    private final Hibernate3Cancellation cancellation = new Hibernate3Cancellation();
+
+    /**
+     * Sets the time the block may run, counted from when it starts.
+     */
+    public Hibernate3Options timeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the time by which the block must be done, as given by {@code System.currentTimeMillis()}.
+     */
+    public Hibernate3Options deadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    public Hibernate3Options priority(Priority priority) {
+        this.priority = priority != null ? priority : Priority.INTERACTIVE;
+        return this;
+    }
+
+    public Hibernate3Options fetchProfiles(String... fetchProfiles) {
+        this.fetchProfiles = fetchProfiles != null ? fetchProfiles : new String[0];
+        return this;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public String[] getFetchProfiles() {
+        return fetchProfiles;
+    }
+
+    public Hibernate3Cancellation getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Returns the effective deadline of a block starting at {@code start}, 0 if there is none.
+     */
+    long deadlineFrom(long start) {
+        long fromTimeout = timeout > 0 ? start + timeout : 0L;
+        if (deadline > 0 && fromTimeout > 0) return Math.min(deadline, fromTimeout);
+        return deadline > 0 ? deadline : fromTimeout;
+    }
+}
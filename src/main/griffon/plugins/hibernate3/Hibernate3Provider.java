@@ -19,6 +19,9 @@ package griffon.plugins.hibernate3;
 import griffon.util.CallableWithArgs;
 import groovy.lang.Closure;
 
+import java.io.File;
+import java.util.Map;
+
 /**
  * @author Andres Almiray
  */
@@ -30,4 +33,20 @@ public interface Hibernate3Provider {
     <R> R withHibernate3(CallableWithArgs<R> callable);
 
     <R> R withHibernate3(String sessionFactoryName, CallableWithArgs<R> callable);
+
+    <R> R withHibernate3(SessionCallback<R> callback);
+
+    <R> R withHibernate3(String sessionFactoryName, SessionCallback<R> callback);
+
+    <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, Closure<R> closure);
+
+    <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, CallableWithArgs<R> callable);
+
+    <R> R withHibernate3(String sessionFactoryName, Hibernate3Options options, SessionCallback<R> callback);
+
+    SpilledResult spillHibernate3(String sessionFactoryName, String hql);
+
+    SpilledResult spillHibernate3(String sessionFactoryName, String hql, Map<String, ?> params);
+
+    SpilledResult spillHibernate3(String sessionFactoryName, String hql, Map<String, ?> params, String[] columnNames, File directory);
 }
\ No newline at end of file
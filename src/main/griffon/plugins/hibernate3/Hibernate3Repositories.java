@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static griffon.util.GriffonNameUtils.isBlank;
+
+/**
+ * Runs the queries of classes annotated with {@code @Hibernate3Repository}.
+ * Generated methods call into this class with their HQL as a constant and
+ * their arguments bound by position, and each repository registers its
+ * queries so they are translated when the session factory starts.
+ *
+ * @author Andres Almiray
+ */
+public final class Hibernate3Repositories {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate3Repositories.class);
+    private static final String DEFAULT = "default";
+    private static final Map<String, Set<String>> QUERIES = new ConcurrentHashMap<String, Set<String>>();
+
+    private Hibernate3Repositories() {
+    }
+
+    /**
+     * Records the queries of a repository. They are translated right away if the
+     * session factory is already running, otherwise when it is connected.
+     *
+     * @return always {@code true}, so it can initialize a static field
+     */
+    public static boolean register(String sessionFactoryName, String[] queries) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        Set<String> registered = QUERIES.get(sessionFactoryName);
+        if (registered == null) {
+            synchronized (QUERIES) {
+                registered = QUERIES.get(sessionFactoryName);
+                if (registered == null) {
+                    registered = new CopyOnWriteArraySet<String>();
+                    QUERIES.put(sessionFactoryName, registered);
+                }
+            }
+        }
+        registered.addAll(Arrays.asList(queries));
+
+        Hibernate3Holder holder = Hibernate3Holder.getInstance();
+        if (holder.isSessionFactoryAvailable(sessionFactoryName)) {
+            translate(sessionFactoryName, holder.getSessionFactory(sessionFactoryName), queries);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the queries registered by repositories of the given session factory.
+     */
+    public static Set<String> getQueries(String sessionFactoryName) {
+        Set<String> queries = QUERIES.get(sessionFactoryName);
+        return queries != null ? Collections.unmodifiableSet(queries) : Collections.<String>emptySet();
+    }
+
+    public static List list(Hibernate3Provider provider, String sessionFactoryName, final String hql, final Object[] args) {
+        return provider.withHibernate3(sessionFactoryName, new SessionCallback<List>() {
+            public List doInSession(String sessionFactoryName, Session session) {
+                return bind(session.createQuery(hql), args).list();
+            }
+        });
+    }
+
+    public static Object unique(Hibernate3Provider provider, String sessionFactoryName, final String hql, final Object[] args) {
+        return provider.withHibernate3(sessionFactoryName, new SessionCallback<Object>() {
+            public Object doInSession(String sessionFactoryName, Session session) {
+                return bind(session.createQuery(hql), args).uniqueResult();
+            }
+        });
+    }
+
+    public static long count(Hibernate3Provider provider, String sessionFactoryName, final String hql, final Object[] args) {
+        Number count = provider.withHibernate3(sessionFactoryName, new SessionCallback<Number>() {
+            public Number doInSession(String sessionFactoryName, Session session) {
+                return (Number) bind(session.createQuery(hql), args).uniqueResult();
+            }
+        });
+        return count != null ? count.longValue() : 0L;
+    }
+
+    public static int update(Hibernate3Provider provider, String sessionFactoryName, final String hql, final Object[] args) {
+        return provider.withHibernate3(sessionFactoryName, new SessionCallback<Integer>() {
+            public Integer doInSession(String sessionFactoryName, Session session) {
+                return bind(session.createQuery(hql), args).executeUpdate();
+            }
+        });
+    }
+
+    private static Query bind(Query query, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            query.setParameter(i, args[i]);
+        }
+        return query;
+    }
+
+    private static void translate(String sessionFactoryName, SessionFactory sessionFactory, String[] queries) {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+        for (String hql : queries) {
+            try {
+                factory.getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP);
+            } catch (HibernateException e) {
+                LOG.error("Error in repository query of '" + sessionFactoryName + "': " + hql, e);
+            }
+        }
+    }
+}
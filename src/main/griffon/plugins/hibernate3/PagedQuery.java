@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Projections;
+import org.hibernate.util.SerializationHelper;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static griffon.util.GriffonNameUtils.isBlank;
+
+/**
+ * <p>A query that can be read one page at a time.</p>
+ * <p>Instances are created with {@code hql()} or {@code criteria()} and consumed
+ * by {@code PagedQueryList}, which calls {@code count()} once to size itself and
+ * {@code fetch()} for every page it needs.</p>
+ *
+ * @author Andres Almiray
+ * @see PagedQueryList
+ */
+public abstract class PagedQuery {
+    /**
+     * Returns the total number of rows the query yields.
+     */
+    public abstract long count(Session session);
+
+    /**
+     * Returns the rows in the range [firstResult, firstResult + maxResults).
+     */
+    public abstract List<?> fetch(Session session, int firstResult, int maxResults);
+
+    public static PagedQuery hql(String hql) {
+        return hql(hql, null, Collections.<String, Object>emptyMap());
+    }
+
+    public static PagedQuery hql(String hql, Map<String, ?> params) {
+        return hql(hql, null, params);
+    }
+
+    /**
+     * Creates a paged HQL query. If {@code countHql} is blank a count query is
+     * derived from {@code hql} by replacing its select clause and dropping its
+     * order by clause.
+     */
+    public static PagedQuery hql(String hql, String countHql, Map<String, ?> params) {
+        if (isBlank(hql)) {
+            throw new IllegalArgumentException("Cannot create a paged query from a blank HQL string");
+        }
+        return new HqlPagedQuery(hql, isBlank(countHql) ? deriveCountHql(hql) : countHql,
+            params != null ? params : Collections.<String, Object>emptyMap());
+    }
+
+    public static PagedQuery criteria(DetachedCriteria criteria) {
+        return criteria(criteria, null);
+    }
+
+    /**
+     * Creates a paged Criteria query. Supply a separate {@code countCriteria} when
+     * {@code criteria} has orderings the database refuses to combine with a row count.
+     */
+    public static PagedQuery criteria(DetachedCriteria criteria, DetachedCriteria countCriteria) {
+        if (criteria == null) {
+            throw new IllegalArgumentException("Cannot create a paged query from a null criteria");
+        }
+        return new CriteriaPagedQuery(criteria, countCriteria != null ? countCriteria : criteria);
+    }
+
+    static String deriveCountHql(String hql) {
+        String trimmed = hql.trim();
+        String lower = trimmed.toLowerCase();
+        int orderBy = lower.lastIndexOf(" order by ");
+        if (orderBy > -1) {
+            trimmed = trimmed.substring(0, orderBy);
+            lower = lower.substring(0, orderBy);
+        }
+        if (lower.startsWith("from ")) {
+            return "select count(*) " + trimmed;
+        } else if (lower.startsWith("select ") && !lower.startsWith("select distinct ")) {
+            int from = lower.indexOf(" from ");
+            if (from > -1) {
+                return "select count(*)" + trimmed.substring(from);
+            }
+        }
+        throw new IllegalArgumentException("Cannot derive a count query from '" + hql + "'. Please supply one explicitly.");
+    }
+
+    private static class HqlPagedQuery extends PagedQuery {
+        private final String hql;
+        private final String countHql;
+        private final Map<String, ?> params;
+
+        private HqlPagedQuery(String hql, String countHql, Map<String, ?> params) {
+            this.hql = hql;
+            this.countHql = countHql;
+            this.params = params;
+        }
+
+        public long count(Session session) {
+            Object result = bind(session.createQuery(countHql)).uniqueResult();
+            return result != null ? ((Number) result).longValue() : 0L;
+        }
+
+        public List<?> fetch(Session session, int firstResult, int maxResults) {
+            return bind(session.createQuery(hql))
+                .setFirstResult(firstResult)
+                .setMaxResults(maxResults)
+                .list();
+        }
+
+        private Query bind(Query query) {
+            for (Map.Entry<String, ?> param : params.entrySet()) {
+                if (param.getValue() instanceof Collection) {
+                    query.setParameterList(param.getKey(), (Collection) param.getValue());
+                } else if (param.getValue() instanceof Object[]) {
+                    query.setParameterList(param.getKey(), (Object[]) param.getValue());
+                } else {
+                    query.setParameter(param.getKey(), param.getValue());
+                }
+            }
+            return query;
+        }
+    }
+
+    private static class CriteriaPagedQuery extends PagedQuery {
+        private final DetachedCriteria criteria;
+        private final DetachedCriteria countCriteria;
+
+        private CriteriaPagedQuery(DetachedCriteria criteria, DetachedCriteria countCriteria) {
+            this.criteria = criteria;
+            this.countCriteria = countCriteria;
+        }
+
+        public long count(Session session) {
+            // DetachedCriteria hands out the same CriteriaImpl every time, count on a
+            // copy so that the projection and transformer of the caller are left alone.
+            // The copy still carries the offset of the last page fetched
+            DetachedCriteria copy = (DetachedCriteria) SerializationHelper.clone(countCriteria);
+            Object result = copy.getExecutableCriteria(session)
+                .setProjection(Projections.rowCount())
+                .setFirstResult(0)
+                .uniqueResult();
+            return result != null ? ((Number) result).longValue() : 0L;
+        }
+
+        public List<?> fetch(Session session, int firstResult, int maxResults) {
+            return criteria.getExecutableCriteria(session)
+                .setFirstResult(firstResult)
+                .setMaxResults(maxResults)
+                .list();
+        }
+    }
+}
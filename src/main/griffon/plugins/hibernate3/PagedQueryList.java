@@ -0,0 +1,346 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.*;
+
+/**
+ * <p>A read-only {@code List} whose elements are fetched from a {@code PagedQuery}
+ * one page at a time.</p>
+ * <p>Only the most recently used {@code maxPages} pages are kept in memory. Pages are
+ * loaded by a background executor, each one inside its own {@code withHibernate3}
+ * call with a read-only session, and the pages that follow the last requested one
+ * (in scrolling direction) are prefetched.</p>
+ * <p>{@code get()} blocks until the page holding the element is available, whereas
+ * {@code peek()} returns {@code null} right away and notifies registered
+ * {@code PageListener}s once the data arrives. UI code should use the latter,
+ * see {@code PagedQueryTableModel}.</p>
+ *
+ * @author Andres Almiray
+ */
+public class PagedQueryList<E> extends AbstractList<E> implements RandomAccess {
+    private static final Logger LOG = LoggerFactory.getLogger(PagedQueryList.class);
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    public static final int DEFAULT_MAX_PAGES = 10;
+    public static final int DEFAULT_PREFETCH = 1;
+
+    public interface PageListener {
+        void pageLoaded(PagedQueryList<?> list, int fromIndex, int toIndex);
+
+        void contentsChanged(PagedQueryList<?> list);
+    }
+
+    private final Hibernate3Provider provider;
+    private final String sessionFactoryName;
+    private final PagedQuery query;
+    private final int pageSize;
+    private final int maxPages;
+    private final int prefetch;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final List<PageListener> listeners = new CopyOnWriteArrayList<PageListener>();
+    private final Map<Integer, PageTask> pages;
+    private final Object lock = new Object();
+    private SizeTask size;
+    private int lastRequestedPage = -1;
+
+    public PagedQueryList(String sessionFactoryName, PagedQuery query) {
+        this(DefaultHibernate3Provider.getInstance(), sessionFactoryName, query, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES, DEFAULT_PREFETCH, null);
+    }
+
+    public PagedQueryList(Hibernate3Provider provider, String sessionFactoryName, PagedQuery query, int pageSize, int maxPages, int prefetch) {
+        this(provider, sessionFactoryName, query, pageSize, maxPages, prefetch, null);
+    }
+
+    /**
+     * @param executor runs page and count queries. If {@code null} a private single
+     *                 threaded executor is created and shut down by {@code dispose()}.
+     *                 A shared executor must be single threaded when {@code query}
+     *                 is Criteria based, as DetachedCriteria is not thread safe.
+     */
+    public PagedQueryList(Hibernate3Provider provider, String sessionFactoryName, PagedQuery query, int pageSize, int maxPages, int prefetch, ExecutorService executor) {
+        if (provider == null) throw new IllegalArgumentException("Hibernate3Provider must not be null");
+        if (query == null) throw new IllegalArgumentException("PagedQuery must not be null");
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be greater than zero");
+        if (maxPages < prefetch + 1) throw new IllegalArgumentException("maxPages must be greater than prefetch");
+        this.provider = provider;
+        this.sessionFactoryName = sessionFactoryName;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.prefetch = prefetch;
+        this.ownsExecutor = executor == null;
+        this.executor = executor != null ? executor : Executors.newSingleThreadExecutor(new LoaderThreadFactory());
+        this.pages = new LinkedHashMap<Integer, PageTask>(maxPages + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, PageTask> eldest) {
+                return size() > PagedQueryList.this.maxPages;
+            }
+        };
+    }
+
+    public void addPageListener(PageListener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public void removePageListener(PageListener listener) {
+        if (listener != null) listeners.remove(listener);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the number of rows reported by the count query, blocking until it is known.
+     */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, await(requestSize()).longValue());
+    }
+
+    /**
+     * Returns the number of rows if already known, -1 otherwise. Schedules the
+     * count query if it has not run yet.
+     */
+    public int peekSize() {
+        SizeTask task = requestSize();
+        if (!task.isDone()) return -1;
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, task.get().longValue());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public E get(int index) {
+        checkIndex(index, size());
+        int page = index / pageSize;
+        PageTask task = requestPage(page);
+        return elementAt(await(task), index - page * pageSize);
+    }
+
+    /**
+     * Returns the element if its page is already loaded, {@code null} otherwise.
+     * A missing page is scheduled for loading; listeners are notified when it arrives.
+     */
+    public E peek(int index) {
+        int size = peekSize();
+        if (size < 0 || index < 0 || index >= size) return null;
+        int page = index / pageSize;
+        PageTask task = requestPage(page);
+        if (!task.isDone()) return null;
+        try {
+            return elementAt(task.get(), index - page * pageSize);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public boolean isLoaded(int index) {
+        synchronized (lock) {
+            PageTask task = pages.get(index / pageSize);
+            return task != null && task.isDone() && !task.isCancelled();
+        }
+    }
+
+    /**
+     * Drops all cached pages and the row count. Listeners are notified once
+     * the new count is available.
+     */
+    public void refresh() {
+        synchronized (lock) {
+            for (PageTask task : pages.values()) {
+                task.cancel(false);
+            }
+            pages.clear();
+            if (size != null) size.cancel(false);
+            size = null;
+            lastRequestedPage = -1;
+        }
+        requestSize();
+    }
+
+    /**
+     * Releases cached pages and stops the private executor, if any.
+     */
+    public void dispose() {
+        synchronized (lock) {
+            for (PageTask task : pages.values()) {
+                task.cancel(false);
+            }
+            pages.clear();
+        }
+        listeners.clear();
+        if (ownsExecutor) executor.shutdownNow();
+    }
+
+    private SizeTask requestSize() {
+        synchronized (lock) {
+            if (size == null) {
+                size = new SizeTask();
+                executor.execute(size);
+            }
+            return size;
+        }
+    }
+
+    private PageTask requestPage(int page) {
+        PageTask task;
+        synchronized (lock) {
+            task = schedulePage(page);
+            int direction = page >= lastRequestedPage ? 1 : -1;
+            lastRequestedPage = page;
+            int size = peekSize();
+            int lastPage = size < 0 ? page : (size - 1) / pageSize;
+            for (int i = 1; i <= prefetch; i++) {
+                int next = page + direction * i;
+                if (next < 0 || next > lastPage) break;
+                schedulePage(next);
+            }
+        }
+        return task;
+    }
+
+    private PageTask schedulePage(int page) {
+        PageTask task = pages.get(page);
+        if (task == null || task.isCancelled()) {
+            task = new PageTask(page);
+            pages.put(page, task);
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private void discard(PageTask task) {
+        synchronized (lock) {
+            if (pages.get(task.page) == task) pages.remove(task.page);
+        }
+    }
+
+    private E elementAt(List<E> page, int offset) {
+        // rows may have been deleted since the count query ran
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a page to load", e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Page load was cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private class PageTask extends FutureTask<List<E>> {
+        private final int page;
+
+        private PageTask(final int page) {
+            super(new Callable<List<E>>() {
+                public List<E> call() throws Exception {
+                    return provider.withHibernate3(sessionFactoryName, new SessionCallback<List<E>>() {
+                        @SuppressWarnings("unchecked")
+                        public List<E> doInSession(String sessionFactoryName, Session session) {
+                            // pages are never written back, don't keep snapshots around
+                            session.setDefaultReadOnly(true);
+                            return (List<E>) query.fetch(session, page * pageSize, pageSize);
+                        }
+                    });
+                }
+            });
+            this.page = page;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            try {
+                List<E> rows = get();
+                int fromIndex = page * pageSize;
+                for (PageListener listener : listeners) {
+                    listener.pageLoaded(PagedQueryList.this, fromIndex, fromIndex + Math.max(rows.size(), 1) - 1);
+                }
+            } catch (ExecutionException e) {
+                discard(this);
+                LOG.warn("Could not load page " + page + " from session factory '" + sessionFactoryName + "'", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class SizeTask extends FutureTask<Long> {
+        private SizeTask() {
+            super(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return provider.withHibernate3(sessionFactoryName, new SessionCallback<Long>() {
+                        public Long doInSession(String sessionFactoryName, Session session) {
+                            return query.count(session);
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            try {
+                get();
+                for (PageListener listener : listeners) {
+                    listener.contentsChanged(PagedQueryList.this);
+                }
+            } catch (ExecutionException e) {
+                synchronized (lock) {
+                    if (size == this) size = null;
+                }
+                LOG.warn("Could not count rows from session factory '" + sessionFactoryName + "'", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "hibernate3-paged-query-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
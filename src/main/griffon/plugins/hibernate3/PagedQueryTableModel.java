@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * <p>A {@code TableModel} backed by a {@code PagedQueryList}.</p>
+ * <p>The model never blocks the UI thread: rows whose page has not been loaded yet
+ * are reported as empty and refreshed once the page arrives. Rows may be entities,
+ * in which case each column reads a property, or {@code Object[]} projections, in
+ * which case columns are read by position.</p>
+ *
+ * @author Andres Almiray
+ */
+public class PagedQueryTableModel extends AbstractTableModel {
+    private final PagedQueryList<?> rows;
+    private final String[] propertyNames;
+    private final String[] columnNames;
+
+    public PagedQueryTableModel(PagedQueryList<?> rows, String... propertyNames) {
+        this(rows, propertyNames, propertyNames);
+    }
+
+    public PagedQueryTableModel(PagedQueryList<?> rows, String[] propertyNames, String[] columnNames) {
+        if (rows == null) throw new IllegalArgumentException("PagedQueryList must not be null");
+        if (propertyNames == null || columnNames == null || propertyNames.length != columnNames.length) {
+            throw new IllegalArgumentException("Property names and column names must have the same length");
+        }
+        this.rows = rows;
+        this.propertyNames = propertyNames.clone();
+        this.columnNames = columnNames.clone();
+        rows.addPageListener(new PagedQueryList.PageListener() {
+            public void pageLoaded(PagedQueryList<?> list, final int fromIndex, final int toIndex) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        int last = Math.min(toIndex, getRowCount() - 1);
+                        if (fromIndex <= last) fireTableRowsUpdated(fromIndex, last);
+                    }
+                });
+            }
+
+            public void contentsChanged(PagedQueryList<?> list) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        fireTableDataChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    public PagedQueryList<?> getRows() {
+        return rows;
+    }
+
+    public int getRowCount() {
+        return Math.max(rows.peekSize(), 0);
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Object row = rows.peek(rowIndex);
+        if (row == null) return null;
+        if (row instanceof Object[]) return ((Object[]) row)[columnIndex];
+        return InvokerHelper.getProperty(row, propertyNames[columnIndex]);
+    }
+
+    /**
+     * Discards cached pages and re-runs the count query.
+     */
+    public void refresh() {
+        rows.refresh();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.CallSites;
+import griffon.plugins.hibernate3.internal.DelegatingInterceptor;
+import griffon.plugins.hibernate3.internal.exceptions.PersistenceContextOverflowException;
+import org.hibernate.CallbackException;
+import org.hibernate.Interceptor;
+import org.hibernate.Session;
+import org.hibernate.stat.SessionStatistics;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt;
+
+/**
+ * <p>Watches how many entities and collections the sessions of a SessionFactory
+ * hold.</p>
+ * <p>Configured per session factory in {@code Hibernate3Config.groovy}</p>
+ * <pre>
+ * sessionFactory {
+ *     guard {
+ *         warnThreshold  = 10000  // log a warning with the call site
+ *         clearThreshold = 50000  // flush and clear blocks marked with markClearSafe()
+ *         failThreshold  = 200000 // throw PersistenceContextOverflowException
+ *         checkInterval  = 100    // loads/saves between two checks
+ *     }
+ * }
+ * </pre>
+ * <p>A threshold of 0 disables the corresponding action. Flushing and clearing
+ * happens right before the next call on the session, never in the middle of a
+ * Hibernate operation. A block that crossed the fail threshold is rolled back
+ * by {@code withHibernate3}.</p>
+ *
+ * @author Andres Almiray
+ */
+public class PersistenceContextGuard {
+    private static final Logger LOG = LoggerFactory.getLogger(PersistenceContextGuard.class);
+    private static final Map<String, PersistenceContextGuard> GUARDS = new ConcurrentHashMap<String, PersistenceContextGuard>();
+    private static final ThreadLocal<SessionGuard> CURRENT = new ThreadLocal<SessionGuard>();
+    private static final Set<String> UNGUARDED_METHODS = new HashSet<String>(Arrays.asList(
+        "close", "isOpen", "isConnected", "isDirty", "flush", "clear", "getStatistics", "getSessionFactory",
+        "getTransaction", "cancelQuery", "disconnect", "equals", "hashCode", "toString"));
+
+    private final String sessionFactoryName;
+    private final int warnThreshold;
+    private final int clearThreshold;
+    private final int failThreshold;
+    private final int checkInterval;
+    private final AtomicLong highWaterMark = new AtomicLong();
+    private final AtomicLong warnings = new AtomicLong();
+    private final AtomicLong clears = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public PersistenceContextGuard(String sessionFactoryName, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.warnThreshold = getInt(config, "warnThreshold", 0);
+        this.clearThreshold = getInt(config, "clearThreshold", 0);
+        this.failThreshold = getInt(config, "failThreshold", 0);
+        this.checkInterval = Math.max(1, getInt(config, "checkInterval", 100));
+    }
+
+    public static void register(String sessionFactoryName, PersistenceContextGuard guard) {
+        GUARDS.put(sessionFactoryName, guard);
+    }
+
+    public static void unregister(String sessionFactoryName) {
+        GUARDS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the guard of the given session factory, {@code null} if none was configured.
+     */
+    public static PersistenceContextGuard forSessionFactory(String sessionFactoryName) {
+        return GUARDS.get(sessionFactoryName);
+    }
+
+    /**
+     * Allows the innermost guarded {@code withHibernate3} block running on the
+     * current thread to be flushed and cleared once it crosses the clear threshold.
+     * Only mark blocks that don't hold on to entities loaded earlier.
+     */
+    public static void markClearSafe() {
+        SessionGuard guard = CURRENT.get();
+        if (guard != null) guard.clearSafe = true;
+    }
+
+    static SessionGuard currentSessionGuard() {
+        return CURRENT.get();
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    /**
+     * Returns the largest number of managed entities plus collections seen in a single session.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public long getWarningCount() {
+        return warnings.get();
+    }
+
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("highWaterMark", getHighWaterMark());
+        metrics.put("warnings", getWarningCount());
+        metrics.put("clears", getClearCount());
+        metrics.put("failures", getFailureCount());
+        return metrics;
+    }
+
+    SessionGuard newSessionGuard(Interceptor delegate) {
+        return new SessionGuard(delegate);
+    }
+
+    private void recordSize(long size) {
+        long current = highWaterMark.get();
+        while (size > current && !highWaterMark.compareAndSet(current, size)) {
+            current = highWaterMark.get();
+        }
+    }
+
+    /**
+     * Per session half of the guard: counts loads and saves, checks the session
+     * size every {@code checkInterval} events and applies the configured actions.
+     */
+    class SessionGuard extends DelegatingInterceptor {
+        private Session session;
+        private Session view;
+        private SessionGuard previous;
+        private volatile boolean clearSafe;
+        private boolean clearPending;
+        private boolean warned;
+        private boolean overflowed;
+        private int events;
+
+        private SessionGuard(Interceptor delegate) {
+            super(delegate);
+        }
+
+        /**
+         * Binds this guard to its session and to the current thread. The returned
+         * session must be used in place of the original one.
+         */
+        Session attach(Session session) {
+            this.session = session;
+            this.previous = CURRENT.get();
+            CURRENT.set(this);
+            if (clearThreshold <= 0) {
+                view = session;
+            } else {
+                view = (Session) Proxy.newProxyInstance(
+                    session.getClass().getClassLoader(),
+                    interfacesOf(session.getClass()),
+                    new ClearingHandler(session));
+            }
+            return view;
+        }
+
+        boolean isOverflowed() {
+            return overflowed;
+        }
+
+        boolean owns(Session candidate) {
+            return candidate == view || candidate == session;
+        }
+
+        void detach() {
+            if (session != null && session.isOpen()) {
+                check(false);
+            }
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+            session = null;
+            view = null;
+            previous = null;
+        }
+
+        @Override
+        public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+            tick();
+            return super.onLoad(entity, id, state, propertyNames, types);
+        }
+
+        @Override
+        public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+            tick();
+            return super.onSave(entity, id, state, propertyNames, types);
+        }
+
+        private void tick() {
+            if (++events % checkInterval == 0) check(true);
+        }
+
+        private void check(boolean enforce) {
+            if (session == null) return;
+            SessionStatistics statistics = session.getStatistics();
+            long size = statistics.getEntityCount() + statistics.getCollectionCount();
+            recordSize(size);
+            if (!enforce) return;
+
+            if (failThreshold > 0 && size >= failThreshold) {
+                failures.incrementAndGet();
+                overflowed = true;
+                throw new PersistenceContextOverflowException("Session of '" + sessionFactoryName + "' holds " +
+                    statistics.getEntityCount() + " entities and " + statistics.getCollectionCount() +
+                    " collections, exceeding the fail threshold of " + failThreshold + " at " + CallSites.find());
+            }
+            if (clearThreshold > 0 && size >= clearThreshold && clearSafe) {
+                clearPending = true;
+            } else if (warnThreshold > 0 && size >= warnThreshold && !warned) {
+                warned = true;
+                warnings.incrementAndGet();
+                LOG.warn("Session of '" + sessionFactoryName + "' holds " + statistics.getEntityCount() +
+                    " entities and " + statistics.getCollectionCount() + " collections at " + CallSites.find() +
+                    ". Consider a StatelessSession, paging or clearing the session periodically.");
+            }
+        }
+
+        private void clearIfPending(Session target) {
+            if (!clearPending) return;
+            clearPending = false;
+            warned = false;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Flushing and clearing session of '" + sessionFactoryName + "' with " +
+                    target.getStatistics().getEntityCount() + " entities");
+            }
+            target.flush();
+            target.clear();
+            clears.incrementAndGet();
+        }
+
+        private class ClearingHandler implements InvocationHandler {
+            private final Session target;
+
+            private ClearingHandler(Session target) {
+                this.target = target;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (clearPending && !UNGUARDED_METHODS.contains(method.getName())) {
+                    clearIfPending(target);
+                }
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        }
+    }
+
+    private static Class[] interfacesOf(Class type) {
+        Set<Class> interfaces = new LinkedHashSet<Class>();
+        for (Class c = type; c != null; c = c.getSuperclass()) {
+            interfaces.addAll(Arrays.asList(c.getInterfaces()));
+        }
+        return interfaces.toArray(new Class[interfaces.size()]);
+    }
+}
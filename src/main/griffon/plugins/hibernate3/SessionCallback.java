@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Session;
+
+/**
+ * Statements to run with a session, the typed counterpart of the
+ * {@code Closure} and {@code CallableWithArgs} variants of {@code withHibernate3}.
+ * Arguments are passed as is, without packing them into an array nor going
+ * through Groovy's dynamic dispatch.
+ *
+ * @author Andres Almiray
+ */
+public interface SessionCallback<R> {
+    R doInSession(String sessionFactoryName, Session session);
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.Date;
+
+/**
+ * <p>A query result copied to a local columnar file and read back through
+ * memory-mapped buffers.</p>
+ * <p>The query is read once with a forward-only cursor. Every column is stored as
+ * a fixed width array of 8 byte slots (numbers, dates and booleans in place,
+ * strings as offsets into a per-column heap of UTF-8 bytes) plus a null bitmap.
+ * Random access, sorting and filtering then run against the mapped file, leaving
+ * the Java heap and the database alone.</p>
+ * <p>Results are created with {@code spill()} inside a {@code withHibernate3}
+ * block or with {@code AbstractHibernate3Provider.spillHibernate3()}. Call
+ * {@code close()} to delete the backing file.</p>
+ *
+ * @author Andres Almiray
+ */
+public class SpilledResult implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SpilledResult.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SLOT = 8;
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
+    public enum ColumnType {
+        LONG, DOUBLE, BOOLEAN, DATE, STRING
+    }
+
+    /**
+     * Selects rows for {@code filter()}.
+     */
+    public interface RowPredicate {
+        boolean accept(SpilledResult result, int row);
+    }
+
+    private final File file;
+    private final int rowCount;
+    private final String[] columnNames;
+    private final ColumnType[] columnTypes;
+    private final MappedByteBuffer[] data;
+    private final MappedByteBuffer[] heaps;
+    private final MappedByteBuffer[] nulls;
+    private RandomAccessFile raf;
+
+    private SpilledResult(File file, int rowCount, String[] columnNames, ColumnType[] columnTypes, RandomAccessFile raf,
+                          MappedByteBuffer[] data, MappedByteBuffer[] heaps, MappedByteBuffer[] nulls) {
+        this.file = file;
+        this.rowCount = rowCount;
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.raf = raf;
+        this.data = data;
+        this.heaps = heaps;
+        this.nulls = nulls;
+    }
+
+    /**
+     * Streams the results of {@code query} into a new file inside {@code directory}.
+     * Column names default to the query's return aliases.
+     *
+     * @param session     the session running the query
+     * @param query       a query whose rows are scalar projections
+     * @param columnNames column names, may be {@code null}
+     * @param directory   where the file is created, {@code java.io.tmpdir} when {@code null}
+     */
+    public static SpilledResult spill(Session session, Query query, String[] columnNames, File directory) {
+        String[] names = columnNames;
+        if (names == null) {
+            names = query.getReturnAliases();
+        }
+        Writer writer = null;
+        ScrollableResults cursor = null;
+        try {
+            writer = new Writer(names, directory);
+            query.setReadOnly(true);
+            query.setFetchSize(DEFAULT_FETCH_SIZE);
+            cursor = query.scroll(ScrollMode.FORWARD_ONLY);
+            int rows = 0;
+            while (cursor.next()) {
+                writer.write(cursor.get());
+                // keep the persistence context small if the projection includes entities
+                if (++rows % DEFAULT_FETCH_SIZE == 0) session.clear();
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            if (writer != null) writer.abort();
+            throw new IllegalStateException("Could not spill query results to disk", e);
+        } catch (RuntimeException e) {
+            if (writer != null) writer.abort();
+            throw e;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(columnName)) return i;
+        }
+        throw new IllegalArgumentException("No such column " + columnName);
+    }
+
+    public ColumnType getColumnType(int column) {
+        return columnTypes[column];
+    }
+
+    public boolean isNull(int row, int column) {
+        checkRow(row);
+        long word = nulls[column].getLong((row >>> 6) * SLOT);
+        return (word & (1L << (row & 63))) != 0;
+    }
+
+    public long getLong(int row, int column) {
+        checkRow(row);
+        if (columnTypes[column] == ColumnType.DOUBLE) {
+            return (long) data[column].getDouble(row * SLOT);
+        }
+        return data[column].getLong(row * SLOT);
+    }
+
+    public double getDouble(int row, int column) {
+        checkRow(row);
+        if (columnTypes[column] == ColumnType.DOUBLE) {
+            return data[column].getDouble(row * SLOT);
+        }
+        return data[column].getLong(row * SLOT);
+    }
+
+    public boolean getBoolean(int row, int column) {
+        return getLong(row, column) != 0;
+    }
+
+    public String getString(int row, int column) {
+        if (isNull(row, column)) return null;
+        if (columnTypes[column] != ColumnType.STRING) return String.valueOf(getValue(row, column));
+        int offset = (int) data[column].getLong(row * SLOT);
+        ByteBuffer heap = heaps[column].duplicate();
+        int length = heap.getInt(offset);
+        byte[] bytes = new byte[length];
+        heap.position(offset + 4);
+        heap.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public Object getValue(int row, int column) {
+        if (isNull(row, column)) return null;
+        switch (columnTypes[column]) {
+            case LONG:
+                return getLong(row, column);
+            case DOUBLE:
+                return getDouble(row, column);
+            case BOOLEAN:
+                return getBoolean(row, column);
+            case DATE:
+                return new Date(getLong(row, column));
+            default:
+                return getString(row, column);
+        }
+    }
+
+    /**
+     * Returns the indices of all rows ordered by the values of {@code column}.
+     * Nulls sort first.
+     */
+    public int[] sort(int column, boolean ascending) {
+        int[] rows = new int[rowCount];
+        for (int i = 0; i < rowCount; i++) rows[i] = i;
+        return sort(rows, column, ascending);
+    }
+
+    /**
+     * Orders the given row indices by the values of {@code column}. The sort is
+     * stable, so sorting by several columns in turn yields a compound order.
+     */
+    public int[] sort(int[] rows, int column, boolean ascending) {
+        int[] sorted = rows.clone();
+        int[] buffer = new int[sorted.length];
+        mergeSort(sorted, buffer, 0, sorted.length, column, ascending ? 1 : -1);
+        return sorted;
+    }
+
+    public int[] filter(RowPredicate predicate) {
+        int[] matches = new int[Math.min(rowCount, 1024)];
+        int count = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (predicate.accept(this, row)) {
+                if (count == matches.length) matches = grow(matches);
+                matches[count++] = row;
+            }
+        }
+        return trim(matches, count);
+    }
+
+    /**
+     * Keeps those {@code rows} accepted by {@code predicate}, preserving their order.
+     */
+    public int[] filter(int[] rows, RowPredicate predicate) {
+        int[] matches = new int[rows.length];
+        int count = 0;
+        for (int row : rows) {
+            if (predicate.accept(this, row)) matches[count++] = row;
+        }
+        return trim(matches, count);
+    }
+
+    /**
+     * Unmaps (as far as the JVM allows) and deletes the backing file.
+     */
+    public void close() {
+        synchronized (this) {
+            if (raf == null) return;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close " + file, e);
+            }
+            raf = null;
+        }
+        if (!file.delete()) {
+            // mapped buffers keep the file open on some platforms until they are collected
+            file.deleteOnExit();
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Rows: " + rowCount);
+        }
+    }
+
+    private int compare(int a, int b, int column) {
+        boolean nullA = isNull(a, column);
+        boolean nullB = isNull(b, column);
+        if (nullA || nullB) return nullA == nullB ? 0 : (nullA ? -1 : 1);
+        switch (columnTypes[column]) {
+            case DOUBLE:
+                return Double.compare(data[column].getDouble(a * SLOT), data[column].getDouble(b * SLOT));
+            case STRING:
+                return compareUtf8(column, (int) data[column].getLong(a * SLOT), (int) data[column].getLong(b * SLOT));
+            default:
+                long x = data[column].getLong(a * SLOT);
+                long y = data[column].getLong(b * SLOT);
+                return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    }
+
+    // UTF-8 byte order matches code point order, no need to decode
+    private int compareUtf8(int column, int offsetA, int offsetB) {
+        MappedByteBuffer heap = heaps[column];
+        int lengthA = heap.getInt(offsetA);
+        int lengthB = heap.getInt(offsetB);
+        int limit = Math.min(lengthA, lengthB);
+        for (int i = 0; i < limit; i++) {
+            int x = heap.get(offsetA + 4 + i) & 0xff;
+            int y = heap.get(offsetB + 4 + i) & 0xff;
+            if (x != y) return x - y;
+        }
+        return lengthA - lengthB;
+    }
+
+    private void mergeSort(int[] rows, int[] buffer, int from, int to, int column, int direction) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= from && direction * compare(rows[j], row, column) > 0) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, buffer, from, middle, column, direction);
+        mergeSort(rows, buffer, middle, to, column, direction);
+        if (direction * compare(rows[middle - 1], rows[middle], column) <= 0) return;
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from, right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && direction * compare(buffer[left], buffer[right], column) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] trim(int[] array, int length) {
+        if (array.length == length) return array;
+        int[] trimmed = new int[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /**
+     * Appends rows to one temporary file per column, then concatenates them into
+     * the final file once the row count is known.
+     */
+    private static class Writer {
+        private final String[] columnNames;
+        private final File directory;
+        private final ColumnWriter[] columns;
+        private int rows;
+
+        private Writer(String[] columnNames, File directory) throws IOException {
+            this.columnNames = columnNames;
+            this.directory = directory;
+            this.columns = new ColumnWriter[columnNames.length];
+            boolean success = false;
+            try {
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = new ColumnWriter(directory);
+                }
+                success = true;
+            } finally {
+                // the caller never sees a half built writer
+                if (!success) abort();
+            }
+        }
+
+        private void write(Object row) throws IOException {
+            if (rows == Integer.MAX_VALUE / SLOT) {
+                throw new IllegalStateException("Cannot spill more than " + rows + " rows");
+            }
+            Object[] values = row instanceof Object[] ? (Object[]) row : new Object[]{row};
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].write(rows, i < values.length ? values[i] : null);
+            }
+            rows++;
+        }
+
+        private SpilledResult finish() throws IOException {
+            File file = File.createTempFile("hibernate3-spill", ".col", directory);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            boolean success = false;
+            try {
+                FileChannel out = raf.getChannel();
+                long[][] regions = new long[columns.length][];
+                for (int i = 0; i < columns.length; i++) {
+                    regions[i] = columns[i].transferTo(out, rows);
+                }
+                ColumnType[] types = new ColumnType[columns.length];
+                MappedByteBuffer[] data = new MappedByteBuffer[columns.length];
+                MappedByteBuffer[] heaps = new MappedByteBuffer[columns.length];
+                MappedByteBuffer[] nulls = new MappedByteBuffer[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    long[] region = regions[i];
+                    types[i] = columns[i].type != null ? columns[i].type : ColumnType.STRING;
+                    data[i] = out.map(FileChannel.MapMode.READ_ONLY, region[0], region[1]);
+                    heaps[i] = out.map(FileChannel.MapMode.READ_ONLY, region[2], region[3]);
+                    nulls[i] = out.map(FileChannel.MapMode.READ_ONLY, region[4], region[5]);
+                }
+                success = true;
+                return new SpilledResult(file, rows, columnNames.clone(), types, raf, data, heaps, nulls);
+            } finally {
+                abort();
+                if (!success) {
+                    raf.close();
+                    file.delete();
+                }
+            }
+        }
+
+        private void abort() {
+            for (ColumnWriter column : columns) {
+                if (column != null) column.dispose();
+            }
+        }
+    }
+
+    private static class ColumnWriter {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private final File dataFile;
+        private final File heapFile;
+        private final FileChannel dataChannel;
+        private final FileChannel heapChannel;
+        private final ByteBuffer dataBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer heapBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final BitSet nulls = new BitSet();
+        private ColumnType type;
+        private long heapSize;
+
+        private ColumnWriter(File directory) throws IOException {
+            File data = File.createTempFile("hibernate3-spill", ".tmp", directory);
+            File heap = null;
+            FileChannel dataOut = null;
+            FileChannel heapOut = null;
+            try {
+                dataOut = new RandomAccessFile(data, "rw").getChannel();
+                heap = File.createTempFile("hibernate3-spill", ".tmp", directory);
+                heapOut = new RandomAccessFile(heap, "rw").getChannel();
+            } finally {
+                if (heapOut == null) {
+                    if (dataOut != null) close(dataOut);
+                    data.delete();
+                    if (heap != null) heap.delete();
+                }
+            }
+            dataFile = data;
+            heapFile = heap;
+            dataChannel = dataOut;
+            heapChannel = heapOut;
+        }
+
+        private void write(int row, Object value) throws IOException {
+            if (dataBuffer.remaining() < SLOT) drain(dataBuffer, dataChannel);
+            if (value == null) {
+                nulls.set(row);
+                dataBuffer.putLong(0L);
+                return;
+            }
+            if (type == null) type = typeOf(value);
+            switch (type) {
+                case LONG:
+                    dataBuffer.putLong(asNumber(value).longValue());
+                    break;
+                case DOUBLE:
+                    dataBuffer.putDouble(asNumber(value).doubleValue());
+                    break;
+                case BOOLEAN:
+                    dataBuffer.putLong(Boolean.TRUE.equals(value) ? 1L : 0L);
+                    break;
+                case DATE:
+                    dataBuffer.putLong(((Date) value).getTime());
+                    break;
+                default:
+                    dataBuffer.putLong(heapSize);
+                    appendString(value.toString());
+            }
+        }
+
+        private void appendString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF8);
+            if (heapSize + 4 + bytes.length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("String data of a single column cannot exceed 2GB");
+            }
+            if (heapBuffer.remaining() < 4) drain(heapBuffer, heapChannel);
+            heapBuffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!heapBuffer.hasRemaining()) drain(heapBuffer, heapChannel);
+                int length = Math.min(heapBuffer.remaining(), bytes.length - offset);
+                heapBuffer.put(bytes, offset, length);
+                offset += length;
+            }
+            heapSize += 4 + bytes.length;
+        }
+
+        /**
+         * Copies data, heap and null bitmap to {@code out}, returning their
+         * positions and sizes.
+         */
+        private long[] transferTo(FileChannel out, int rows) throws IOException {
+            drain(dataBuffer, dataChannel);
+            drain(heapBuffer, heapChannel);
+            long[] region = new long[6];
+            region[0] = out.position();
+            region[1] = copy(dataChannel, out);
+            region[2] = out.position();
+            region[3] = copy(heapChannel, out);
+            region[4] = out.position();
+            int words = (rows + 63) >>> 6;
+            ByteBuffer bitmap = ByteBuffer.allocate(Math.max(words, 1) * SLOT);
+            for (int i = 0; i < words; i++) {
+                long word = 0L;
+                for (int bit = nulls.nextSetBit(i << 6); bit >= 0 && bit < (i + 1) << 6; bit = nulls.nextSetBit(bit + 1)) {
+                    word |= 1L << (bit & 63);
+                }
+                bitmap.putLong(word);
+            }
+            bitmap.flip();
+            region[5] = bitmap.remaining();
+            while (bitmap.hasRemaining()) out.write(bitmap);
+            return region;
+        }
+
+        private void dispose() {
+            close(dataChannel);
+            close(heapChannel);
+            dataFile.delete();
+            heapFile.delete();
+        }
+
+        private static long copy(FileChannel in, FileChannel out) throws IOException {
+            long size = in.size();
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(copied, size - copied, out);
+            }
+            return size;
+        }
+
+        private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private static void close(FileChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private static ColumnType typeOf(Object value) {
+            if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+                return ColumnType.DOUBLE;
+            } else if (value instanceof Number) {
+                return value instanceof BigInteger && ((BigInteger) value).bitLength() > 63 ? ColumnType.DOUBLE : ColumnType.LONG;
+            } else if (value instanceof Boolean) {
+                return ColumnType.BOOLEAN;
+            } else if (value instanceof Date) {
+                return ColumnType.DATE;
+            }
+            return ColumnType.STRING;
+        }
+
+        private Number asNumber(Object value) {
+            if (value instanceof Number) return (Number) value;
+            throw new IllegalStateException("Column of type " + type + " cannot hold " + value.getClass().getName());
+        }
+    }
+}
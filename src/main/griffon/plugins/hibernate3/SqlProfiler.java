@@ -0,0 +1,510 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import griffon.plugins.hibernate3.internal.CallSites;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt;
+import static griffon.plugins.hibernate3.internal.ConfigValues.getLong;
+
+/**
+ * <p>Records every JDBC statement run through the connections of a
+ * SessionFactory: SQL, number of bind parameters, execute time, fetch time and
+ * rows, together with the session factory and the code that opened the
+ * enclosing {@code withHibernate3} block.</p>
+ * <p>Enabled per session factory in {@code Hibernate3Config.groovy}</p>
+ * <pre>
+ * sessionFactory {
+ *     profileSql {
+ *         bufferSize    = 4096 // statements kept, oldest are overwritten
+ *         slowThreshold = 250  // milliseconds, 0 disables slow statement notifications
+ *     }
+ * }
+ * </pre>
+ * <p>Records are kept in a fixed size ring buffer. Statements taking longer than
+ * {@code slowThreshold} (execute plus fetch time) are handed to registered
+ * {@code SlowStatementListener}s on the thread that ran them.</p>
+ *
+ * @author Andres Almiray
+ */
+public class SqlProfiler {
+    private static final Logger LOG = LoggerFactory.getLogger(SqlProfiler.class);
+    private static final Map<String, SqlProfiler> PROFILERS = new ConcurrentHashMap<String, SqlProfiler>();
+    private static final ThreadLocal<LinkedList<Object[]>> BLOCKS = new ThreadLocal<LinkedList<Object[]>>();
+    private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final String OUTSIDE_BLOCK = "<outside withHibernate3>";
+
+    /**
+     * Notified of statements slower than the configured threshold.
+     */
+    public interface SlowStatementListener {
+        void slowStatement(StatementRecord record);
+    }
+
+    private final String sessionFactoryName;
+    private final long slowThreshold;
+    private final AtomicReferenceArray<StatementRecord> ring;
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<SlowStatementListener> listeners = new CopyOnWriteArrayList<SlowStatementListener>();
+
+    public SqlProfiler(String sessionFactoryName, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.ring = new AtomicReferenceArray<StatementRecord>(Math.max(16, getInt(config, "bufferSize", 4096)));
+        this.slowThreshold = Math.max(0L, getLong(config, "slowThreshold", 0L)) * 1000000L;
+    }
+
+    public static void register(String sessionFactoryName, SqlProfiler profiler) {
+        PROFILERS.put(sessionFactoryName, profiler);
+    }
+
+    public static SqlProfiler unregister(String sessionFactoryName) {
+        return PROFILERS.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the profiler of the given session factory, {@code null} if profiling is not enabled.
+     */
+    public static SqlProfiler forSessionFactory(String sessionFactoryName) {
+        return sessionFactoryName != null ? PROFILERS.get(sessionFactoryName) : null;
+    }
+
+    /**
+     * Attributes the statements run on the current thread to the caller until
+     * {@code exitBlock} is called for the same session.
+     */
+    static void enterBlock(Session session) {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        if (blocks == null) {
+            blocks = new LinkedList<Object[]>();
+            BLOCKS.set(blocks);
+        }
+        blocks.addFirst(new Object[]{session, CallSites.find()});
+    }
+
+    static void exitBlock(Session session) {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        if (blocks == null || blocks.isEmpty() || blocks.getFirst()[0] != session) return;
+        blocks.removeFirst();
+        if (blocks.isEmpty()) BLOCKS.remove();
+    }
+
+    private static String currentBlock() {
+        LinkedList<Object[]> blocks = BLOCKS.get();
+        return blocks == null || blocks.isEmpty() ? OUTSIDE_BLOCK : (String) blocks.getFirst()[1];
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public void addSlowStatementListener(SlowStatementListener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public void removeSlowStatementListener(SlowStatementListener listener) {
+        listeners.remove(listener);
+    }
+
+    public List<SlowStatementListener> getSlowStatementListeners() {
+        return Collections.unmodifiableList(new ArrayList<SlowStatementListener>(listeners));
+    }
+
+    /**
+     * Returns the recorded statements, oldest first.
+     */
+    public List<StatementRecord> getRecords() {
+        long end = sequence.get();
+        long start = Math.max(0L, end - ring.length());
+        List<StatementRecord> records = new ArrayList<StatementRecord>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            StatementRecord record = ring.get((int) (i % ring.length()));
+            if (record != null && record.sequence == i) records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Aggregates the recorded statements by SQL shape, slowest total time first.
+     */
+    public List<ShapeSummary> summarize() {
+        Map<String, ShapeSummary> summaries = new HashMap<String, ShapeSummary>();
+        for (StatementRecord record : getRecords()) {
+            String shape = record.getShape();
+            ShapeSummary summary = summaries.get(shape);
+            if (summary == null) {
+                summary = new ShapeSummary(shape);
+                summaries.put(shape, summary);
+            }
+            summary.add(record);
+        }
+        List<ShapeSummary> list = new ArrayList<ShapeSummary>(summaries.values());
+        Collections.sort(list, new Comparator<ShapeSummary>() {
+            public int compare(ShapeSummary a, ShapeSummary b) {
+                return a.totalNanos < b.totalNanos ? 1 : (a.totalNanos == b.totalNanos ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Writes a summary by SQL shape followed by the recorded statements.
+     */
+    public void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("SQL profile of '" + sessionFactoryName + "'");
+        out.println("count     total ms    max ms      rows  shape");
+        for (ShapeSummary summary : summarize()) {
+            out.println(String.format("%5d %12.3f %9.3f %9d  %s", summary.count, summary.totalNanos / 1e6,
+                summary.maxNanos / 1e6, summary.rows, summary.shape));
+        }
+        out.println();
+        out.println("exec ms  fetch ms      rows params  call site / sql");
+        for (StatementRecord record : getRecords()) {
+            out.println(String.format("%7.3f %9.3f %9d %6d  %s", record.executeNanos / 1e6, record.fetchNanos / 1e6,
+                record.rows, record.parameterCount, record.callSite));
+            out.println("                                    " + record.sql);
+        }
+        out.flush();
+    }
+
+    public void clear() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+    }
+
+    /**
+     * Returns a connection that records the statements it runs.
+     */
+    public Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(SqlProfiler.class.getClassLoader(),
+            new Class[]{Connection.class}, new ConnectionHandler(connection));
+    }
+
+    private void record(StatementRecord record) {
+        long seq = sequence.getAndIncrement();
+        record.sequence = seq;
+        ring.set((int) (seq % ring.length()), record);
+        if (slowThreshold > 0L && record.executeNanos + record.fetchNanos >= slowThreshold) {
+            for (SlowStatementListener listener : listeners) {
+                try {
+                    listener.slowStatement(record);
+                } catch (RuntimeException e) {
+                    LOG.warn("Slow statement listener " + listener + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A single statement execution.
+     */
+    public static final class StatementRecord {
+        private final String sessionFactoryName;
+        private final String sql;
+        private final String callSite;
+        private final String threadName;
+        private final long timestamp;
+        private volatile long sequence;
+        private int parameterCount;
+        private int batchSize;
+        private long executeNanos;
+        private long fetchNanos;
+        private long rows;
+
+        private StatementRecord(String sessionFactoryName, String sql, String callSite) {
+            this.sessionFactoryName = sessionFactoryName;
+            this.sql = sql;
+            this.callSite = callSite;
+            this.threadName = Thread.currentThread().getName();
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public String getSessionFactoryName() {
+            return sessionFactoryName;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Returns the SQL with literals replaced by {@code ?} and whitespace collapsed.
+         */
+        public String getShape() {
+            if (sql == null) return "";
+            return WHITESPACE.matcher(LITERALS.matcher(sql).replaceAll("?")).replaceAll(" ").trim();
+        }
+
+        public String getCallSite() {
+            return callSite;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getParameterCount() {
+            return parameterCount;
+        }
+
+        /**
+         * Returns the number of parameter sets of a batch, 0 if the statement was not batched.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public long getExecuteNanos() {
+            return executeNanos;
+        }
+
+        public long getFetchNanos() {
+            return fetchNanos;
+        }
+
+        /**
+         * Returns the rows read for queries, the rows affected for updates.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3fms exec, %.3fms fetch, %d rows at %s: %s", executeNanos / 1e6, fetchNanos / 1e6, rows, callSite, sql);
+        }
+    }
+
+    public static final class ShapeSummary {
+        private final String shape;
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+        private long rows;
+
+        private ShapeSummary(String shape) {
+            this.shape = shape;
+        }
+
+        private void add(StatementRecord record) {
+            long nanos = record.executeNanos + record.fetchNanos;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            rows += record.rows;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+
+        private ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) return proxy == args[0];
+            if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+            Object result = SqlProfiler.invoke(target, method, args);
+            if (result instanceof Statement) {
+                String sql = ("prepareStatement".equals(name) || "prepareCall".equals(name)) ? (String) args[0] : null;
+                Class type = result instanceof CallableStatement ? CallableStatement.class :
+                    result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+                return Proxy.newProxyInstance(SqlProfiler.class.getClassLoader(), new Class[]{type},
+                    new StatementHandler((Statement) result, (Connection) proxy, sql));
+            }
+            return result;
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final Connection connection;
+        private final String preparedSql;
+        private int parameterCount;
+        private int batchSize;
+        private StatementRecord pending;
+
+        private StatementHandler(Statement target, Connection connection, String preparedSql) {
+            this.target = target;
+            this.connection = connection;
+            this.preparedSql = preparedSql;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameterCount = Math.max(parameterCount, (Integer) args[0]);
+                return SqlProfiler.invoke(target, method, args);
+            }
+            if ("addBatch".equals(name)) {
+                batchSize++;
+                return SqlProfiler.invoke(target, method, args);
+            }
+            if (name.startsWith("execute")) {
+                return execute(proxy, method, args);
+            }
+            if ("getConnection".equals(name)) return connection;
+            if ("close".equals(name)) finishPending();
+            if ("equals".equals(name)) return proxy == args[0];
+            if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+            Object result = SqlProfiler.invoke(target, method, args);
+            if (result instanceof ResultSet && pending != null) {
+                return wrap((ResultSet) result, pending);
+            }
+            return result;
+        }
+
+        private Object execute(Object proxy, Method method, Object[] args) throws Throwable {
+            finishPending();
+            String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+            StatementRecord record = new StatementRecord(sessionFactoryName, sql, currentBlock());
+            record.parameterCount = parameterCount;
+            record.batchSize = batchSize;
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = SqlProfiler.invoke(target, method, args);
+            } finally {
+                record.executeNanos = System.nanoTime() - start;
+                batchSize = 0;
+            }
+            if (result instanceof ResultSet) {
+                pending = record;
+                return wrap((ResultSet) result, record);
+            }
+            if (result instanceof Integer) {
+                record.rows = (Integer) result;
+            } else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    if (count > 0) record.rows += count;
+                }
+            } else if (Boolean.TRUE.equals(result)) {
+                // execute() returned a result set, fetched through getResultSet()
+                pending = record;
+                return result;
+            } else {
+                record.rows = Math.max(0, target.getUpdateCount());
+            }
+            record(record);
+            return result;
+        }
+
+        private ResultSet wrap(ResultSet resultSet, StatementRecord record) {
+            return (ResultSet) Proxy.newProxyInstance(SqlProfiler.class.getClassLoader(),
+                new Class[]{ResultSet.class}, new ResultSetHandler(resultSet, this, record));
+        }
+
+        private void finishPending() {
+            if (pending == null) return;
+            StatementRecord record = pending;
+            pending = null;
+            record(record);
+        }
+
+        private void finish(StatementRecord record) {
+            if (pending == record) finishPending();
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final StatementHandler statement;
+        private final StatementRecord record;
+
+        private ResultSetHandler(ResultSet target, StatementHandler statement, StatementRecord record) {
+            this.target = target;
+            this.statement = statement;
+            this.record = record;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("next".equals(name)) {
+                long start = System.nanoTime();
+                Object result = SqlProfiler.invoke(target, method, args);
+                record.fetchNanos += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    record.rows++;
+                } else {
+                    statement.finish(record);
+                }
+                return result;
+            }
+            if ("close".equals(name)) {
+                statement.finish(record);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return SqlProfiler.invoke(target, method, args);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.metadata.ClassMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.getInt;
+import static griffon.plugins.hibernate3.internal.ConfigValues.getLong;
+
+/**
+ * <p>Collects small writes and commits them in groups from a background thread,
+ * trading a little latency for far fewer transactions.</p>
+ * <p>Configured per session factory in {@code Hibernate3Config.groovy}</p>
+ * <pre>
+ * sessionFactory {
+ *     writeBehind {
+ *         maxBatchSize = 100   // operations per transaction
+ *         maxDelay     = 50    // milliseconds to wait for more operations
+ *         capacity     = 10000 // pending operations before enqueueing is rejected
+ *     }
+ * }
+ * </pre>
+ * <p>Every operation returns a {@code Future} that completes once its transaction
+ * has committed, with the persisted entity, the merged copy or the deleted entity.
+ * When a batch fails it is rolled back and each of its operations is retried in
+ * a transaction of its own, so only the operations that fail on their own
+ * complete exceptionally. Operations run in the order they were enqueued.</p>
+ * <p>Entities handed to the queue must not be modified by the caller until
+ * their handle completes.</p>
+ *
+ * @author Andres Almiray
+ */
+public class WriteBehindQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+    private static final long IDLE_POLL = 250L;
+    private static final Map<String, WriteBehindQueue> QUEUES = new ConcurrentHashMap<String, WriteBehindQueue>();
+
+    public enum Operation {
+        PERSIST, MERGE, DELETE
+    }
+
+    private final String sessionFactoryName;
+    private final Hibernate3Provider provider;
+    private volatile int maxBatchSize;
+    private volatile long maxDelay;
+    private volatile int capacity;
+    private final BlockingQueue<WriteOperation> queue = new LinkedBlockingQueue<WriteOperation>();
+    private final Thread writer;
+    private volatile boolean shutdown;
+    private long enqueued;
+    private long written;
+    private final Object progress = new Object();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public WriteBehindQueue(String sessionFactoryName, Map config, Hibernate3Provider provider) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.provider = provider;
+        configure(config);
+        this.writer = new Thread(new Writer(), "hibernate3-write-behind-" + sessionFactoryName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Applies new settings to a running queue, as done by
+     * {@code Hibernate3Connector.reload()}. A lower capacity only rejects new
+     * operations, those already pending are kept.
+     */
+    public void configure(Map config) {
+        maxBatchSize = Math.max(1, getInt(config, "maxBatchSize", 100));
+        maxDelay = Math.max(0L, getLong(config, "maxDelay", 50L));
+        capacity = Math.max(1, getInt(config, "capacity", 10000));
+    }
+
+    public static void register(String sessionFactoryName, WriteBehindQueue queue) {
+        QUEUES.put(sessionFactoryName, queue);
+    }
+
+    public static WriteBehindQueue unregister(String sessionFactoryName) {
+        return QUEUES.remove(sessionFactoryName);
+    }
+
+    /**
+     * Returns the queue of the given session factory, {@code null} if none was configured.
+     */
+    public static WriteBehindQueue forSessionFactory(String sessionFactoryName) {
+        return QUEUES.get(sessionFactoryName);
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public Future<Object> persist(Object entity) {
+        return enqueue(Operation.PERSIST, entity);
+    }
+
+    public Future<Object> merge(Object entity) {
+        return enqueue(Operation.MERGE, entity);
+    }
+
+    public Future<Object> delete(Object entity) {
+        return enqueue(Operation.DELETE, entity);
+    }
+
+    /**
+     * Adds an operation to the queue.
+     *
+     * @throws RejectedExecutionException if the queue is full or shut down
+     */
+    public Future<Object> enqueue(Operation operation, Object entity) {
+        if (operation == null) throw new IllegalArgumentException("Operation must not be null");
+        if (entity == null) throw new IllegalArgumentException("Entity must not be null");
+        synchronized (queue) {
+            if (shutdown) throw new RejectedExecutionException("Write-behind queue of '" + sessionFactoryName + "' is shut down");
+            // the capacity may change on reload, so it is enforced here rather than by the queue
+            if (queue.size() >= capacity) {
+                throw new RejectedExecutionException("Write-behind queue of '" + sessionFactoryName + "' is full (" + queue.size() + " pending operations)");
+            }
+            WriteOperation op = new WriteOperation(enqueued + 1, operation, entity);
+            queue.add(op);
+            enqueued = op.sequence;
+            return op;
+        }
+    }
+
+    /**
+     * Blocks until every operation enqueued before this call has completed.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long target;
+        synchronized (queue) {
+            target = enqueued;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (progress) {
+            // operations are written in order, cancelled ones included
+            while (written < target) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0L) return false;
+                progress.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting operations, writes the pending ones and stops the writer thread.
+     *
+     * @return false if the pending operations could not be written within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (queue) {
+            shutdown = true;
+        }
+        writer.join(unit.toMillis(timeout));
+        if (writer.isAlive()) {
+            LOG.warn("Write-behind queue of '" + sessionFactoryName + "' still has " + queue.size() + " pending operations");
+            return false;
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("pending", (long) queue.size());
+        metrics.put("batches", batches.get());
+        metrics.put("operations", operations.get());
+        metrics.put("retries", retries.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    private class Writer implements Runnable {
+        public void run() {
+            List<WriteOperation> batch = new ArrayList<WriteOperation>(maxBatchSize);
+            while (!shutdown || !queue.isEmpty()) {
+                try {
+                    collect(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (!batch.isEmpty()) {
+                    try {
+                        write(batch);
+                    } finally {
+                        synchronized (progress) {
+                            written = batch.get(batch.size() - 1).sequence;
+                            progress.notifyAll();
+                        }
+                        batch.clear();
+                    }
+                }
+            }
+        }
+
+        private void collect(List<WriteOperation> batch) throws InterruptedException {
+            WriteOperation first = shutdown ? queue.poll() : queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+            if (first == null) return;
+            batch.add(first);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+            while (batch.size() < maxBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                WriteOperation op = remaining > 0 && !shutdown ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (op == null) break;
+                batch.add(op);
+            }
+        }
+
+        private void write(List<WriteOperation> batch) {
+            List<WriteOperation> live = new ArrayList<WriteOperation>(batch.size());
+            for (WriteOperation op : batch) {
+                // once taken an operation can no longer be cancelled
+                if (op.start()) live.add(op);
+            }
+            if (live.isEmpty()) return;
+            batches.incrementAndGet();
+            try {
+                Object[] results = execute(live);
+                for (int i = 0; i < live.size(); i++) {
+                    live.get(i).complete(results[i]);
+                }
+                operations.addAndGet(live.size());
+            } catch (Throwable batchFailure) {
+                if (live.size() == 1) {
+                    fail(live.get(0), batchFailure);
+                    return;
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Write-behind batch of " + live.size() + " operations on '" + sessionFactoryName + "' failed, retrying one by one", batchFailure);
+                }
+                for (WriteOperation op : live) {
+                    op.restore();
+                    retries.incrementAndGet();
+                    try {
+                        op.complete(execute(Collections.singletonList(op))[0]);
+                        operations.incrementAndGet();
+                    } catch (Throwable failure) {
+                        fail(op, failure);
+                    }
+                }
+            }
+        }
+
+        private void fail(WriteOperation op, Throwable failure) {
+            failures.incrementAndGet();
+            LOG.warn("Write-behind " + op.operation + " of " + op.entity.getClass().getName() + " on '" + sessionFactoryName + "' failed", failure);
+            op.fail(failure);
+        }
+
+        private Object[] execute(final List<WriteOperation> ops) {
+            return provider.withHibernate3(sessionFactoryName, new Hibernate3Options().priority(Hibernate3Options.Priority.BACKGROUND), new SessionCallback<Object[]>() {
+                public Object[] doInSession(String sessionFactoryName, Session session) {
+                    try {
+                        Object[] results = new Object[ops.size()];
+                        for (int i = 0; i < results.length; i++) {
+                            results[i] = ops.get(i).apply(session);
+                        }
+                        session.flush();
+                        return results;
+                    } catch (RuntimeException e) {
+                        session.getTransaction().rollback();
+                        throw e;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * An enqueued operation doubling as the caller's completion handle.
+     */
+    private class WriteOperation implements Future<Object> {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int COMPLETED = 2;
+        private static final int FAILED = 3;
+        private static final int CANCELLED = 4;
+
+        private final long sequence;
+        private final Operation operation;
+        private final Object entity;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object result;
+        private volatile Throwable failure;
+        private ClassMetadata metadata;
+        private Serializable identifier;
+        private Object version;
+
+        private WriteOperation(long sequence, Operation operation, Object entity) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.entity = entity;
+        }
+
+        private Object apply(Session session) {
+            switch (operation) {
+                case PERSIST:
+                    snapshot(session);
+                    session.persist(entity);
+                    return entity;
+                case MERGE:
+                    return session.merge(entity);
+                default:
+                    session.delete(entity);
+                    return entity;
+            }
+        }
+
+        /**
+         * Remembers the identifier and version persist() is about to assign so
+         * they can be reset before the operation is retried.
+         */
+        private void snapshot(Session session) {
+            if (metadata != null) return;
+            metadata = session.getSessionFactory().getClassMetadata(Hibernate.getClass(entity));
+            if (metadata == null) return;
+            identifier = metadata.getIdentifier(entity, EntityMode.POJO);
+            if (metadata.isVersioned()) version = metadata.getVersion(entity, EntityMode.POJO);
+        }
+
+        private void restore() {
+            if (operation != Operation.PERSIST || metadata == null) return;
+            metadata.setIdentifier(entity, identifier, EntityMode.POJO);
+            if (metadata.isVersioned()) {
+                metadata.setPropertyValue(entity, metadata.getPropertyNames()[metadata.getVersionProperty()], version, EntityMode.POJO);
+            }
+        }
+
+        private boolean start() {
+            return state.compareAndSet(PENDING, RUNNING);
+        }
+
+        private void complete(Object result) {
+            this.result = result;
+            if (state.compareAndSet(RUNNING, COMPLETED)) done.countDown();
+        }
+
+        private void fail(Throwable failure) {
+            this.failure = failure;
+            if (state.compareAndSet(RUNNING, FAILED)) done.countDown();
+        }
+
+        /**
+         * Only succeeds before the writer has taken the operation into a batch.
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isDone() {
+            int current = state.get();
+            return current != PENDING && current != RUNNING;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            done.await();
+            return outcome();
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            return outcome();
+        }
+
+        private Object outcome() throws ExecutionException {
+            switch (state.get()) {
+                case CANCELLED:
+                    throw new CancellationException();
+                case FAILED:
+                    throw new ExecutionException(failure);
+                default:
+                    return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.id;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.IdentifierGenerationException;
+import org.hibernate.id.IdentifierGeneratorHelper;
+import org.hibernate.id.enhanced.AccessCallback;
+import org.hibernate.id.enhanced.OptimizerFactory;
+import org.hibernate.id.enhanced.SequenceStructure;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Identifier generator reserving blocks of {@code block_size} ids from a
+ * sequence, or a table on databases without sequences, in one round-trip each.
+ * Ids are handed out from {@code stripes} blocks picked by thread, without locks.</p>
+ * <pre>
+ * &lt;generator class="griffon.plugins.hibernate3.id.BlockSequenceGenerator"&gt;
+ *     &lt;param name="sequence_name"&gt;person_seq&lt;/param&gt;
+ *     &lt;param name="block_size"&gt;1000&lt;/param&gt;
+ * &lt;/generator&gt;
+ * </pre>
+ * <p>The block starting at value {@code v} holds ids {@code v} to
+ * {@code v + block_size - 1}, so the sequence must be incremented by
+ * {@code block_size} and be used by this generator only. Schema export creates
+ * it that way. The first reservation checks the step of the sequence, and
+ * fails rather than hand out overlapping blocks. Ids are unique but not ordered across threads, and unused ids of
+ * a block are lost when the SessionFactory closes.</p>
+ *
+ * @author Andres Almiray
+ */
+public class BlockSequenceGenerator extends SequenceStyleGenerator {
+    public static final String BLOCK_SIZE_PARAM = "block_size";
+    public static final String STRIPES_PARAM = "stripes";
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+    private static final String LEGACY_SEQUENCE_PARAM = "sequence";
+    private static final long EXHAUSTED = Long.MIN_VALUE;
+
+    private int blockSize;
+    private int mask;
+    private AtomicReferenceArray<Block> blocks;
+    private Class returnedClass;
+    private volatile boolean verified;
+
+    @Override
+    public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+        blockSize = Math.max(1, intParam(params, BLOCK_SIZE_PARAM, DEFAULT_BLOCK_SIZE));
+        int stripes = Integer.highestOneBit(Math.max(1, intParam(params, STRIPES_PARAM, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        mask = stripes - 1;
+        blocks = new AtomicReferenceArray<Block>(stripes);
+        returnedClass = type.getReturnedClass();
+
+        Properties sequenceParams = new Properties();
+        sequenceParams.putAll(params);
+        // mappings switched over from the 'sequence' generator name their sequence this way
+        if (!params.containsKey(SEQUENCE_PARAM) && params.containsKey(LEGACY_SEQUENCE_PARAM)) {
+            sequenceParams.setProperty(SEQUENCE_PARAM, params.getProperty(LEGACY_SEQUENCE_PARAM));
+        }
+        sequenceParams.setProperty(INCREMENT_PARAM, String.valueOf(blockSize));
+        // keeps the increment on the sequence, the optimizer itself is bypassed
+        sequenceParams.setProperty(OPT_PARAM, OptimizerFactory.POOL);
+        super.configure(type, sequenceParams, dialect);
+    }
+
+    @Override
+    public Serializable generate(SessionImplementor session, Object object) throws HibernateException {
+        int stripe = (int) Thread.currentThread().getId() & mask;
+        Block block = blocks.get(stripe);
+        long id = block != null ? block.take() : EXHAUSTED;
+        if (id == EXHAUSTED) {
+            // threads sharing the stripe may each reserve one, the ids of the losing block are skipped
+            block = reserve(session);
+            id = block.take();
+            blocks.set(stripe, block);
+        }
+        return IdentifierGeneratorHelper.getIntegralDataTypeHolder(returnedClass).initialize(id).makeValue();
+    }
+
+    private Block reserve(SessionImplementor session) {
+        AccessCallback callback = getDatabaseStructure().buildCallback(session);
+        long start = callback.getNextValue().makeValue().longValue();
+        if (!verified && getDatabaseStructure() instanceof SequenceStructure) {
+            // an existing sequence may step by less than a block, blocks would overlap
+            long next = callback.getNextValue().makeValue().longValue();
+            if (next - start < blockSize) {
+                throw new IdentifierGenerationException("Sequence " + getDatabaseStructure().getName() +
+                    " increments by " + (next - start) + ", less than the block_size of " + blockSize);
+            }
+            start = next;
+            verified = true;
+        }
+        return new Block(start, start + blockSize);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    private static int intParam(Properties params, String name, int defaultValue) {
+        String value = params.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+
+        private long take() {
+            long id = next.getAndIncrement();
+            return id < end ? id : EXHAUSTED;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.BatchFetchTuner;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.InitializeCollectionEvent;
+import org.hibernate.event.InitializeCollectionEventListener;
+import org.hibernate.event.LoadEvent;
+import org.hibernate.event.LoadEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Reports proxy and collection initializations that hit the database to a
+ * {@code BatchFetchTuner}. Registered ahead of Hibernate's own listeners, it
+ * only counts and never loads anything itself.
+ *
+ * @author Andres Almiray
+ */
+public class BatchFetchListener implements LoadEventListener, InitializeCollectionEventListener {
+    private final transient BatchFetchTuner tuner;
+
+    public BatchFetchListener(BatchFetchTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    public void onLoad(LoadEvent event, LoadType loadType) throws HibernateException {
+        if (loadType != IMMEDIATE_LOAD && loadType != INTERNAL_LOAD_EAGER) return;
+        EventSource session = event.getSession();
+        EntityPersister persister = session.getFactory().getEntityPersister(event.getEntityClassName());
+        EntityKey key = new EntityKey(event.getEntityId(), persister, session.getEntityMode());
+        // already brought in by a batch, no query needed
+        if (session.getPersistenceContext().getEntity(key) != null) return;
+        tuner.lazyLoad(persister.getEntityName(), false);
+    }
+
+    public void onInitializeCollection(InitializeCollectionEvent event) throws HibernateException {
+        if (event.getCollection().wasInitialized()) return;
+        tuner.lazyLoad(event.getCollection().getRole(), true);
+    }
+}
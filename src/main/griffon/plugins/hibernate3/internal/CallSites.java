@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+/**
+ * Locates the application code that triggered a plugin or Hibernate operation.
+ *
+ * @author Andres Almiray
+ */
+public final class CallSites {
+    private CallSites() {}
+
+    /**
+     * Returns the first stack frame of the current thread that belongs neither to
+     * Hibernate, this plugin, the JDK nor the Groovy runtime.
+     */
+    public static String find() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (className.startsWith("org.hibernate.") ||
+                className.startsWith("griffon.plugins.hibernate3.") ||
+                className.startsWith("java.") ||
+                className.startsWith("javax.") ||
+                className.startsWith("sun.") ||
+                className.startsWith("com.sun.") ||
+                className.startsWith("groovy.lang.") ||
+                className.startsWith("org.codehaus.groovy.") ||
+                className.startsWith("$Proxy") ||
+                className.contains(".$Proxy")) {
+                continue;
+            }
+            return element.toString();
+        }
+        return "<unknown>";
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.EntityChange;
+import griffon.plugins.hibernate3.EntityChangePublisher;
+import org.hibernate.Interceptor;
+import org.hibernate.Transaction;
+import org.hibernate.event.AbstractCollectionEvent;
+import org.hibernate.event.PostCollectionRecreateEvent;
+import org.hibernate.event.PostCollectionRecreateEventListener;
+import org.hibernate.event.PostCollectionRemoveEvent;
+import org.hibernate.event.PostCollectionRemoveEventListener;
+import org.hibernate.event.PostCollectionUpdateEvent;
+import org.hibernate.event.PostCollectionUpdateEventListener;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>Records inserts, updates and deletes and hands them to an
+ * {@code EntityChangePublisher} once their transaction has committed. Changes
+ * of rolled back transactions are discarded.</p>
+ * <p>Changes are taken from the post insert, update, delete and collection
+ * events of the session that made them, which carry the entity name and the
+ * identifier, generated ones included. The interceptor side only tracks
+ * transaction boundaries.</p>
+ * <p>The instance is shared by all sessions of a SessionFactory; changes are
+ * buffered per thread and per transaction, so nested transactions on the same
+ * thread are kept apart.</p>
+ *
+ * @author Andres Almiray
+ */
+public class ChangeCaptureInterceptor extends DelegatingInterceptor implements PostInsertEventListener, PostUpdateEventListener,
+    PostDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionRemoveEventListener, PostCollectionUpdateEventListener {
+    private final EntityChangePublisher publisher;
+    private final transient ThreadLocal<LinkedList<List<EntityChange>>> buffers = new ThreadLocal<LinkedList<List<EntityChange>>>() {
+        @Override
+        protected LinkedList<List<EntityChange>> initialValue() {
+            return new LinkedList<List<EntityChange>>();
+        }
+    };
+
+    public ChangeCaptureInterceptor(Interceptor delegate, EntityChangePublisher publisher) {
+        super(delegate);
+        this.publisher = publisher;
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        record(event.getPersister().getEntityName(), event.getId(), EntityChange.Operation.INSERT);
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        record(event.getPersister().getEntityName(), event.getId(), EntityChange.Operation.UPDATE);
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        record(event.getPersister().getEntityName(), event.getId(), EntityChange.Operation.DELETE);
+    }
+
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        recordOwner(event);
+    }
+
+    public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+        recordOwner(event);
+    }
+
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        recordOwner(event);
+    }
+
+    @Override
+    public void afterTransactionBegin(Transaction tx) {
+        buffers.get().addFirst(new ArrayList<EntityChange>());
+        super.afterTransactionBegin(tx);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        try {
+            super.afterTransactionCompletion(tx);
+        } finally {
+            LinkedList<List<EntityChange>> stack = buffers.get();
+            List<EntityChange> buffer = stack.isEmpty() ? null : stack.removeFirst();
+            if (stack.isEmpty()) buffers.remove();
+            if (buffer != null && !buffer.isEmpty() && tx.wasCommitted()) {
+                publisher.publish(buffer);
+            }
+        }
+    }
+
+    private void recordOwner(AbstractCollectionEvent event) {
+        if (event.getAffectedOwnerOrNull() == null) return;
+        record(event.getAffectedOwnerEntityName(), event.getAffectedOwnerIdOrNull(), EntityChange.Operation.UPDATE);
+    }
+
+    private void record(String entityName, Serializable id, EntityChange.Operation operation) {
+        LinkedList<List<EntityChange>> stack = buffers.get();
+        // changes outside of a transaction are never committed through it
+        if (stack.isEmpty()) {
+            buffers.remove();
+            return;
+        }
+        stack.getFirst().add(new EntityChange(entityName, id, operation));
+    }
+}
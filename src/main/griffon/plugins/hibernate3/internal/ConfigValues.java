@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.util.ConfigUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed accessors for values read from {@code Hibernate3Config.groovy} blocks.
+ * Missing keys and empty {@code ConfigObject}s resolve to the given default.
+ *
+ * @author Andres Almiray
+ */
+public final class ConfigValues {
+    private ConfigValues() {}
+
+    public static Object getValue(Map config, String key) {
+        if (config == null) return null;
+        Object value = ConfigUtils.getConfigValue(config, key);
+        if (value instanceof Map && ((Map) value).isEmpty()) return null;
+        return value;
+    }
+
+    public static int getInt(Map config, String key, int defaultValue) {
+        Object value = getValue(config, key);
+        if (value instanceof Number) return ((Number) value).intValue();
+        if (value != null) return Integer.parseInt(value.toString().trim());
+        return defaultValue;
+    }
+
+    public static long getLong(Map config, String key, long defaultValue) {
+        Object value = getValue(config, key);
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value != null) return Long.parseLong(value.toString().trim());
+        return defaultValue;
+    }
+
+    public static boolean getBoolean(Map config, String key, boolean defaultValue) {
+        Object value = getValue(config, key);
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value != null) return Boolean.parseBoolean(value.toString().trim());
+        return defaultValue;
+    }
+
+    public static String getString(Map config, String key, String defaultValue) {
+        Object value = getValue(config, key);
+        return value != null ? value.toString() : defaultValue;
+    }
+
+    public static List<String> getStringList(Map config, String key) {
+        Object value = getValue(config, key);
+        if (value == null) return Collections.emptyList();
+        List<String> list = new ArrayList<String>();
+        if (value instanceof Collection) {
+            for (Object element : (Collection) value) {
+                if (element != null) list.add(element.toString());
+            }
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                if (element != null) list.add(element.toString());
+            }
+        } else {
+            list.add(value.toString());
+        }
+        return list;
+    }
+
+    public static Map getMap(Map config, String key) {
+        Object value = getValue(config, key);
+        return value instanceof Map ? (Map) value : null;
+    }
+}
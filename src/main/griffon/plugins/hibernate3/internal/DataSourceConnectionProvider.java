@@ -15,6 +15,7 @@
  */
 package griffon.plugins.hibernate3.internal;
 
+import griffon.plugins.hibernate3.SqlProfiler;
 import org.hibernate.HibernateException;
 import org.hibernate.connection.ConnectionProvider;
 import org.slf4j.Logger;
@@ -35,6 +36,7 @@ import java.util.Properties;
 public class DataSourceConnectionProvider implements ConnectionProvider {
     private static final Logger LOG = LoggerFactory.getLogger(DataSourceConnectionProvider.class);
     private DataSource dataSource;
+    private SqlProfiler profiler;
 
     public DataSource getDataSource() {
         if (null == this.dataSource) {
@@ -45,11 +47,14 @@ public class DataSourceConnectionProvider implements ConnectionProvider {
 
     public void configure(Properties properties) throws HibernateException {
         this.dataSource = HibernateConfigurationHelper.getDataSource();
+        // not registered yet, the factory being built may still fail
+        this.profiler = HibernateConfigurationHelper.getPendingSqlProfiler();
     }
 
     public Connection getConnection() throws SQLException {
         try {
-            return getDataSource().getConnection();
+            Connection connection = getDataSource().getConnection();
+            return profiler != null ? profiler.wrap(connection) : connection;
         } catch (SQLException ex) {
             logExceptions(ex);
             throw ex;
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import org.hibernate.CallbackException;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.EntityMode;
+import org.hibernate.Interceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Iterator;
+
+/**
+ * <p>An {@code Interceptor} that forwards every callback to another one.</p>
+ * <p>A session opened with its own interceptor no longer sees the one configured
+ * on the {@code SessionFactory}; plugin interceptors extend this class and wrap
+ * the configured one so that user supplied interceptors keep working.</p>
+ *
+ * @author Andres Almiray
+ */
+public class DelegatingInterceptor implements Interceptor, Serializable {
+    private final Interceptor delegate;
+
+    public DelegatingInterceptor(Interceptor delegate) {
+        this.delegate = delegate != null ? delegate : EmptyInterceptor.INSTANCE;
+    }
+
+    public Interceptor getDelegate() {
+        return delegate;
+    }
+
+    public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+        return delegate.onLoad(entity, id, state, propertyNames, types);
+    }
+
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) throws CallbackException {
+        return delegate.onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+    }
+
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+        return delegate.onSave(entity, id, state, propertyNames, types);
+    }
+
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+        delegate.onDelete(entity, id, state, propertyNames, types);
+    }
+
+    public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
+        delegate.onCollectionRecreate(collection, key);
+    }
+
+    public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
+        delegate.onCollectionRemove(collection, key);
+    }
+
+    public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
+        delegate.onCollectionUpdate(collection, key);
+    }
+
+    public void preFlush(Iterator entities) throws CallbackException {
+        delegate.preFlush(entities);
+    }
+
+    public void postFlush(Iterator entities) throws CallbackException {
+        delegate.postFlush(entities);
+    }
+
+    public Boolean isTransient(Object entity) {
+        return delegate.isTransient(entity);
+    }
+
+    public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+        return delegate.findDirty(entity, id, currentState, previousState, propertyNames, types);
+    }
+
+    public Object instantiate(String entityName, EntityMode entityMode, Serializable id) throws CallbackException {
+        return delegate.instantiate(entityName, entityMode, id);
+    }
+
+    public String getEntityName(Object object) throws CallbackException {
+        return delegate.getEntityName(object);
+    }
+
+    public Object getEntity(String entityName, Serializable id) throws CallbackException {
+        return delegate.getEntity(entityName, id);
+    }
+
+    public void afterTransactionBegin(Transaction tx) {
+        delegate.afterTransactionBegin(tx);
+    }
+
+    public void beforeTransactionCompletion(Transaction tx) {
+        delegate.beforeTransactionCompletion(tx);
+    }
+
+    public void afterTransactionCompletion(Transaction tx) {
+        delegate.afterTransactionCompletion(tx);
+    }
+
+    public String onPrepareStatement(String sql) {
+        return delegate.onPrepareStatement(sql);
+    }
+}
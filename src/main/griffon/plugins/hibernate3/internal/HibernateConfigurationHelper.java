@@ -15,6 +15,17 @@
  */
 package griffon.plugins.hibernate3.internal;
 
+import griffon.plugins.hibernate3.BatchFetchTuner;
+import griffon.plugins.hibernate3.EntityChangePublisher;
+import griffon.plugins.hibernate3.Hibernate3Monitor;
+import griffon.plugins.hibernate3.Hibernate3Monitors;
+import griffon.plugins.hibernate3.SqlProfiler;
+import griffon.plugins.hibernate3.id.BlockSequenceGenerator;
+import griffon.plugins.hibernate3.types.CompressedTextType;
+import griffon.plugins.hibernate3.types.DoubleArrayType;
+import griffon.plugins.hibernate3.types.FloatArrayType;
+import griffon.plugins.hibernate3.types.LongArrayType;
+import griffon.plugins.hibernate3.types.UuidBinaryType;
 import griffon.util.ConfigUtils;
 import griffon.util.RunnableWithArgs;
 import griffon.util.RunnableWithArgsClosure;
@@ -23,14 +34,30 @@ import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.Mappings;
 import org.hibernate.cfg.NamingStrategy;
+import org.hibernate.event.AutoFlushEventListener;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.FlushEventListener;
+import org.hibernate.event.InitializeCollectionEventListener;
+import org.hibernate.event.LoadEventListener;
+import org.hibernate.mapping.FetchProfile;
+import org.hibernate.mapping.MetadataSource;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.RootClass;
+import org.hibernate.mapping.SimpleValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -49,12 +76,21 @@ public class HibernateConfigurationHelper {
     public static final String ENTITY_INTERCEPTOR = "entityInterceptor";
     public static final String NAMING_STRATEGY = "namingStrategy";
     public static final String PROPS = "props";
+    public static final String CHANGE_EVENTS = "changeEvents";
+    public static final String PROFILE_SQL = "profileSql";
+    public static final String FETCH_PROFILES = "fetchProfiles";
+    public static final String BATCH_TUNING = "batchTuning";
+    public static final String ID_GENERATOR = "idGenerator";
+    public static final String USER_TYPES = "userTypes";
 
     private static final ThreadLocal<DataSource> dataSourceHolder = new ThreadLocal<DataSource>();
+    private static final ThreadLocal<SqlProfiler> sqlProfilerHolder = new ThreadLocal<SqlProfiler>();
     private final ConfigObject sessionConfig;
     private final ConfigObject dataSourceConfig;
     private final String dataSourceName;
     private final DataSource dataSource;
+    private SqlProfiler sqlProfiler;
+    private BatchFetchTuner batchFetchTuner;
 
     public HibernateConfigurationHelper(ConfigObject sessionConfig, ConfigObject dataSourceConfig, String dataSourceName, DataSource dataSource) {
         this.sessionConfig = sessionConfig;
@@ -67,6 +103,32 @@ public class HibernateConfigurationHelper {
         return dataSourceHolder.get();
     }
 
+    /**
+     * The profiler of the factory being built on this thread, handed to its
+     * connection provider.
+     */
+    public static SqlProfiler getPendingSqlProfiler() {
+        return sqlProfilerHolder.get();
+    }
+
+    /**
+     * The profiler created by {@code buildConfiguration()}, if SQL profiling is
+     * enabled. It is not registered, callers do so once the SessionFactory has
+     * been built so that a failed build leaves the running profiler in place.
+     */
+    public SqlProfiler getSqlProfiler() {
+        return sqlProfiler;
+    }
+
+    /**
+     * The tuner that tuned the mappings, if batch tuning is enabled. Like the
+     * profiler it is left to the caller to commit and register it once the
+     * SessionFactory has been built.
+     */
+    public BatchFetchTuner getBatchFetchTuner() {
+        return batchFetchTuner;
+    }
+
     public String getDataSourceName() {
         return dataSourceName;
     }
@@ -87,10 +149,18 @@ public class HibernateConfigurationHelper {
 
         try {
             applyEntityInterceptor(config);
+            applyChangeCapture(config);
+            applyMonitoring(config);
             applyNamingStrategy(config);
             applyProperties(config);
             applyDialect(config);
+            applyUserTypes(config);
             applyMappings(config);
+            applyFetchProfiles(config);
+            applyIdGenerator(config);
+            applyBatchTuning(config);
+
+            applySqlProfiler(config);
 
             Class providerClass = DataSourceConnectionProvider.class;
             // Set Spring-provided DataSource as Hibernate ConnectionProvider.
@@ -113,6 +183,53 @@ public class HibernateConfigurationHelper {
         }
     }
 
+    private void applyChangeCapture(Configuration config) {
+        Object changeEvents = ConfigValues.getValue(sessionConfig, CHANGE_EVENTS);
+        Map changeEventsConfig = changeEvents instanceof Map ? (Map) changeEvents : null;
+        boolean enabled = changeEventsConfig != null ?
+            ConfigValues.getBoolean(changeEventsConfig, "enabled", true) :
+            Boolean.TRUE.equals(changeEvents);
+        if (!enabled) return;
+        EntityChangePublisher publisher = new EntityChangePublisher(dataSourceName, changeEventsConfig);
+        EntityChangePublisher.register(dataSourceName, publisher);
+        ChangeCaptureInterceptor interceptor = new ChangeCaptureInterceptor(config.getInterceptor(), publisher);
+        config.setInterceptor(interceptor);
+        EventListeners listeners = config.getEventListeners();
+        listeners.setPostInsertEventListeners(append(listeners.getPostInsertEventListeners(), interceptor));
+        listeners.setPostUpdateEventListeners(append(listeners.getPostUpdateEventListeners(), interceptor));
+        listeners.setPostDeleteEventListeners(append(listeners.getPostDeleteEventListeners(), interceptor));
+        listeners.setPostCollectionRecreateEventListeners(append(listeners.getPostCollectionRecreateEventListeners(), interceptor));
+        listeners.setPostCollectionRemoveEventListeners(append(listeners.getPostCollectionRemoveEventListeners(), interceptor));
+        listeners.setPostCollectionUpdateEventListeners(append(listeners.getPostCollectionUpdateEventListeners(), interceptor));
+    }
+
+    private static <T> T[] append(T[] listeners, T listener) {
+        T[] appended = Arrays.copyOf(listeners, listeners.length + 1);
+        appended[listeners.length] = listener;
+        return appended;
+    }
+
+    private void applyMonitoring(Configuration config) {
+        Hibernate3Monitors monitors = Hibernate3Monitors.forSessionFactory(dataSourceName);
+        if (monitors == null) return;
+        config.setInterceptor(new MonitoringInterceptor(dataSourceName, config.getInterceptor(), monitors));
+        EventListeners listeners = config.getEventListeners();
+        MonitoringFlushListener flushListener = new MonitoringFlushListener(dataSourceName, monitors,
+            listeners.getFlushEventListeners(), listeners.getAutoFlushEventListeners());
+        listeners.setFlushEventListeners(new FlushEventListener[]{flushListener});
+        listeners.setAutoFlushEventListeners(new AutoFlushEventListener[]{flushListener});
+    }
+
+    private void applySqlProfiler(Configuration config) {
+        Object profileSql = ConfigValues.getValue(sessionConfig, PROFILE_SQL);
+        Map profileSqlConfig = profileSql instanceof Map ? (Map) profileSql : null;
+        boolean enabled = profileSqlConfig != null ?
+            ConfigValues.getBoolean(profileSqlConfig, "enabled", true) :
+            Boolean.TRUE.equals(profileSql);
+        sqlProfiler = enabled ? new SqlProfiler(dataSourceName, profileSqlConfig) : null;
+        sqlProfilerHolder.set(sqlProfiler);
+    }
+
     private void applyNamingStrategy(Configuration config) {
         Object namingStrategy = ConfigUtils.getConfigValue(sessionConfig, NAMING_STRATEGY);
         if (namingStrategy instanceof Class) {
@@ -138,9 +255,11 @@ public class HibernateConfigurationHelper {
         if (ConfigUtils.getConfigValueAsBoolean(sessionConfig, "formatSql")) {
             config.setProperty("hibernate.format_sql", "true");
         }
+        QueryPlanPrecompiler.configure(config, ConfigValues.getMap(sessionConfig, QueryPlanPrecompiler.QUERY_PLANS));
     }
 
     private void applyDialect(Configuration config) {
+        long start = System.nanoTime();
         Object dialect = ConfigUtils.getConfigValue(sessionConfig, "dialect");
         if (dialect instanceof Class) {
             config.setProperty("hibernate.dialect", ((Class) dialect).getName());
@@ -150,6 +269,23 @@ public class HibernateConfigurationHelper {
             DialectDetector dialectDetector = new DialectDetector(dataSource);
             config.setProperty("hibernate.dialect", dialectDetector.getDialect());
         }
+        Hibernate3Monitors monitors = Hibernate3Monitors.forSessionFactory(dataSourceName);
+        if (monitors != null) {
+            monitors.buildPhase(dataSourceName, Hibernate3Monitor.PHASE_DIALECT, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Registers the types of {@code griffon.plugins.hibernate3.types} under their
+     * short names, unless {@code userTypes} is set to false.
+     */
+    private void applyUserTypes(Configuration config) {
+        if (!ConfigValues.getBoolean(sessionConfig, USER_TYPES, true)) return;
+        config.registerTypeOverride(new LongArrayType(), new String[]{LongArrayType.NAME});
+        config.registerTypeOverride(new DoubleArrayType(), new String[]{DoubleArrayType.NAME});
+        config.registerTypeOverride(new FloatArrayType(), new String[]{FloatArrayType.NAME});
+        config.registerTypeOverride(new UuidBinaryType(), new String[]{UuidBinaryType.NAME});
+        config.registerTypeOverride(new CompressedTextType(), new String[]{CompressedTextType.NAME});
     }
 
     private void applyMappings(final Configuration config) {
@@ -170,6 +306,110 @@ public class HibernateConfigurationHelper {
         }
     }
 
+    /**
+     * Registers every profile of the {@code fetchProfiles} block. Each one lists
+     * associations as {@code 'com.acme.Person.addresses'} or as a map with
+     * {@code entity}, {@code association} and an optional {@code style}.
+     */
+    private void applyFetchProfiles(Configuration config) {
+        Map profiles = ConfigValues.getMap(sessionConfig, FETCH_PROFILES);
+        if (profiles == null) return;
+        Mappings mappings = config.createMappings();
+        for (Object key : profiles.keySet()) {
+            String name = String.valueOf(key);
+            FetchProfile profile = mappings.findOrCreateFetchProfile(name, MetadataSource.OTHER);
+            Object fetches = profiles.get(key);
+            for (Object fetch : fetches instanceof Collection ? (Collection) fetches : Collections.singletonList(fetches)) {
+                if (fetch instanceof Map) {
+                    Map fetchConfig = (Map) fetch;
+                    Object entity = fetchConfig.get("entity");
+                    String entityName = entity instanceof Class ? ((Class) entity).getName() : String.valueOf(entity);
+                    String style = ConfigValues.getString(fetchConfig, "style", "join");
+                    profile.addFetch(entityName, ConfigValues.getString(fetchConfig, "association", null), style);
+                } else {
+                    String path = String.valueOf(fetch);
+                    int dot = path.lastIndexOf('.');
+                    if (dot < 1) throw new IllegalArgumentException("Fetch profile '" + name + "' has no association in '" + path + "'");
+                    profile.addFetch(path.substring(0, dot), path.substring(dot + 1), "join");
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the {@code idGenerator} block sizes to entities using the
+     * {@code BlockSequenceGenerator}, switching the strategies listed in
+     * {@code replace} over to it first. Parameters of the mappings win.
+     */
+    private void applyIdGenerator(Configuration config) {
+        Map idGenerator = ConfigValues.getMap(sessionConfig, ID_GENERATOR);
+        if (idGenerator == null) return;
+        List<String> replaced = ConfigValues.getStringList(idGenerator, "replace");
+        Map blockSizes = ConfigValues.getMap(idGenerator, "blockSizes");
+        String generatorName = BlockSequenceGenerator.class.getName();
+        config.buildMappings();
+        for (Iterator<PersistentClass> classes = config.getClassMappings(); classes.hasNext(); ) {
+            PersistentClass persistentClass = classes.next();
+            if (!(persistentClass instanceof RootClass) || !(persistentClass.getIdentifier() instanceof SimpleValue)) continue;
+            SimpleValue identifier = (SimpleValue) persistentClass.getIdentifier();
+            String strategy = identifier.getIdentifierGeneratorStrategy();
+            if (replaced.contains(strategy)) {
+                identifier.setIdentifierGeneratorStrategy(generatorName);
+            } else if (!generatorName.equals(strategy)) {
+                continue;
+            }
+            Properties params = identifier.getIdentifierGeneratorProperties();
+            if (params == null) params = new Properties();
+            String blockSize = ConfigValues.getString(idGenerator, "blockSize", null);
+            if (blockSizes != null) {
+                for (Object key : blockSizes.keySet()) {
+                    String entityName = key instanceof Class ? ((Class) key).getName() : String.valueOf(key);
+                    if (entityName.equals(persistentClass.getEntityName())) blockSize = String.valueOf(blockSizes.get(key));
+                }
+            }
+            if (blockSize != null && !params.containsKey(BlockSequenceGenerator.BLOCK_SIZE_PARAM)) {
+                params.setProperty(BlockSequenceGenerator.BLOCK_SIZE_PARAM, blockSize);
+            }
+            String stripes = ConfigValues.getString(idGenerator, "stripes", null);
+            if (stripes != null && !params.containsKey(BlockSequenceGenerator.STRIPES_PARAM)) {
+                params.setProperty(BlockSequenceGenerator.STRIPES_PARAM, stripes);
+            }
+            identifier.setIdentifierGeneratorProperties(params);
+        }
+    }
+
+    private void applyBatchTuning(Configuration config) {
+        Object batchTuning = ConfigValues.getValue(sessionConfig, BATCH_TUNING);
+        Map batchTuningConfig = batchTuning instanceof Map ? (Map) batchTuning : null;
+        boolean enabled = batchTuningConfig != null ?
+            ConfigValues.getBoolean(batchTuningConfig, "enabled", true) :
+            Boolean.TRUE.equals(batchTuning);
+        if (!enabled) return;
+        // counts recorded by a previous factory of the same name are kept
+        BatchFetchTuner tuner = BatchFetchTuner.forSessionFactory(dataSourceName);
+        if (tuner == null) {
+            tuner = new BatchFetchTuner(dataSourceName, batchTuningConfig);
+        } else {
+            tuner.configure(batchTuningConfig);
+        }
+        config.buildMappings();
+        tuner.tune(config);
+        batchFetchTuner = tuner;
+
+        BatchFetchListener listener = new BatchFetchListener(tuner);
+        EventListeners listeners = config.getEventListeners();
+        LoadEventListener[] loadListeners = listeners.getLoadEventListeners();
+        LoadEventListener[] tunedLoadListeners = new LoadEventListener[loadListeners.length + 1];
+        tunedLoadListeners[0] = listener;
+        System.arraycopy(loadListeners, 0, tunedLoadListeners, 1, loadListeners.length);
+        listeners.setLoadEventListeners(tunedLoadListeners);
+        InitializeCollectionEventListener[] collectionListeners = listeners.getInitializeCollectionEventListeners();
+        InitializeCollectionEventListener[] tunedCollectionListeners = new InitializeCollectionEventListener[collectionListeners.length + 1];
+        tunedCollectionListeners[0] = listener;
+        System.arraycopy(collectionListeners, 0, tunedCollectionListeners, 1, collectionListeners.length);
+        listeners.setInitializeCollectionEventListeners(tunedCollectionListeners);
+    }
+
     private Object newInstanceOf(String className) {
         try {
             return newInstanceOf(Thread.currentThread().getContextClassLoader().loadClass(className));
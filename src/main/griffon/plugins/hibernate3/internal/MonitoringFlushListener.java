@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.Hibernate3Monitor;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.event.AutoFlushEvent;
+import org.hibernate.event.AutoFlushEventListener;
+import org.hibernate.event.FlushEvent;
+import org.hibernate.event.FlushEventListener;
+
+/**
+ * Reports flush timings to a {@code Hibernate3Monitor}. Wraps the flush and auto
+ * flush listeners it replaces; an auto flush is only reported when the query
+ * that triggered it actually required a flush.
+ *
+ * @author Andres Almiray
+ */
+public class MonitoringFlushListener implements FlushEventListener, AutoFlushEventListener {
+    private final String sessionFactoryName;
+    private final transient Hibernate3Monitor monitor;
+    private final FlushEventListener[] flushListeners;
+    private final AutoFlushEventListener[] autoFlushListeners;
+
+    public MonitoringFlushListener(String sessionFactoryName, Hibernate3Monitor monitor, FlushEventListener[] flushListeners, AutoFlushEventListener[] autoFlushListeners) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.monitor = monitor;
+        this.flushListeners = flushListeners;
+        this.autoFlushListeners = autoFlushListeners;
+    }
+
+    public void onFlush(FlushEvent event) throws HibernateException {
+        PersistenceContext persistenceContext = event.getSession().getPersistenceContext();
+        // Hibernate skips flushing an empty persistence context
+        boolean flushing = persistenceContext.getEntityEntries().size() > 0 || persistenceContext.getCollectionEntries().size() > 0;
+        long start = System.nanoTime();
+        for (FlushEventListener listener : flushListeners) {
+            listener.onFlush(event);
+        }
+        if (flushing) flushed(persistenceContext, start);
+    }
+
+    public void onAutoFlush(AutoFlushEvent event) throws HibernateException {
+        long start = System.nanoTime();
+        for (AutoFlushEventListener listener : autoFlushListeners) {
+            listener.onAutoFlush(event);
+        }
+        if (event.isFlushRequired()) flushed(event.getSession().getPersistenceContext(), start);
+    }
+
+    private void flushed(PersistenceContext persistenceContext, long start) {
+        long duration = System.nanoTime() - start;
+        monitor.flushed(sessionFactoryName, persistenceContext.getEntityEntries().size(), duration);
+    }
+}
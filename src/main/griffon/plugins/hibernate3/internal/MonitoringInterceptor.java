@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.Hibernate3Monitor;
+import org.hibernate.Interceptor;
+import org.hibernate.Transaction;
+
+import java.util.LinkedList;
+
+/**
+ * Reports transaction timings of every session of a SessionFactory to its
+ * {@code Hibernate3Monitor}s. Start times are kept per thread, nested
+ * transactions on the same thread are timed separately. Flushes are timed by
+ * {@code MonitoringFlushListener}.
+ *
+ * @author Andres Almiray
+ */
+public class MonitoringInterceptor extends DelegatingInterceptor {
+    private final String sessionFactoryName;
+    private final Hibernate3Monitor monitor;
+    private final transient ThreadLocal<LinkedList<Long>> transactions = new ThreadLocal<LinkedList<Long>>();
+
+    public MonitoringInterceptor(String sessionFactoryName, Interceptor delegate, Hibernate3Monitor monitor) {
+        super(delegate);
+        this.sessionFactoryName = sessionFactoryName;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void afterTransactionBegin(Transaction tx) {
+        push(transactions);
+        monitor.transactionBegun(sessionFactoryName);
+        super.afterTransactionBegin(tx);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        try {
+            super.afterTransactionCompletion(tx);
+        } finally {
+            long start = pop(transactions);
+            if (start != 0L) monitor.transactionCompleted(sessionFactoryName, tx.wasCommitted(), System.nanoTime() - start);
+        }
+    }
+
+    private static void push(ThreadLocal<LinkedList<Long>> stack) {
+        LinkedList<Long> starts = stack.get();
+        if (starts == null) {
+            starts = new LinkedList<Long>();
+            stack.set(starts);
+        }
+        starts.addFirst(System.nanoTime());
+    }
+
+    private static long pop(ThreadLocal<LinkedList<Long>> stack) {
+        LinkedList<Long> starts = stack.get();
+        if (starts == null || starts.isEmpty()) return 0L;
+        long start = starts.removeFirst();
+        if (starts.isEmpty()) stack.remove();
+        return start;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.NamedQueryDefinition;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.*;
+
+/**
+ * <p>Translates HQL and named queries to SQL when a SessionFactory starts,
+ * filling its query plan cache and reporting bad queries up front.</p>
+ * <pre>
+ * sessionFactory {
+ *     queryPlans {
+ *         queries       = ['from Person p where p.lastname = :lastname']
+ *         namedQueries  = true   // every named HQL query, or a list of names
+ *         background    = true   // translate on a daemon thread
+ *         failOnError   = true   // fail connect() on bad queries, ignored in background
+ *         cacheSize     = 512    // plans held by strong references
+ *         softCacheSize = 4096   // plans held by soft references
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public class QueryPlanPrecompiler {
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPlanPrecompiler.class);
+    public static final String QUERY_PLANS = "queryPlans";
+    private static final String STRONG_CACHE_SIZE = "hibernate.query.plan_cache_max_strong_references";
+    private static final String SOFT_CACHE_SIZE = "hibernate.query.plan_cache_max_soft_references";
+    private static final String STARTUP_CHECK = "hibernate.query.startup_check";
+
+    private final String sessionFactoryName;
+    private final Map config;
+    private final Set<String> queries = new LinkedHashSet<String>();
+    private final Set<String> namedQueries = new LinkedHashSet<String>();
+
+    public QueryPlanPrecompiler(String sessionFactoryName, Map config, Configuration configuration) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.config = config;
+        queries.addAll(getStringList(config, "queries"));
+        Object named = getValue(config, "namedQueries");
+        if (Boolean.TRUE.equals(named)) {
+            namedQueries.addAll(configuration.getNamedQueries().keySet());
+        } else if (!(named instanceof Boolean)) {
+            namedQueries.addAll(getStringList(config, "namedQueries"));
+        }
+    }
+
+    /**
+     * Applies the plan cache sizes. Hibernate's own startup check of named queries
+     * is turned off when they are translated in the background instead.
+     */
+    public static void configure(Configuration configuration, Map config) {
+        if (config == null) return;
+        int cacheSize = getInt(config, "cacheSize", 0);
+        if (cacheSize > 0) configuration.setProperty(STRONG_CACHE_SIZE, String.valueOf(cacheSize));
+        int softCacheSize = getInt(config, "softCacheSize", 0);
+        if (softCacheSize > 0) configuration.setProperty(SOFT_CACHE_SIZE, String.valueOf(softCacheSize));
+        if (getBoolean(config, "background", false)) configuration.setProperty(STARTUP_CHECK, "false");
+    }
+
+    public boolean isBackground() {
+        return getBoolean(config, "background", false);
+    }
+
+    /**
+     * Adds a query to translate along with the configured ones.
+     */
+    public void addQuery(String hql) {
+        if (hql != null) queries.add(hql);
+    }
+
+    /**
+     * Translates all queries, on a daemon thread when {@code background} is set.
+     *
+     * @throws HibernateException if a query can't be translated and {@code failOnError} is set
+     */
+    public void precompile(final SessionFactory sessionFactory) {
+        if (!isBackground()) {
+            precompile(sessionFactory, getBoolean(config, "failOnError", false));
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                precompile(sessionFactory, false);
+            }
+        }, "hibernate3-query-plans-" + sessionFactoryName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void precompile(SessionFactory sessionFactory, boolean failOnError) {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+        long start = System.currentTimeMillis();
+        Map<String, String> errors = new LinkedHashMap<String, String>();
+        int translated = 0;
+        for (String hql : queries) {
+            if (translate(factory, hql, hql, errors)) translated++;
+        }
+        for (String name : namedQueries) {
+            NamedQueryDefinition definition = factory.getNamedQuery(name);
+            if (definition == null) {
+                // named SQL queries have no plan to compile
+                if (factory.getNamedSQLQuery(name) == null) errors.put(name, "No such named query");
+                continue;
+            }
+            if (translate(factory, "named query " + name, definition.getQueryString(), errors)) translated++;
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Translated " + translated + " queries of '" + sessionFactoryName + "' in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (errors.isEmpty()) return;
+
+        StringBuilder message = new StringBuilder("Errors in queries of '").append(sessionFactoryName).append("'");
+        for (Map.Entry<String, String> error : errors.entrySet()) {
+            message.append("\n  ").append(error.getKey()).append(": ").append(error.getValue());
+        }
+        if (failOnError) throw new HibernateException(message.toString());
+        LOG.error(message.toString());
+    }
+
+    private boolean translate(SessionFactoryImplementor factory, String label, String hql, Map<String, String> errors) {
+        try {
+            factory.getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP);
+            return true;
+        } catch (HibernateException e) {
+            errors.put(label, e.getMessage());
+            return false;
+        }
+    }
+}
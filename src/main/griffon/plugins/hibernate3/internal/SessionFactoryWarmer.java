@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.Hibernate3Options;
+import griffon.plugins.hibernate3.Hibernate3Provider;
+import griffon.plugins.hibernate3.SessionCallback;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.NamedQueryDefinition;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.query.HQLQueryPlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static griffon.plugins.hibernate3.internal.ConfigValues.*;
+
+/**
+ * <p>Warms up a freshly built SessionFactory: opens pool connections in
+ * parallel and validates them, then runs a set of HQL and named queries so that
+ * Hibernate's lazy initialization and the database's plan cache are paid for
+ * before the first user request.</p>
+ * <pre>
+ * sessionFactory {
+ *     warmup {
+ *         connections     = 5
+ *         validationQuery = 'select 1'  // Connection.isValid() when omitted
+ *         queries         = ['from Person p where p.id = -1']
+ *         namedQueries    = ['Person.byLastname': [lastname: 'Smith']]
+ *         background      = true        // don't delay Hibernate3ConnectEnd
+ *         timeout         = 30          // seconds
+ *     }
+ * }
+ * </pre>
+ * <p>Both query settings take a list, or a map of queries to the values of their
+ * named parameters. Queries with parameters left unbound are only translated
+ * to SQL, not run. Failures are logged and never prevent the factory from
+ * being used.</p>
+ *
+ * @author Andres Almiray
+ */
+public class SessionFactoryWarmer {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionFactoryWarmer.class);
+
+    private final String sessionFactoryName;
+    private final SessionFactory sessionFactory;
+    private final Hibernate3Provider provider;
+    private final int connections;
+    private final String validationQuery;
+    private final Map<String, Map> queries;
+    private final Map<String, Map> namedQueries;
+    private final boolean background;
+    private final long timeout;
+
+    public SessionFactoryWarmer(String sessionFactoryName, SessionFactory sessionFactory, Hibernate3Provider provider, Map config) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.sessionFactory = sessionFactory;
+        this.provider = provider;
+        this.connections = Math.max(0, getInt(config, "connections", 0));
+        this.validationQuery = getString(config, "validationQuery", null);
+        this.queries = queriesWithParameters(config, "queries");
+        this.namedQueries = queriesWithParameters(config, "namedQueries");
+        this.background = getBoolean(config, "background", false);
+        this.timeout = Math.max(1L, getLong(config, "timeout", 30L));
+    }
+
+    private static Map<String, Map> queriesWithParameters(Map config, String key) {
+        Map<String, Map> queries = new LinkedHashMap<String, Map>();
+        Map parameterized = getMap(config, key);
+        if (parameterized != null) {
+            for (Object entry : parameterized.entrySet()) {
+                Map.Entry query = (Map.Entry) entry;
+                queries.put(String.valueOf(query.getKey()), query.getValue() instanceof Map ? (Map) query.getValue() : Collections.emptyMap());
+            }
+        } else {
+            for (String query : getStringList(config, key)) {
+                queries.put(query, Collections.emptyMap());
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Warms up on the calling thread, or on a daemon thread when {@code background} is set.
+     */
+    public void warmup() {
+        if (!background) {
+            run();
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                SessionFactoryWarmer.this.run();
+            }
+        }, "hibernate3-warmup-" + sessionFactoryName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long start = System.currentTimeMillis();
+        if (connections > 0) warmConnections();
+        for (Map.Entry<String, Map> query : queries.entrySet()) {
+            warmQuery(query.getKey(), false, query.getValue());
+        }
+        for (Map.Entry<String, Map> query : namedQueries.entrySet()) {
+            warmQuery(query.getKey(), true, query.getValue());
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Warmed up SessionFactory '" + sessionFactoryName + "' in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Opens all connections before releasing any of them, otherwise the pool
+     * would hand out the same connection over and over.
+     */
+    private void warmConnections() {
+        final ConnectionProvider connectionProvider = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider();
+        final CountDownLatch opened = new CountDownLatch(connections);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hibernate3-warmup-connection-" + sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < connections; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    Connection connection = null;
+                    try {
+                        connection = connectionProvider.getConnection();
+                        validate(connection);
+                    } catch (SQLException e) {
+                        if (failed.getAndIncrement() == 0) LOG.warn("Could not warm up a connection of '" + sessionFactoryName + "'", e);
+                    } finally {
+                        opened.countDown();
+                    }
+                    if (connection == null) return;
+                    try {
+                        release.await();
+                        connectionProvider.closeConnection(connection);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (SQLException e) {
+                        LOG.debug("Could not release warm-up connection", e);
+                    }
+                }
+            });
+        }
+        try {
+            if (!opened.await(timeout, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out warming up connections of '" + sessionFactoryName + "'");
+            } else if (failed.get() > 0) {
+                LOG.warn("Warmed up " + (connections - failed.get()) + " of " + connections + " connections of '" + sessionFactoryName + "'");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // connections still being opened are released as soon as they arrive
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private void validate(Connection connection) throws SQLException {
+        if (validationQuery == null) {
+            if (!connection.isValid((int) timeout)) throw new SQLException("Connection is not valid");
+            return;
+        }
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            statement.execute(validationQuery);
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private void warmQuery(final String query, final boolean named, final Map parameters) {
+        try {
+            provider.withHibernate3(sessionFactoryName, new Hibernate3Options().priority(Hibernate3Options.Priority.BACKGROUND), new SessionCallback<Object>() {
+                public Object doInSession(String sessionFactoryName, Session session) {
+                    session.setDefaultReadOnly(true);
+                    Query q = named ? session.getNamedQuery(query) : session.createQuery(query);
+                    if (!parameters.keySet().containsAll(Arrays.asList(q.getNamedParameters())) || hasOrdinalParameters(q)) {
+                        translate(query, named);
+                    } else {
+                        q.setProperties(parameters).setMaxResults(1).list();
+                    }
+                    session.getTransaction().rollback();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            LOG.warn("Could not run warm-up " + (named ? "named query '" : "query '") + query + "' on '" + sessionFactoryName + "'", e);
+        }
+    }
+
+    private boolean hasOrdinalParameters(Query query) {
+        String hql = query.getQueryString();
+        return hql.indexOf('?') >= 0 && !(query instanceof SQLQuery) &&
+            queryPlan(hql).getParameterMetadata().getOrdinalParameterCount() > 0;
+    }
+
+    /**
+     * Fills the query plan cache without running the query. Named SQL queries have no plan.
+     */
+    private void translate(String query, boolean named) {
+        if (!named) {
+            queryPlan(query);
+            return;
+        }
+        NamedQueryDefinition definition = ((SessionFactoryImplementor) sessionFactory).getNamedQuery(query);
+        if (definition != null) queryPlan(definition.getQueryString());
+    }
+
+    private HQLQueryPlan queryPlan(String hql) {
+        return ((SessionFactoryImplementor) sessionFactory).getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.internal;
+
+import griffon.plugins.hibernate3.Hibernate3Options;
+import griffon.plugins.hibernate3.Hibernate3Provider;
+import griffon.plugins.hibernate3.SessionCallback;
+import griffon.util.CallableWithArgs;
+import groovy.lang.Closure;
+import groovy.lang.MetaMethod;
+import org.codehaus.groovy.reflection.CachedClass;
+import org.codehaus.groovy.reflection.ReflectionCache;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * One variant of {@code withHibernate3} or {@code spillHibernate3} bound to a
+ * provider, registered as is on every enhanced MetaClass. Calls go straight to
+ * the provider instead of through a closure.
+ *
+ * @author Andres Almiray
+ */
+public final class WithHibernate3MetaMethod extends MetaMethod {
+    private static final String NAME = "withHibernate3";
+    private static final String SPILL_NAME = "spillHibernate3";
+    private static final CachedClass DECLARING_CLASS = ReflectionCache.OBJECT_CLASS;
+    private static final Class[][] SIGNATURES = {
+        {Closure.class},
+        {String.class, Closure.class},
+        {CallableWithArgs.class},
+        {String.class, CallableWithArgs.class},
+        {SessionCallback.class},
+        {String.class, SessionCallback.class},
+        {String.class, Hibernate3Options.class, Closure.class},
+        {String.class, Hibernate3Options.class, CallableWithArgs.class},
+        {String.class, Hibernate3Options.class, SessionCallback.class},
+        {String.class, String.class},
+        {String.class, String.class, Map.class},
+        {String.class, String.class, Map.class, String[].class, File.class}
+    };
+    // variants from this index on are spillHibernate3
+    private static final int FIRST_SPILL = 9;
+    private static final Map<Hibernate3Provider, MetaMethod[]> METHODS = new IdentityHashMap<Hibernate3Provider, MetaMethod[]>();
+
+    private final Hibernate3Provider provider;
+    private final int variant;
+
+    private WithHibernate3MetaMethod(Hibernate3Provider provider, int variant) {
+        super(SIGNATURES[variant]);
+        this.provider = provider;
+        this.variant = variant;
+    }
+
+    /**
+     * Returns the methods bound to the given provider, created once per provider.
+     */
+    public static MetaMethod[] forProvider(Hibernate3Provider provider) {
+        synchronized (METHODS) {
+            MetaMethod[] methods = METHODS.get(provider);
+            if (methods == null) {
+                methods = new MetaMethod[SIGNATURES.length];
+                for (int i = 0; i < methods.length; i++) {
+                    methods[i] = new WithHibernate3MetaMethod(provider, i);
+                }
+                METHODS.put(provider, methods);
+            }
+            return methods;
+        }
+    }
+
+    public int getModifiers() {
+        return Modifier.PUBLIC;
+    }
+
+    public String getName() {
+        return variant < FIRST_SPILL ? NAME : SPILL_NAME;
+    }
+
+    public Class getReturnType() {
+        return Object.class;
+    }
+
+    public CachedClass getDeclaringClass() {
+        return DECLARING_CLASS;
+    }
+
+    public Object invoke(Object object, Object[] arguments) {
+        switch (variant) {
+            case 0:
+                return provider.withHibernate3((Closure) arguments[0]);
+            case 1:
+                return provider.withHibernate3((String) arguments[0], (Closure) arguments[1]);
+            case 2:
+                return provider.withHibernate3((CallableWithArgs) arguments[0]);
+            case 3:
+                return provider.withHibernate3((String) arguments[0], (CallableWithArgs) arguments[1]);
+            case 4:
+                return provider.withHibernate3((SessionCallback) arguments[0]);
+            case 5:
+                return provider.withHibernate3((String) arguments[0], (SessionCallback) arguments[1]);
+            case 6:
+                return provider.withHibernate3((String) arguments[0], (Hibernate3Options) arguments[1], (Closure) arguments[2]);
+            case 7:
+                return provider.withHibernate3((String) arguments[0], (Hibernate3Options) arguments[1], (CallableWithArgs) arguments[2]);
+            case 8:
+                return provider.withHibernate3((String) arguments[0], (Hibernate3Options) arguments[1], (SessionCallback) arguments[2]);
+            case 9:
+                return provider.spillHibernate3((String) arguments[0], (String) arguments[1]);
+            case 10:
+                return provider.spillHibernate3((String) arguments[0], (String) arguments[1], (Map<String, ?>) arguments[2]);
+            default:
+                return provider.spillHibernate3((String) arguments[0], (String) arguments[1], (Map<String, ?>) arguments[2], (String[]) arguments[3], (File) arguments[4]);
+        }
+    }
+}
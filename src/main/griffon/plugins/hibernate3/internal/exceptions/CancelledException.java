@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate3.internal.exceptions;
+
+/**
+ * Thrown when a {@code withHibernate3} block is cancelled through its
+ * {@code Hibernate3Cancellation} or runs past its deadline.
+ *
+ * @author Andres Almiray
+ */
+public class CancelledException extends DatabaseException {
+    public CancelledException() {
+    }
+
+    public CancelledException(String arg0) {
+        super(arg0);
+    }
+
+    public CancelledException(String arg0, Throwable arg1) {
+        super(arg0, arg1);
+    }
+
+    public CancelledException(Throwable arg0) {
+        super(arg0);
+    }
+}
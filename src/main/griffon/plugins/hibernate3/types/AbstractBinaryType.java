@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.types;
+
+import org.hibernate.HibernateException;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Base of the types stored as a single binary column. Subclasses only convert
+ * between their values and bytes. Values are bound with {@code setBytes()}, so
+ * columns should be of a binary type such as {@code LONGVARBINARY} rather than
+ * a {@code BLOB}, which some databases store apart from the row.
+ *
+ * @author Andres Almiray
+ */
+public abstract class AbstractBinaryType implements UserType {
+    private final int[] sqlTypes;
+
+    protected AbstractBinaryType(int sqlType) {
+        this.sqlTypes = new int[]{sqlType};
+    }
+
+    protected abstract byte[] toBytes(Object value);
+
+    protected abstract Object fromBytes(byte[] bytes);
+
+    public int[] sqlTypes() {
+        return sqlTypes.clone();
+    }
+
+    public Object nullSafeGet(ResultSet rs, String[] names, Object owner) throws HibernateException, SQLException {
+        byte[] bytes = rs.getBytes(names[0]);
+        return bytes != null ? fromBytes(bytes) : null;
+    }
+
+    public void nullSafeSet(PreparedStatement st, Object value, int index) throws HibernateException, SQLException {
+        if (value == null) {
+            st.setNull(index, sqlTypes[0]);
+        } else {
+            st.setBytes(index, toBytes(value));
+        }
+    }
+
+    public int hashCode(Object x) throws HibernateException {
+        return x.hashCode();
+    }
+
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == y || (x != null && x.equals(y));
+    }
+
+    public Object deepCopy(Object value) throws HibernateException {
+        return value;
+    }
+
+    public boolean isMutable() {
+        return false;
+    }
+
+    public Serializable disassemble(Object value) throws HibernateException {
+        return (Serializable) deepCopy(value);
+    }
+
+    public Object assemble(Serializable cached, Object owner) throws HibernateException {
+        return deepCopy(cached);
+    }
+
+    public Object replace(Object original, Object target, Object owner) throws HibernateException {
+        return deepCopy(original);
+    }
+}
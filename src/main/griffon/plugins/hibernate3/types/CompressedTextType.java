@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.types;
+
+import org.hibernate.HibernateException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.sql.Types;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores a {@code String}, such as a large text or JSON document, as variable
+ * length binary holding deflated UTF-8. Registered as {@code compressed-text}.
+ *
+ * @author Andres Almiray
+ */
+public class CompressedTextType extends AbstractBinaryType {
+    public static final String NAME = "compressed-text";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public CompressedTextType() {
+        super(Types.LONGVARBINARY);
+    }
+
+    public Class returnedClass() {
+        return String.class;
+    }
+
+    protected byte[] toBytes(Object value) {
+        byte[] text = ((String) value).getBytes(UTF8);
+        // favors speed, text compresses well enough at this level
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, text.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    protected Object fromBytes(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new HibernateException("Truncated compressed text");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (DataFormatException e) {
+            throw new HibernateException("Invalid compressed text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.types;
+
+import org.hibernate.HibernateException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Stores a {@code double[]} as variable length binary of little-endian doubles, 8 bytes each,
+ * without boxing. Registered as {@code double-array}.
+ *
+ * @author Andres Almiray
+ */
+public class DoubleArrayType extends AbstractBinaryType {
+    public static final String NAME = "double-array";
+
+    public DoubleArrayType() {
+        super(Types.LONGVARBINARY);
+    }
+
+    public Class returnedClass() {
+        return double[].class;
+    }
+
+    protected byte[] toBytes(Object value) {
+        double[] array = (double[]) value;
+        ByteBuffer buffer = ByteBuffer.allocate(array.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(array);
+        return buffer.array();
+    }
+
+    protected Object fromBytes(byte[] bytes) {
+        double[] array = new double[bytes.length / 8];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(array);
+        return array;
+    }
+
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == y || (x != null && y != null && Arrays.equals((double[]) x, (double[]) y));
+    }
+
+    public int hashCode(Object x) throws HibernateException {
+        return Arrays.hashCode((double[]) x);
+    }
+
+    public Object deepCopy(Object value) throws HibernateException {
+        return value != null ? ((double[]) value).clone() : null;
+    }
+
+    public boolean isMutable() {
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.types;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.usertype.ParameterizedType;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.EnumSet;
+import java.util.Properties;
+
+/**
+ * <p>Stores an {@code EnumSet} as a BIGINT bitmask, bit {@code n} standing for
+ * the constant of ordinal {@code n}, instead of a child table.</p>
+ * <pre>
+ * &#64;Type(type = "griffon.plugins.hibernate3.types.EnumSetType",
+ *       parameters = &#64;Parameter(name = "enumClass", value = "com.acme.Permission"))
+ * EnumSet&lt;Permission&gt; permissions
+ * </pre>
+ * <p>Enums may have up to 64 constants. Reordering them changes the meaning of
+ * stored values.</p>
+ *
+ * @author Andres Almiray
+ */
+public class EnumSetType implements UserType, ParameterizedType {
+    public static final String ENUM_CLASS_PARAM = "enumClass";
+    private static final int[] SQL_TYPES = {Types.BIGINT};
+
+    private Class<? extends Enum> enumClass;
+    private Enum[] constants;
+
+    public void setParameterValues(Properties parameters) {
+        String className = parameters != null ? parameters.getProperty(ENUM_CLASS_PARAM) : null;
+        if (className == null) throw new MappingException("EnumSetType requires the " + ENUM_CLASS_PARAM + " parameter");
+        try {
+            enumClass = Thread.currentThread().getContextClassLoader().loadClass(className).asSubclass(Enum.class);
+        } catch (ClassNotFoundException e) {
+            throw new MappingException("Enum class not found: " + className, e);
+        } catch (ClassCastException e) {
+            throw new MappingException("Not an enum: " + className, e);
+        }
+        constants = enumClass.getEnumConstants();
+        if (constants.length > 64) {
+            throw new MappingException(className + " has more than 64 constants, which do not fit a bitmask");
+        }
+    }
+
+    public int[] sqlTypes() {
+        return SQL_TYPES.clone();
+    }
+
+    public Class returnedClass() {
+        return EnumSet.class;
+    }
+
+    public Object nullSafeGet(ResultSet rs, String[] names, Object owner) throws HibernateException, SQLException {
+        long mask = rs.getLong(names[0]);
+        if (rs.wasNull()) return null;
+        EnumSet set = EnumSet.noneOf(enumClass);
+        for (int i = 0; i < constants.length; i++) {
+            if ((mask & (1L << i)) != 0L) set.add(constants[i]);
+        }
+        return set;
+    }
+
+    public void nullSafeSet(PreparedStatement st, Object value, int index) throws HibernateException, SQLException {
+        if (value == null) {
+            st.setNull(index, Types.BIGINT);
+            return;
+        }
+        long mask = 0L;
+        for (Object constant : (EnumSet) value) {
+            mask |= 1L << ((Enum) constant).ordinal();
+        }
+        st.setLong(index, mask);
+    }
+
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == y || (x != null && x.equals(y));
+    }
+
+    public int hashCode(Object x) throws HibernateException {
+        return x.hashCode();
+    }
+
+    public Object deepCopy(Object value) throws HibernateException {
+        return value != null ? ((EnumSet) value).clone() : null;
+    }
+
+    public boolean isMutable() {
+        return true;
+    }
+
+    public Serializable disassemble(Object value) throws HibernateException {
+        return (Serializable) deepCopy(value);
+    }
+
+    public Object assemble(Serializable cached, Object owner) throws HibernateException {
+        return deepCopy(cached);
+    }
+
+    public Object replace(Object original, Object target, Object owner) throws HibernateException {
+        return deepCopy(original);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate3.types;
+
+import java.nio.ByteBuffer;
+import java.sql.Types;
+import java.util.UUID;
+
+/**
+ * Stores a {@code UUID} as 16 bytes, most significant first, instead of its
+ * 36 character text form. Registered as {@code uuid-bytes}. Map the property
+ * with {@code length = 16}, schema export makes binary columns 255 bytes long
+ * otherwise.
+ *
+ * @author Andres Almiray
+ */
+public class UuidBinaryType extends AbstractBinaryType {
+    public static final String NAME = "uuid-bytes";
+
+    public UuidBinaryType() {
+        super(Types.BINARY);
+    }
+
+    public Class returnedClass() {
+        return UUID.class;
+    }
+
+    protected byte[] toBytes(Object value) {
+        UUID uuid = (UUID) value;
+        return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    protected Object fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}